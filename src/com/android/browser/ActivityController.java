@@ -41,6 +41,8 @@ public interface ActivityController {
 
     void onLowMemory();
 
+    void onTrimMemory(int level);
+
     boolean onCreateOptionsMenu(Menu menu);
 
     boolean onPrepareOptionsMenu(Menu menu);
@@ -17,28 +17,223 @@ package com.android.browser;
 
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Shared background work for the browser. Runnables go to a small, fixed
+ * set of worker threads and are run by priority lane, then in the order
+ * they were submitted. The user visible lane has workers of its own, so
+ * prefetch and maintenance work can never hold up what is on screen.
+ * Work that must run serially can use the looper. Work that blocks on the
+ * network for long belongs on a thread of its own, not here.
+ */
 public class BackgroundHandler {
 
+    private static final String LOGTAG = "BackgroundHandler";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    /** Work the user is waiting on, e.g. loading what is on screen. */
+    public static final int PRIORITY_USER_VISIBLE = 0;
+    /** Work that may be needed soon, e.g. warming caches. */
+    public static final int PRIORITY_PREFETCH = 1;
+    /** Housekeeping that can wait, e.g. pruning old files. */
+    public static final int PRIORITY_MAINTENANCE = 2;
+    private static final int PRIORITY_COUNT = 3;
+
+    private static final int WORKER_COUNT = Math.max(2,
+            Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+    // Log work that waited longer than this in the queue
+    private static final long SLOW_WAIT_MS = 500;
+
     static HandlerThread sLooperThread;
-    static ExecutorService mThreadPool;
+    // Runs the user visible lane
+    static ThreadPoolExecutor mUserVisiblePool;
+    // Runs the prefetch and maintenance lanes
+    static ThreadPoolExecutor mThreadPool;
+
+    private static final AtomicLong sSequence = new AtomicLong();
+    private static final AtomicLong[] sRunCount = new AtomicLong[PRIORITY_COUNT];
+    private static final AtomicLong[] sTotalWait = new AtomicLong[PRIORITY_COUNT];
+    private static final AtomicLong[] sMaxWait = new AtomicLong[PRIORITY_COUNT];
 
     static {
         sLooperThread = new HandlerThread("BackgroundHandler", HandlerThread.MIN_PRIORITY);
         sLooperThread.start();
-        mThreadPool = Executors.newCachedThreadPool();
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            sRunCount[i] = new AtomicLong();
+            sTotalWait[i] = new AtomicLong();
+            sMaxWait[i] = new AtomicLong();
+        }
+        mUserVisiblePool = createPool("BackgroundWorker");
+        mThreadPool = createPool("BackgroundWorker (low)");
     }
 
-    public static void execute(Runnable runnable) {
-        mThreadPool.execute(runnable);
+    private static ThreadPoolExecutor createPool(String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new WorkerFactory(name)) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                ((Task) r).onDequeued();
+            }
+
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                ((Task) r).onDone();
+            }
+        };
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        WorkerFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + " #" + mCount.incrementAndGet());
+        }
+    }
+
+    private static class Task extends FutureTask<Void> implements Comparable<Task> {
+        final int mPriority;
+        final long mSequence;
+        final long mQueuedAt;
+        final ThreadPoolExecutor mPool;
+
+        Task(Runnable runnable, int priority) {
+            super(runnable, null);
+            mPriority = priority;
+            mPool = getPool(priority);
+            mSequence = sSequence.getAndIncrement();
+            mQueuedAt = SystemClock.uptimeMillis();
+        }
+
+        void onDequeued() {
+            long wait = SystemClock.uptimeMillis() - mQueuedAt;
+            sRunCount[mPriority].incrementAndGet();
+            sTotalWait[mPriority].addAndGet(wait);
+            long max;
+            while (wait > (max = sMaxWait[mPriority].get())
+                    && !sMaxWait[mPriority].compareAndSet(max, wait)) {
+            }
+            if (LOGV_ENABLED && wait > SLOW_WAIT_MS) {
+                Log.v(LOGTAG, "Task in lane " + mPriority + " waited " + wait
+                        + " ms, " + mPool.getQueue().size() + " still queued");
+            }
+        }
+
+        void onDone() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                get();
+            } catch (ExecutionException e) {
+                // FutureTask keeps the failure to itself, don't let it go unnoticed
+                Log.e(LOGTAG, "Background task failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                // Don't let cancelled work count towards the queue depth
+                mPool.remove(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1
+                    : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    public static Future<?> execute(Runnable runnable) {
+        return execute(runnable, PRIORITY_USER_VISIBLE);
+    }
+
+    /**
+     * Runs the runnable on a worker thread once the work queued ahead of it
+     * in the same or a higher priority lane has started. The returned
+     * future can be used to cancel it.
+     */
+    public static Future<?> execute(Runnable runnable, int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+        Task task = new Task(runnable, priority);
+        task.mPool.execute(task);
+        return task;
+    }
+
+    private static ThreadPoolExecutor getPool(int priority) {
+        return priority == PRIORITY_USER_VISIBLE ? mUserVisiblePool : mThreadPool;
     }
 
     public static Looper getLooper() {
         return sLooperThread.getLooper();
     }
 
+    /**
+     * Number of tasks waiting for a worker in the given lane.
+     */
+    public static int getQueueDepth(int priority) {
+        int depth = 0;
+        for (Object r : getPool(priority).getQueue().toArray()) {
+            if (((Task) r).mPriority == priority) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Average time tasks of the given lane waited for a worker, in ms.
+     */
+    public static long getAverageWaitTime(int priority) {
+        long count = sRunCount[priority].get();
+        return count == 0 ? 0 : sTotalWait[priority].get() / count;
+    }
+
+    /**
+     * Longest time a task of the given lane waited for a worker, in ms.
+     */
+    public static long getMaxWaitTime(int priority) {
+        return sMaxWait[priority].get();
+    }
+
     private BackgroundHandler() {}
 }
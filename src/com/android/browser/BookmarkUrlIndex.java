@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.android.browser.platformsupport.BrowserContract.Bookmarks;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory set of bookmarked URLs so bookmark status checks don't have to
+ * query the provider. The set is marked stale whenever the provider reports
+ * a bookmark change and is reloaded in one query the next time it is needed.
+ */
+class BookmarkUrlIndex {
+
+    private static final String LOGTAG = "BookmarkUrlIndex";
+
+    private static class Snapshot {
+        final int generation;
+        final HashSet<String> urls;
+        Snapshot(int g, HashSet<String> u) {
+            generation = g;
+            urls = u;
+        }
+    }
+
+    private final Context mContext;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private volatile Snapshot mSnapshot;
+
+    BookmarkUrlIndex(Context context) {
+        mContext = context;
+        context.getContentResolver().registerContentObserver(
+                Bookmarks.CONTENT_URI, true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mGeneration.incrementAndGet();
+                    }
+                });
+    }
+
+    /**
+     * Returns whether the url is bookmarked, or null if the index is stale
+     * and has to be reloaded with {@link #load(String)}.
+     */
+    Boolean contains(String url) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null || snapshot.generation != mGeneration.get()) {
+            return null;
+        }
+        return snapshot.urls.contains(url);
+    }
+
+    /**
+     * Returns whether the url is bookmarked, reloading the index first if
+     * bookmarks changed since it was last loaded. Must not be called on the
+     * UI thread.
+     */
+    boolean load(String url) {
+        int generation = mGeneration.get();
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null || snapshot.generation != generation) {
+            snapshot = loadSnapshot(generation);
+            if (snapshot == null) {
+                return false;
+            }
+            mSnapshot = snapshot;
+        }
+        return snapshot.urls.contains(url);
+    }
+
+    private Snapshot loadSnapshot(int generation) {
+        HashSet<String> urls = new HashSet<String>();
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(
+                    BookmarkUtils.getBookmarksUri(mContext),
+                    new String[] { Bookmarks.URL },
+                    Bookmarks.IS_FOLDER + " == 0", null, null);
+            while (c != null && c.moveToNext()) {
+                String url = c.getString(0);
+                if (url != null) {
+                    urls.add(url);
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error loading bookmark urls: " + e);
+            return null;
+        } finally {
+            if (c != null) c.close();
+        }
+        return new Snapshot(generation, urls);
+    }
+}
@@ -345,6 +345,12 @@ public class BrowserActivity extends Activity {
         mController.onLowMemory();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mController.onTrimMemory(level);
+    }
+
     @Override
     public void invalidateOptionsMenu() {
         super.invalidateOptionsMenu();
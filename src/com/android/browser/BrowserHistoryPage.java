@@ -40,6 +40,8 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.util.LruCache;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -49,6 +51,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewStub;
+import android.webkit.DateSorter;
 import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
@@ -66,8 +69,12 @@ import com.android.browser.R;
 import com.android.browser.platformsupport.Browser;
 import com.android.browser.platformsupport.BrowserContract;
 import com.android.browser.platformsupport.BrowserContract.Combined;
+import com.android.browser.platformsupport.BrowserContract.Images;
 import com.android.browser.reflect.ReflectHelper;
 
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+
 /**
  * Activity for displaying the browser's history, divided into
  * days of viewing.
@@ -90,6 +97,8 @@ public class BrowserHistoryPage extends Fragment
     private ExpandableListView mHistoryList;
     private static Bitmap sDefaultFavicon;
 
+    private static final int FAVICON_CACHE_BYTES = 1024 * 1024;
+
     private View mRoot;
 
     static interface HistoryQuery {
@@ -98,18 +107,86 @@ public class BrowserHistoryPage extends Fragment
                 Combined.DATE_LAST_VISITED, // 1
                 Combined.TITLE, // 2
                 Combined.URL, // 3
-                Combined.FAVICON, // 4
-                Combined.VISITS, // 5
-                Combined.IS_BOOKMARK, // 6
+                Combined.VISITS, // 4
+                Combined.IS_BOOKMARK, // 5
         };
 
         static final int INDEX_ID = 0;
         static final int INDEX_DATE_LAST_VISITED = 1;
         static final int INDEX_TITE = 2;
         static final int INDEX_URL = 3;
-        static final int INDEX_FAVICON = 4;
-        static final int INDEX_VISITS = 5;
-        static final int INDEX_IS_BOOKMARK = 6;
+        static final int INDEX_VISITS = 4;
+        static final int INDEX_IS_BOOKMARK = 5;
+    }
+
+    /**
+     * Loads the history rows along with the number of them in each date bin.
+     * The counts come from one aggregate query, so the list never walks the
+     * rows to build its groups. Favicons are left out of the rows, keeping
+     * them small enough that a cursor window holds many and only the windows
+     * scrolled to are ever filled.
+     */
+    static class HistoryLoader extends CursorLoader {
+
+        HistoryLoader(Context context, Uri uri, String selection, String sortOrder) {
+            super(context, uri, HistoryQuery.PROJECTION, selection, null, sortOrder);
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            Cursor cursor = super.loadInBackground();
+            if (cursor == null) {
+                return null;
+            }
+            DateSorter sorter = new DateSorter(getContext());
+            int[] bins = queryBins(sorter);
+            if (bins == null || sum(bins) != cursor.getCount()) {
+                // History changed in between, count the rows we have instead
+                bins = DateSortedExpandableListAdapter.countBins(cursor,
+                        HistoryQuery.INDEX_DATE_LAST_VISITED, sorter);
+            }
+            return new DateSortedExpandableListAdapter.BinnedCursor(cursor, bins);
+        }
+
+        private int[] queryBins(DateSorter sorter) {
+            // Bin i holds the items more recent than boundary i that are not
+            // in an earlier bin, the last one holds everything else
+            int last = DateSorter.DAY_COUNT - 1;
+            String[] projection = new String[DateSorter.DAY_COUNT];
+            for (int i = 0; i < last; i++) {
+                projection[i] = "SUM(" + Combined.DATE_LAST_VISITED + " > "
+                        + sorter.getBoundary(i) + ")";
+            }
+            projection[last] = "COUNT(*)";
+            Cursor c = getContext().getContentResolver().query(getUri(), projection,
+                    getSelection(), getSelectionArgs(), null);
+            if (c == null) {
+                return null;
+            }
+            try {
+                if (!c.moveToFirst()) {
+                    return null;
+                }
+                int[] bins = new int[DateSorter.DAY_COUNT];
+                int counted = 0;
+                for (int i = 0; i < DateSorter.DAY_COUNT; i++) {
+                    int newer = c.getInt(i);
+                    bins[i] = newer - counted;
+                    counted = newer;
+                }
+                return bins;
+            } finally {
+                c.close();
+            }
+        }
+
+        private static int sum(int[] bins) {
+            int sum = 0;
+            for (int count : bins) {
+                sum += count;
+            }
+            return sum;
+        }
     }
 
     private void copy(CharSequence text) {
@@ -126,9 +203,7 @@ public class BrowserHistoryPage extends Fragment
             case LOADER_HISTORY: {
                 String sort = Combined.DATE_LAST_VISITED + " DESC";
                 String where = Combined.VISITS + " > 0";
-                CursorLoader loader = new CursorLoader(getActivity(), combinedBuilder.build(),
-                        HistoryQuery.PROJECTION, where, null, sort);
-                return loader;
+                return new HistoryLoader(getActivity(), combinedBuilder.build(), where, sort);
             }
 
             case LOADER_MOST_VISITED: {
@@ -539,6 +614,17 @@ public class BrowserHistoryPage extends Fragment
 
         private Cursor mMostVisited, mHistoryCursor;
         Drawable mFaviconBackground;
+        // Favicons of the rows shown so far, by url
+        private final LruCache<String, Bitmap> mFavicons =
+                new LruCache<String, Bitmap>(FAVICON_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        private final WeakHashMap<HistoryItem, Future<?>> mFaviconLoads =
+                new WeakHashMap<HistoryItem, Future<?>>();
+        private final Handler mHandler = new Handler();
 
         HistoryAdapter(Context context) {
             super(context, HistoryQuery.INDEX_DATE_LAST_VISITED);
@@ -677,15 +763,64 @@ public class BrowserHistoryPage extends Fragment
             item.setName(cursor.getString(HistoryQuery.INDEX_TITE));
             String url = cursor.getString(HistoryQuery.INDEX_URL);
             item.setUrl(url);
-            byte[] data = cursor.getBlob(HistoryQuery.INDEX_FAVICON);
-            if (data != null) {
-                item.setFavicon(BitmapFactory.decodeByteArray(data, 0,
-                        data.length));
-            } else {
-                item.setFavicon(sDefaultFavicon);
-            }
+            bindFavicon(item, url);
             item.setIsBookmark(cursor.getInt(HistoryQuery.INDEX_IS_BOOKMARK) == 1);
             return item;
         }
+
+        /**
+         * Shows the favicon of the given url on the item, loading it in the
+         * background if it is not cached. Only rows that get bound, that is
+         * the visible ones, ever have their favicon loaded.
+         */
+        private void bindFavicon(final HistoryItem item, final String url) {
+            Future<?> pending = mFaviconLoads.remove(item);
+            if (pending != null) {
+                // The item was recycled before its favicon came in
+                pending.cancel(false);
+            }
+            Bitmap favicon = url != null ? mFavicons.get(url) : null;
+            item.setFavicon(favicon != null ? favicon : sDefaultFavicon);
+            if (favicon != null || url == null) {
+                return;
+            }
+            final ContentResolver resolver = getContext().getContentResolver();
+            mFaviconLoads.put(item, BackgroundHandler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Bitmap loaded = loadFavicon(resolver, url);
+                    final Bitmap bitmap = loaded != null ? loaded : sDefaultFavicon;
+                    mFavicons.put(url, bitmap);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (url.equals(item.getUrl())) {
+                                item.setFavicon(bitmap);
+                            }
+                        }
+                    });
+                }
+            }, BackgroundHandler.PRIORITY_USER_VISIBLE));
+        }
+    }
+
+    static Bitmap loadFavicon(ContentResolver resolver, String url) {
+        Cursor c = resolver.query(Images.CONTENT_URI, new String[] { Images.FAVICON },
+                Images.URL + " = ?", new String[] { url }, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            byte[] data = c.getBlob(0);
+            if (data == null) {
+                return null;
+            }
+            return BitmapFactory.decodeByteArray(data, 0, data.length);
+        } finally {
+            c.close();
+        }
     }
 }
@@ -24,6 +24,8 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.ListPreference;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
@@ -50,6 +52,7 @@ import com.android.browser.search.SearchEngines;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -88,8 +91,172 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     // The size of a single step in the double tap zoom range, in percent
     private static final int DOUBLE_TAP_ZOOM_STEP = 5;
 
+    // Groups of WebSettings properties, so a preference change only syncs
+    // the properties it affects
+    private static final int SYNC_GEOLOCATION = 1 << 0;
+    private static final int SYNC_JAVASCRIPT = 1 << 1;
+    private static final int SYNC_LIGHT_TOUCH = 1 << 2;
+    private static final int SYNC_NAV_DUMP = 1 << 3;
+    private static final int SYNC_TEXT_ENCODING = 1 << 4;
+    private static final int SYNC_MIN_FONT_SIZE = 1 << 5;
+    private static final int SYNC_TEXT_ZOOM = 1 << 6;
+    private static final int SYNC_LAYOUT_ALGORITHM = 1 << 7;
+    private static final int SYNC_POPUP_WINDOWS = 1 << 8;
+    private static final int SYNC_LOAD_IMAGES = 1 << 9;
+    private static final int SYNC_OVERVIEW_MODE = 1 << 10;
+    private static final int SYNC_SAVE_PASSWORD = 1 << 11;
+    private static final int SYNC_WIDE_VIEWPORT = 1 << 12;
+    private static final int SYNC_DO_NOT_TRACK = 1 << 13;
+    private static final int SYNC_NIGHT_MODE = 1 << 14;
+    private static final int SYNC_SKIA_ACCEL = 1 << 15;
+    private static final int SYNC_VISUAL_INDICATOR = 1 << 16;
+    private static final int SYNC_USER_SCALABLE = 1 << 17;
+    private static final int SYNC_DOUBLE_TAP_ZOOM = 1 << 18;
+    private static final int SYNC_AUTOFILL = 1 << 19;
+    private static final int SYNC_INVERTED = 1 << 20;
+    private static final int SYNC_CPU_UPLOAD_PATH = 1 << 21;
+    private static final int SYNC_LINK_PREFETCH = 1 << 22;
+    // Not a WebSettings property, see syncSharedSettings
+    private static final int SYNC_SHARED = 1 << 23;
+    private static final int SYNC_ALL = (1 << 24) - 1;
+
+    private static final HashMap<String, Integer> sSyncForKey = new HashMap<String, Integer>();
+
+    static {
+        sSyncForKey.put(PREF_ENABLE_GEOLOCATION, SYNC_GEOLOCATION);
+        sSyncForKey.put(PREF_ENABLE_JAVASCRIPT, SYNC_JAVASCRIPT);
+        sSyncForKey.put(PREF_ENABLE_LIGHT_TOUCH, SYNC_LIGHT_TOUCH);
+        sSyncForKey.put(PREF_ENABLE_NAV_DUMP, SYNC_NAV_DUMP);
+        sSyncForKey.put(PREF_DEFAULT_TEXT_ENCODING, SYNC_TEXT_ENCODING);
+        sSyncForKey.put(PREF_MIN_FONT_SIZE, SYNC_MIN_FONT_SIZE);
+        sSyncForKey.put(PREF_TEXT_ZOOM, SYNC_TEXT_ZOOM);
+        sSyncForKey.put(PREF_AUTOFIT_PAGES, SYNC_LAYOUT_ALGORITHM);
+        sSyncForKey.put(PREF_SMALL_SCREEN, SYNC_LAYOUT_ALGORITHM);
+        sSyncForKey.put(PREF_NORMAL_LAYOUT, SYNC_LAYOUT_ALGORITHM);
+        sSyncForKey.put(PREF_POPUP_WINDOWS, SYNC_POPUP_WINDOWS);
+        sSyncForKey.put(PREF_LOAD_IMAGES, SYNC_LOAD_IMAGES);
+        sSyncForKey.put(PREF_LOAD_PAGE, SYNC_OVERVIEW_MODE);
+        sSyncForKey.put(PREF_REMEMBER_PASSWORDS, SYNC_SAVE_PASSWORD);
+        sSyncForKey.put(PREF_WIDE_VIEWPORT, SYNC_WIDE_VIEWPORT);
+        sSyncForKey.put(PREF_DO_NOT_TRACK, SYNC_DO_NOT_TRACK);
+        sSyncForKey.put(PREF_NIGHTMODE_ENABLED, SYNC_NIGHT_MODE);
+        sSyncForKey.put(PREF_ENABLE_HARDWARE_ACCEL_SKIA, SYNC_SKIA_ACCEL);
+        sSyncForKey.put(PREF_ENABLE_VISUAL_INDICATOR, SYNC_VISUAL_INDICATOR);
+        sSyncForKey.put(PREF_FORCE_USERSCALABLE, SYNC_USER_SCALABLE);
+        sSyncForKey.put(PREF_DOUBLE_TAP_ZOOM, SYNC_DOUBLE_TAP_ZOOM);
+        sSyncForKey.put(PREF_AUTOFILL_ENABLED, SYNC_AUTOFILL);
+        sSyncForKey.put(PREF_INVERTED, SYNC_INVERTED);
+        sSyncForKey.put(PREF_INVERTED_CONTRAST, SYNC_INVERTED);
+        sSyncForKey.put(PREF_ENABLE_CPU_UPLOAD_PATH, SYNC_CPU_UPLOAD_PATH);
+        sSyncForKey.put(PREF_ACCEPT_COOKIES, SYNC_SHARED);
+        // Most debug settings only apply while the debug menu is enabled
+        sSyncForKey.put(PREF_DEBUG_MENU, SYNC_ALL);
+    }
+
     private static BrowserSettings sInstance;
 
+    /**
+     * Immutable copy of the preferences read on hot paths, so reading them
+     * is a field access rather than a SharedPreferences lookup. Replaced as
+     * a whole whenever a preference changes.
+     */
+    private static final class Values {
+        final boolean debugMenu;
+        final int minFontSize;
+        final boolean forceUserScalable;
+        final int textZoom;
+        final int doubleTapZoom;
+        final boolean allowAppTabs;
+        final boolean openInBackground;
+        final boolean enableJavascript;
+        final boolean enableMemoryMonitor;
+        final boolean loadPage;
+        final boolean autofitPages;
+        final boolean loadImages;
+        final String defaultTextEncoding;
+        final boolean autofillEnabled;
+        final boolean coloredSB;
+        final boolean lookLock;
+        final boolean powerSave;
+        final boolean nightMode;
+        final boolean hardwareAccel;
+        final boolean skiaAccel;
+        final boolean disablePerf;
+        final boolean visualIndicator;
+        final boolean cpuUploadPath;
+        final boolean smallScreen;
+        final boolean wideViewport;
+        final boolean normalLayout;
+        final boolean tracing;
+        final boolean lightTouch;
+        final boolean navDump;
+        final String jsEngineFlags;
+        final boolean fullscreen;
+        final boolean inverted;
+        final int invertedContrast;
+        final boolean doNotTrack;
+        final boolean geolocation;
+        final boolean rememberPasswords;
+        final String homePage;
+        final String edgeSwipe;
+
+        Values(SharedPreferences prefs) {
+            debugMenu = prefs.getBoolean(PREF_DEBUG_MENU, false);
+            minFontSize = prefs.getInt(PREF_MIN_FONT_SIZE, 0);
+            forceUserScalable = prefs.getBoolean(PREF_FORCE_USERSCALABLE, false);
+            textZoom = prefs.getInt(PREF_TEXT_ZOOM, 10);
+            doubleTapZoom = prefs.getInt(PREF_DOUBLE_TAP_ZOOM, 5);
+            allowAppTabs = prefs.getBoolean(PREF_ALLOW_APP_TABS, false);
+            openInBackground = prefs.getBoolean(PREF_OPEN_IN_BACKGROUND, false);
+            enableJavascript = prefs.getBoolean(PREF_ENABLE_JAVASCRIPT, true);
+            enableMemoryMonitor = prefs.getBoolean(PREF_ENABLE_MEMORY_MONITOR, true);
+            loadPage = prefs.getBoolean(PREF_LOAD_PAGE, true);
+            autofitPages = prefs.getBoolean(PREF_AUTOFIT_PAGES, true);
+            loadImages = prefs.getBoolean(PREF_LOAD_IMAGES, true);
+            defaultTextEncoding = prefs.getString(PREF_DEFAULT_TEXT_ENCODING, "auto");
+            autofillEnabled = prefs.getBoolean(PREF_AUTOFILL_ENABLED, true);
+            coloredSB = prefs.getBoolean(PREF_COLOREDSB_ENABLED, false);
+            lookLock = prefs.getBoolean(PREF_LOOKLOCK_ENABLED, false);
+            powerSave = prefs.getBoolean(PREF_POWERSAVE_ENABLED, false);
+            nightMode = prefs.getBoolean(PREF_NIGHTMODE_ENABLED, false);
+            hardwareAccel = prefs.getBoolean(PREF_ENABLE_HARDWARE_ACCEL, true);
+            skiaAccel = prefs.getBoolean(PREF_ENABLE_HARDWARE_ACCEL_SKIA, false);
+            disablePerf = prefs.getBoolean(PREF_DISABLE_PERF, true);
+            visualIndicator = prefs.getBoolean(PREF_ENABLE_VISUAL_INDICATOR, false);
+            cpuUploadPath = prefs.getBoolean(PREF_ENABLE_CPU_UPLOAD_PATH, false);
+            smallScreen = prefs.getBoolean(PREF_SMALL_SCREEN, false);
+            wideViewport = prefs.getBoolean(PREF_WIDE_VIEWPORT, true);
+            normalLayout = prefs.getBoolean(PREF_NORMAL_LAYOUT, false);
+            tracing = prefs.getBoolean(PREF_ENABLE_TRACING, false);
+            lightTouch = prefs.getBoolean(PREF_ENABLE_LIGHT_TOUCH, false);
+            navDump = prefs.getBoolean(PREF_ENABLE_NAV_DUMP, false);
+            jsEngineFlags = prefs.getString(PREF_JS_ENGINE_FLAGS, "");
+            fullscreen = prefs.getBoolean(PREF_FULLSCREEN, false);
+            inverted = prefs.getBoolean(PREF_INVERTED, false);
+            invertedContrast = prefs.getInt(PREF_INVERTED_CONTRAST, 0);
+            doNotTrack = prefs.getBoolean(PREF_DO_NOT_TRACK, true);
+            geolocation = prefs.getBoolean(PREF_ENABLE_GEOLOCATION, true);
+            rememberPasswords = prefs.getBoolean(PREF_REMEMBER_PASSWORDS, true);
+            homePage = prefs.getString(PREF_HOMEPAGE, null);
+            edgeSwipe = prefs.getString(PREF_EDGE_SWIPE, null);
+        }
+    }
+
+    private volatile Values mValues;
+
+    private Values values() {
+        Values values = mValues;
+        if (values == null) {
+            values = new Values(mPrefs);
+            mValues = values;
+        }
+        return values;
+    }
+
+    private void updateValues() {
+        mValues = new Values(mPrefs);
+    }
+
     private Context mContext;
     private SharedPreferences mPrefs;
     private LinkedList<WeakReference<WebSettings>> mManagedSettings;
@@ -113,7 +280,9 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     private static String sFactoryResetUrl;
 
     private boolean mEngineInitialized = false;
-    private boolean mSyncManagedSettings = false;
+    // SYNC_ flags waiting to be applied to the managed settings
+    private int mPendingSyncs = 0;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     public static synchronized void initialize(final Context context) {
         if (sInstance == null)
@@ -185,9 +354,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         }
 
         mAutofillHandler = new AutofillHandler(mContext);
-        if (mSyncManagedSettings) {
-            syncManagedSettings();
-        }
+        syncPendingSettings();
         if (mNeedsSharedSync) {
             syncSharedSettings();
         }
@@ -214,7 +381,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
         synchronized (mManagedSettings) {
             syncStaticSettings(settings);
-            syncSetting(settings);
+            syncSetting(settings, SYNC_ALL);
             mManagedSettings.add(new WeakReference<WebSettings>(settings));
         }
     }
@@ -297,6 +464,12 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                     BrowserProvider.getClientId(mContext.getContentResolver()));
             }
 
+            // Moves per-host colors out of the default preferences on first run
+            SiteColorStore.getInstance(mContext).load(mPrefs);
+
+            // Pick up the migrations above even if the listener missed them
+            updateValues();
+
             synchronized (BrowserSettings.class) {
                 sInitialized = true;
                 BrowserSettings.class.notifyAll();
@@ -316,48 +489,92 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     /**
-     * Syncs all the settings that have a Preference UI
+     * Syncs the settings that have a Preference UI, limited to the given
+     * SYNC_ groups
      */
-    private void syncSetting(WebSettings settings) {
-        settings.setGeolocationEnabled(enableGeolocation());
-        settings.setJavaScriptEnabled(enableJavascript());
-        settings.setLightTouchEnabled(enableLightTouch());
-        settings.setNavDump(enableNavDump());
-        settings.setDefaultTextEncodingName(getDefaultTextEncoding());
-        settings.setMinimumFontSize(getMinimumFontSize());
-        settings.setMinimumLogicalFontSize(getMinimumFontSize());
-        settings.setTextZoom(getTextZoom());
-        settings.setLayoutAlgorithm(getLayoutAlgorithm());
-        settings.setJavaScriptCanOpenWindowsAutomatically(!blockPopupWindows());
-        settings.setLoadsImagesAutomatically(loadImages());
-        settings.setLoadWithOverviewMode(loadPageInOverviewMode());
-        settings.setSavePassword(rememberPasswords());
-        settings.setUseWideViewPort(isWideViewport());
-        settings.setDoNotTrack(doNotTrack());
-        settings.setNightModeEnabled(isNightModeEnabled());
-        settings.setMediaPlaybackRequiresUserGesture(false);
+    private void syncSetting(WebSettings settings, int syncs) {
+        if ((syncs & SYNC_GEOLOCATION) != 0) {
+            settings.setGeolocationEnabled(enableGeolocation());
+        }
+        if ((syncs & SYNC_JAVASCRIPT) != 0) {
+            settings.setJavaScriptEnabled(enableJavascript());
+        }
+        if ((syncs & SYNC_LIGHT_TOUCH) != 0) {
+            settings.setLightTouchEnabled(enableLightTouch());
+        }
+        if ((syncs & SYNC_NAV_DUMP) != 0) {
+            settings.setNavDump(enableNavDump());
+        }
+        if ((syncs & SYNC_TEXT_ENCODING) != 0) {
+            settings.setDefaultTextEncodingName(getDefaultTextEncoding());
+        }
+        if ((syncs & SYNC_MIN_FONT_SIZE) != 0) {
+            settings.setMinimumFontSize(getMinimumFontSize());
+            settings.setMinimumLogicalFontSize(getMinimumFontSize());
+        }
+        if ((syncs & SYNC_TEXT_ZOOM) != 0) {
+            settings.setTextZoom(getTextZoom());
+        }
+        if ((syncs & SYNC_LAYOUT_ALGORITHM) != 0) {
+            settings.setLayoutAlgorithm(getLayoutAlgorithm());
+        }
+        if ((syncs & SYNC_POPUP_WINDOWS) != 0) {
+            settings.setJavaScriptCanOpenWindowsAutomatically(!blockPopupWindows());
+        }
+        if ((syncs & SYNC_LOAD_IMAGES) != 0) {
+            settings.setLoadsImagesAutomatically(loadImages());
+        }
+        if ((syncs & SYNC_OVERVIEW_MODE) != 0) {
+            settings.setLoadWithOverviewMode(loadPageInOverviewMode());
+        }
+        if ((syncs & SYNC_SAVE_PASSWORD) != 0) {
+            settings.setSavePassword(rememberPasswords());
+        }
+        if ((syncs & SYNC_WIDE_VIEWPORT) != 0) {
+            settings.setUseWideViewPort(isWideViewport());
+        }
+        if ((syncs & SYNC_DO_NOT_TRACK) != 0) {
+            settings.setDoNotTrack(doNotTrack());
+        }
+        if ((syncs & SYNC_NIGHT_MODE) != 0) {
+            settings.setNightModeEnabled(isNightModeEnabled());
+        }
 
         WebSettings settingsClassic = (WebSettings) settings;
-        settingsClassic.setHardwareAccelSkiaEnabled(isSkiaHardwareAccelerated());
-        settingsClassic.setShowVisualIndicator(enableVisualIndicator());
-        settingsClassic.setForceUserScalable(forceEnableUserScalable());
-        settingsClassic.setDoubleTapZoom(getDoubleTapZoom());
-        settingsClassic.setAutoFillEnabled(isAutofillEnabled());
+        if ((syncs & SYNC_SKIA_ACCEL) != 0) {
+            settingsClassic.setHardwareAccelSkiaEnabled(isSkiaHardwareAccelerated());
+        }
+        if ((syncs & SYNC_VISUAL_INDICATOR) != 0) {
+            settingsClassic.setShowVisualIndicator(enableVisualIndicator());
+        }
+        if ((syncs & SYNC_USER_SCALABLE) != 0) {
+            settingsClassic.setForceUserScalable(forceEnableUserScalable());
+        }
+        if ((syncs & SYNC_DOUBLE_TAP_ZOOM) != 0) {
+            settingsClassic.setDoubleTapZoom(getDoubleTapZoom());
+        }
+        if ((syncs & SYNC_AUTOFILL) != 0) {
+            settingsClassic.setAutoFillEnabled(isAutofillEnabled());
+        }
 
-        boolean useInverted = useInvertedRendering();
-        settingsClassic.setProperty(WebViewProperties.gfxInvertedScreen,
-                useInverted ? "true" : "false");
-        if (useInverted) {
-          settingsClassic.setProperty(WebViewProperties.gfxInvertedScreenContrast,
-                    Float.toString(getInvertedContrast()));
+        if ((syncs & SYNC_INVERTED) != 0) {
+            boolean useInverted = useInvertedRendering();
+            settingsClassic.setProperty(WebViewProperties.gfxInvertedScreen,
+                    useInverted ? "true" : "false");
+            if (useInverted) {
+              settingsClassic.setProperty(WebViewProperties.gfxInvertedScreenContrast,
+                        Float.toString(getInvertedContrast()));
+            }
         }
 
-        if (isDebugEnabled()) {
+        if ((syncs & SYNC_CPU_UPLOAD_PATH) != 0 && isDebugEnabled()) {
           settingsClassic.setProperty(WebViewProperties.gfxEnableCpuUploadPath,
                     enableCpuUploadPath() ? "true" : "false");
         }
 
-        settingsClassic.setLinkPrefetchEnabled(mLinkPrefetchAllowed);
+        if ((syncs & SYNC_LINK_PREFETCH) != 0) {
+            settingsClassic.setLinkPrefetchEnabled(mLinkPrefetchAllowed);
+        }
     }
 
 
@@ -393,6 +610,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         settings.setAllowUniversalAccessFromFileURLs(false);
         settings.setAllowFileAccessFromFileURLs(false);
         settings.setFullscreenSupported(true);
+        settings.setMediaPlaybackRequiresUserGesture(false);
 
         //if (!(settings instanceof WebSettingsClassic)) return;
         /*
@@ -416,14 +634,39 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
     }
 
-    private void syncManagedSettings() {
-        if (!mEngineInitialized) {
-            mSyncManagedSettings = true;
-            return;
+    /**
+     * Schedules the given SYNC_ groups to be applied to all managed settings.
+     * Changes made within the same main thread message, e.g. a preference
+     * screen writing several keys, are applied together in one pass.
+     */
+    private void syncManagedSettings(int syncs) {
+        synchronized (mManagedSettings) {
+            boolean scheduled = mPendingSyncs != 0;
+            mPendingSyncs |= syncs;
+            if (scheduled || !mEngineInitialized) {
+                return;
+            }
+        }
+        mHandler.post(mSyncPending);
+    }
+
+    private final Runnable mSyncPending = new Runnable() {
+        @Override
+        public void run() {
+            syncPendingSettings();
         }
-        mSyncManagedSettings = false;
-        syncSharedSettings();
+    };
+
+    private void syncPendingSettings() {
         synchronized (mManagedSettings) {
+            int syncs = mPendingSyncs;
+            mPendingSyncs = 0;
+            if ((syncs & SYNC_SHARED) != 0) {
+                syncSharedSettings();
+            }
+            if ((syncs & ~SYNC_SHARED) == 0) {
+                return;
+            }
             Iterator<WeakReference<WebSettings>> iter = mManagedSettings.iterator();
             while (iter.hasNext()) {
                 WeakReference<WebSettings> ref = iter.next();
@@ -432,7 +675,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                     iter.remove();
                     continue;
                 }
-                syncSetting(settings);
+                syncSetting(settings, syncs);
             }
         }
     }
@@ -440,7 +683,11 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     @Override
     public void onSharedPreferenceChanged(
             SharedPreferences sharedPreferences, String key) {
-        syncManagedSettings();
+        updateValues();
+        Integer syncs = key != null ? sSyncForKey.get(key) : Integer.valueOf(SYNC_ALL);
+        if (syncs != null) {
+            syncManagedSettings(syncs);
+        }
         if (PREF_SEARCH_ENGINE.equals(key)) {
             updateSearchEngine(false);
         } else if (PREF_FULLSCREEN.equals(key)) {
@@ -510,7 +757,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
     public boolean isDebugEnabled() {
         requireInitialization();
-        return mPrefs.getBoolean(PREF_DEBUG_MENU, false);
+        return values().debugMenu;
     }
 
     public void setDebugEnabled(boolean value) {
@@ -521,6 +768,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
             edit.putBoolean(PREF_ENABLE_HARDWARE_ACCEL_SKIA, false);
         }
         edit.apply();
+        updateValues();
     }
 
     public void clearCache() {
@@ -604,6 +852,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
         PermissionsServiceFactory.resetDefaultPermissions();
         mPrefs.edit().clear().apply();
+        updateValues();
 
         resetCachedValues();
 
@@ -612,7 +861,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         } else {
             mPrefs.edit().putBoolean(PREF_WEB_REFINER, false).apply();
         }
-        syncManagedSettings();
+        syncManagedSettings(SYNC_ALL);
     }
 
     private void resetCachedValues() {
@@ -743,7 +992,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         }
         if (mLinkPrefetchAllowed != linkPrefetchAllowed) {
             mLinkPrefetchAllowed = linkPrefetchAllowed;
-            syncManagedSettings();
+            syncManagedSettings(SYNC_LINK_PREFETCH);
         }
     }
 
@@ -762,32 +1011,34 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public int getMinimumFontSize() {
-        int minFont = mPrefs.getInt(PREF_MIN_FONT_SIZE, 0);
+        int minFont = values().minFontSize;
         return getAdjustedMinimumFontSize(minFont);
     }
 
     public boolean forceEnableUserScalable() {
-        return mPrefs.getBoolean(PREF_FORCE_USERSCALABLE, false);
+        return values().forceUserScalable;
     }
 
     public int getTextZoom() {
         requireInitialization();
-        int textZoom = mPrefs.getInt(PREF_TEXT_ZOOM, 10);
+        int textZoom = values().textZoom;
         return getAdjustedTextZoom(textZoom);
     }
 
     public void setTextZoom(int percent) {
         mPrefs.edit().putInt(PREF_TEXT_ZOOM, getRawTextZoom(percent)).apply();
+        updateValues();
     }
 
     public int getDoubleTapZoom() {
         requireInitialization();
-        int doubleTapZoom = mPrefs.getInt(PREF_DOUBLE_TAP_ZOOM, 5);
+        int doubleTapZoom = values().doubleTapZoom;
         return getAdjustedDoubleTapZoom(doubleTapZoom);
     }
 
     public void setDoubleTapZoom(int percent) {
         mPrefs.edit().putInt(PREF_DOUBLE_TAP_ZOOM, getRawDoubleTapZoom(percent)).apply();
+        updateValues();
     }
 
     // -----------------------------
@@ -807,28 +1058,28 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public boolean allowAppTabs() {
-        return mPrefs.getBoolean(PREF_ALLOW_APP_TABS, false);
+        return values().allowAppTabs;
     }
 
     public boolean openInBackground() {
-        return mPrefs.getBoolean(PREF_OPEN_IN_BACKGROUND, false);
+        return values().openInBackground;
     }
 
     public boolean enableJavascript() {
-        return mPrefs.getBoolean(PREF_ENABLE_JAVASCRIPT, true);
+        return values().enableJavascript;
     }
 
     public boolean enableMemoryMonitor() {
-        return mPrefs.getBoolean(PREF_ENABLE_MEMORY_MONITOR, true);
+        return values().enableMemoryMonitor;
     }
 
 
     public boolean loadPageInOverviewMode() {
-        return mPrefs.getBoolean(PREF_LOAD_PAGE, true);
+        return values().loadPage;
     }
 
     public boolean autofitPages() {
-        return mPrefs.getBoolean(PREF_AUTOFIT_PAGES, true);
+        return values().autofitPages;
     }
 
     public boolean blockPopupWindows() {
@@ -837,21 +1088,23 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public boolean loadImages() {
-        return mPrefs.getBoolean(PREF_LOAD_IMAGES, true);
+        return values().loadImages;
     }
 
     public String getDefaultTextEncoding() {
-        return mPrefs.getString(PREF_DEFAULT_TEXT_ENCODING, "auto");
+        return values().defaultTextEncoding;
     }
 
     public String getEdgeSwipeAction() {
-        return mPrefs.getString(PREF_EDGE_SWIPE,
-                mContext.getResources().getString(R.string.value_unknown_edge_swipe));
+        String action = values().edgeSwipe;
+        return action != null ? action
+                : mContext.getResources().getString(R.string.value_unknown_edge_swipe);
     }
 
     public void setEdgeSwipeTemporal() {
         mPrefs.edit().putString(PREF_EDGE_SWIPE,
                 mContext.getResources().getString(R.string.value_temporal_edge_swipe)).apply();
+        updateValues();
     }
 
     public void setUserSearchEngine(String engine) {
@@ -874,11 +1127,13 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     public void setEdgeSwipeSpatial() {
         mPrefs.edit().putString(PREF_EDGE_SWIPE,
                 mContext.getResources().getString(R.string.value_spatial_edge_swipe)).apply();
+        updateValues();
     }
 
     public void setEdgeSwipeDisabled() {
         mPrefs.edit().putString(PREF_EDGE_SWIPE,
                 mContext.getResources().getString(R.string.value_disable_edge_swipe)).apply();
+        updateValues();
     }
 
     // -----------------------------
@@ -886,51 +1141,58 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     // -----------------------------
 
     public String getHomePage() {
-        return mPrefs.getString(PREF_HOMEPAGE, getFactoryResetHomeUrl(mContext));
+        String homePage = values().homePage;
+        return homePage != null ? homePage : getFactoryResetHomeUrl(mContext);
     }
 
     public void setHomePage(String value) {
         mPrefs.edit().putString(PREF_HOMEPAGE, value).apply();
+        updateValues();
     }
 
     public boolean isAutofillEnabled() {
-        return mPrefs.getBoolean(PREF_AUTOFILL_ENABLED, true);
+        return values().autofillEnabled;
     }
 
     public void setAutofillEnabled(boolean value) {
         mPrefs.edit().putBoolean(PREF_AUTOFILL_ENABLED, value).apply();
+        updateValues();
     }
 
     public boolean isColoredSBEnabled() {
-        return mPrefs.getBoolean(PREF_COLOREDSB_ENABLED, false);
+        return values().coloredSB;
     }
 
     public void setColoredSBEnabled(boolean value) {
         mPrefs.edit().putBoolean(PREF_COLOREDSB_ENABLED, value).apply();
+        updateValues();
     }
 
     public boolean isLookLockEnabled() {
-        return mPrefs.getBoolean(PREF_LOOKLOCK_ENABLED, false);
+        return values().lookLock;
     }
 
     public void setLookLockEnabled(boolean value) {
         mPrefs.edit().putBoolean(PREF_LOOKLOCK_ENABLED, value).apply();
+        updateValues();
     }
 
     public boolean isPowerSaveModeEnabled() {
-        return mPrefs.getBoolean(PREF_POWERSAVE_ENABLED, false);
+        return values().powerSave;
     }
 
     public void setPowerSaveModeEnabled(boolean value) {
         mPrefs.edit().putBoolean(PREF_POWERSAVE_ENABLED, value).apply();
+        updateValues();
     }
 
     public boolean isNightModeEnabled() {
-        return mPrefs.getBoolean(PREF_NIGHTMODE_ENABLED, false);
+        return values().nightMode;
     }
 
     public void setNightModeEnabled(boolean value) {
         mPrefs.edit().putBoolean(PREF_NIGHTMODE_ENABLED, value).apply();
+        updateValues();
     }
 
     // -----------------------------
@@ -941,19 +1203,19 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         if (!isDebugEnabled()) {
             return true;
         }
-        return mPrefs.getBoolean(PREF_ENABLE_HARDWARE_ACCEL, true);
+        return values().hardwareAccel;
     }
 
     public boolean isSkiaHardwareAccelerated() {
         if (!isDebugEnabled()) {
             return false;
         }
-        return mPrefs.getBoolean(PREF_ENABLE_HARDWARE_ACCEL_SKIA, false);
+        return values().skiaAccel;
     }
 
     public boolean isDisablePerfFeatures() {
         // This value is flipped in the prefs.
-        return !mPrefs.getBoolean(PREF_DISABLE_PERF, true);
+        return !values().disablePerf;
     }
 
     // -----------------------------
@@ -964,63 +1226,63 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         if (!isDebugEnabled()) {
             return false;
         }
-        return mPrefs.getBoolean(PREF_ENABLE_VISUAL_INDICATOR, false);
+        return values().visualIndicator;
     }
 
     public boolean enableCpuUploadPath() {
         if (!isDebugEnabled()) {
             return false;
         }
-        return mPrefs.getBoolean(PREF_ENABLE_CPU_UPLOAD_PATH, false);
+        return values().cpuUploadPath;
     }
 
     public boolean isSmallScreen() {
         if (!isDebugEnabled()) {
             return false;
         }
-        return mPrefs.getBoolean(PREF_SMALL_SCREEN, false);
+        return values().smallScreen;
     }
 
     public boolean isWideViewport() {
         if (!isDebugEnabled()) {
             return true;
         }
-        return mPrefs.getBoolean(PREF_WIDE_VIEWPORT, true);
+        return values().wideViewport;
     }
 
     public boolean isNormalLayout() {
         if (!isDebugEnabled()) {
             return false;
         }
-        return mPrefs.getBoolean(PREF_NORMAL_LAYOUT, false);
+        return values().normalLayout;
     }
 
     public boolean isTracing() {
         if (!isDebugEnabled()) {
             return false;
         }
-        return mPrefs.getBoolean(PREF_ENABLE_TRACING, false);
+        return values().tracing;
     }
 
     public boolean enableLightTouch() {
         if (!isDebugEnabled()) {
             return false;
         }
-        return mPrefs.getBoolean(PREF_ENABLE_LIGHT_TOUCH, false);
+        return values().lightTouch;
     }
 
     public boolean enableNavDump() {
         if (!isDebugEnabled()) {
             return false;
         }
-        return mPrefs.getBoolean(PREF_ENABLE_NAV_DUMP, false);
+        return values().navDump;
     }
 
     public String getJsEngineFlags() {
         if (!isDebugEnabled()) {
             return "";
         }
-        return mPrefs.getString(PREF_JS_ENGINE_FLAGS, "");
+        return values().jsEngineFlags;
     }
 
     // -----------------------------
@@ -1032,15 +1294,15 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public boolean useFullscreen() {
-        return mPrefs.getBoolean(PREF_FULLSCREEN, false);
+        return values().fullscreen;
     }
 
     public boolean useInvertedRendering() {
-        return mPrefs.getBoolean(PREF_INVERTED, false);
+        return values().inverted;
     }
 
     public float getInvertedContrast() {
-        return 1 + (mPrefs.getInt(PREF_INVERTED_CONTRAST, 0) / 10f);
+        return 1 + (values().invertedContrast / 10f);
     }
 
     // -----------------------------
@@ -1053,7 +1315,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
             dntVal = DoNotTrackRestriction.getInstance().getValue();
         }
         else {
-            dntVal = mPrefs.getBoolean(PREF_DO_NOT_TRACK, true);
+            dntVal = values().doNotTrack;
         }
         return dntVal;
     }
@@ -1064,11 +1326,11 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public boolean enableGeolocation() {
-        return mPrefs.getBoolean(PREF_ENABLE_GEOLOCATION, true);
+        return values().geolocation;
     }
 
     public boolean rememberPasswords() {
-        return mPrefs.getBoolean(PREF_REMEMBER_PASSWORDS, true);
+        return values().rememberPasswords;
     }
 
     // -----------------------------
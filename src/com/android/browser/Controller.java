@@ -319,7 +319,8 @@ public class Controller
             // must do this before trying to login the user as we don't want to
             // clear any session cookies set during login.
             CookieManager.getInstance().removeSessionCookie();
-            BackgroundHandler.execute(new PruneThumbnails(mActivity, null));
+            BackgroundHandler.execute(new PruneThumbnails(mActivity, null),
+                    BackgroundHandler.PRIORITY_MAINTENANCE);
             if (intent == null) {
                 // This won't happen under common scenarios. The icicle is
                 // not null, but there aren't any tabs to restore.
@@ -385,7 +386,8 @@ public class Controller
                     t.pause();
                 }
             }
-            BackgroundHandler.execute(new PruneThumbnails(mActivity, restoredTabs));
+            BackgroundHandler.execute(new PruneThumbnails(mActivity, restoredTabs),
+                    BackgroundHandler.PRIORITY_MAINTENANCE);
             if (tabs.size() == 0) {
                 openTabToHomePage();
             }
@@ -897,6 +899,11 @@ public class Controller
         mTabControl.freeMemory();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        mTabControl.freeMemory(level);
+    }
+
     @Override
     public void stopLoading() {
         mLoadStopped = true;
@@ -993,10 +1000,7 @@ public class Controller
 
         Performance.tracePageStart(url);
 
-        // Performance probe
-        if (false) {
-            Performance.onPageStarted();
-        }
+        Performance.onPageStarted(tab);
 
     }
 
@@ -1005,10 +1009,7 @@ public class Controller
         mCrashRecoveryHandler.backupState();
         mUi.onTabDataChanged(tab);
 
-        // Performance probe
-        if (false) {
-            Performance.onPageFinished(tab.getUrl());
-         }
+        Performance.onPageFinished(tab);
 
         tab.onPageFinished();
         syncBookmarkFavicon(tab, tab.getOriginalUrl(), tab.getUrl(), tab.getFavicon());
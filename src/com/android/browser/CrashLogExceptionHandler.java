@@ -34,24 +34,22 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.os.Build;
 import android.os.Build.VERSION;
-import android.os.SystemClock;
-import android.net.http.AndroidHttpClient;
 import android.util.Log;
 import android.os.FileObserver;
 import android.os.Handler;
 
 import org.codeaurora.swe.BrowserCommandLine;
 
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
 
 import org.json.JSONArray;
@@ -59,20 +57,16 @@ import org.json.JSONObject;
 import org.json.JSONException;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.Integer;
-import java.lang.StringBuilder;
 import java.lang.System;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPOutputStream;
 
 public class CrashLogExceptionHandler implements Thread.UncaughtExceptionHandler {
@@ -92,24 +86,22 @@ public class CrashLogExceptionHandler implements Thread.UncaughtExceptionHandler
     private boolean mOverrideHandler = false;
 
     private int mMaxLogFileSize = 1024 * 1024;
+
+    private final CrashLogStore mCrashLogStore;
+
+    private CrashLogUploader mUploader;
     // To avoid increasing startup time an upload delay is used
     private static final int UPLOAD_DELAY = 3000;
 
     private static FileObserver crashObserver;
 
     private final Handler mCrashReportHandler = new Handler();
+    // Native reports are uploaded on the crash upload thread, one scan at a time
+    private Handler mNativeUploadHandler;
+    private final AtomicBoolean mNativeScanPending = new AtomicBoolean();
 
     public CrashLogExceptionHandler(Context ctx) {
         mAppContext = ctx;
-        if (BrowserCommandLine.hasSwitch(BrowserSwitches.CRASH_LOG_SERVER_CMD)) {
-            initNativeReporter(ctx);
-            mLogServer = BrowserCommandLine.getSwitchValue(BrowserSwitches.CRASH_LOG_SERVER_CMD);
-            if (mLogServer != null) {
-                uploadPastCrashLog();
-                mOverrideHandler = true;
-            }
-        }
-
         try {
             int size = Integer.parseInt(
                                 BrowserCommandLine.getSwitchValue(CRASH_LOG_MAX_FILE_SIZE_CMD,
@@ -119,11 +111,23 @@ public class CrashLogExceptionHandler implements Thread.UncaughtExceptionHandler
             Log.e(LOGTAG,"Max log file size is not configured properly. Using default: "
                   + mMaxLogFileSize);
         }
+        mCrashLogStore = new CrashLogStore(new File(ctx.getFilesDir(), CrashLogStore.DIR),
+                mMaxLogFileSize);
 
+        if (BrowserCommandLine.hasSwitch(BrowserSwitches.CRASH_LOG_SERVER_CMD)) {
+            initNativeReporter(ctx);
+            mLogServer = BrowserCommandLine.getSwitchValue(BrowserSwitches.CRASH_LOG_SERVER_CMD);
+            if (mLogServer != null) {
+                mUploader = new CrashLogUploader(mCrashLogStore, mLogServer);
+                uploadPastCrashLog();
+                mOverrideHandler = true;
+            }
+        }
     }
 
     private void initNativeReporter(Context ctx){
         final File crashReports = new File(ctx.getCacheDir(),CRASH_REPORT_DIR);
+        mNativeUploadHandler = new Handler(CrashLogUploader.getUploadLooper());
         // On fresh installs, make the directory before registering an observer
         if (!crashReports.isDirectory()) {
             crashReports.mkdir();
@@ -149,105 +153,16 @@ public class CrashLogExceptionHandler implements Thread.UncaughtExceptionHandler
         crashObserver.startWatching();
     }
 
-    private void saveCrashLog(String crashLog) {
-        // Check if log file exists and it's current size
-        try {
-            File file = new File(mAppContext.getFilesDir(), CRASH_LOG_FILE);
-            if (file.exists()) {
-                if (file.length() > mMaxLogFileSize) {
-                    Log.e(LOGTAG,"CRASH Log file size(" + file.length()
-                          + ") exceeded max log file size("
-                          + mMaxLogFileSize + ")");
-                    return;
-                }
-            }
-        } catch (NullPointerException npe) {
-            Log.e(LOGTAG,"Exception while checking file size: " + npe);
-        }
-
-        FileOutputStream crashLogFile = null;
-        try {
-            crashLogFile = mAppContext.openFileOutput(CRASH_LOG_FILE, Context.MODE_APPEND);
-            crashLogFile.write(crashLog.getBytes());
-        } catch(IOException ioe) {
-            Log.e(LOGTAG,"Exception while writing file: " + ioe);
-        } finally {
-            if (crashLogFile != null) {
-                try {
-                    crashLogFile.close();
-                } catch (IOException ignore) {
-                }
-            }
-        }
-    }
-
     private void uploadPastCrashLog() {
-        FileInputStream crashLogFile = null;
-        BufferedReader reader = null;
-        try {
-            crashLogFile = mAppContext.openFileInput(CRASH_LOG_FILE);
-
-            reader = new BufferedReader(new InputStreamReader(crashLogFile));
-            StringBuilder crashLog = new StringBuilder();
-            String line = reader.readLine();
-            if (line != null) {
-                crashLog.append(line);
-            }
-
-            // Typically there's only one line (JSON string) in the crash
-            // log file. This loop would not be executed.
-            while ((line = reader.readLine()) != null) {
-                crashLog.append("\n").append(line);
-            }
-
-            uploadCrashLog(crashLog.toString(), UPLOAD_DELAY);
-        } catch(FileNotFoundException fnfe) {
-            Log.v(LOGTAG,"No previous crash found");
-        } catch(IOException ioe) {
-            Log.e(LOGTAG,"Exception while reading crash file: " + ioe);
-        } finally {
-            if (crashLogFile != null) {
-                try {
-                    crashLogFile.close();
-                } catch (IOException ignore) {
-                }
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException ignore) {
-                }
+        final File legacyLog = new File(mAppContext.getFilesDir(), CRASH_LOG_FILE);
+        // Nothing is read into memory, segments are streamed to the server
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCrashLogStore.importLegacy(legacyLog);
+                mUploader.schedule(UPLOAD_DELAY);
             }
-        }
-    }
-
-    private void uploadCrashLog(String data, int after) {
-        final String crashLog = data;
-        final int waitFor = after;
-        new Thread(new Runnable() {
-                public void run(){
-                    try {
-                        SystemClock.sleep(waitFor);
-                        AndroidHttpClient httpClient = AndroidHttpClient.newInstance("Android");;
-                        HttpPost httpPost = new HttpPost(mLogServer);
-                        HttpEntity se = new StringEntity(crashLog);
-                        httpPost.setEntity(se);
-                        HttpResponse response = httpClient.execute(httpPost);
-
-                        File crashLogFile = new File(mAppContext.getFilesDir(),
-                                                     CRASH_LOG_FILE);
-                        if (crashLogFile != null) {
-                            crashLogFile.delete();
-                        } else {
-                            Log.e(LOGTAG,"crash log file could not be opened for deletion");
-                        }
-                    } catch (ClientProtocolException pe) {
-                        Log.e(LOGTAG,"Exception while sending http post: " + pe);
-                    } catch (IOException ioe1) {
-                        Log.e(LOGTAG,"Exception while sending http post: " + ioe1);
-                    }
-                }
-            }).start();
+        }, BackgroundHandler.PRIORITY_MAINTENANCE);
     }
 
     public void uncaughtException(Thread t, Throwable e) {
@@ -308,9 +223,10 @@ public class CrashLogExceptionHandler implements Thread.UncaughtExceptionHandler
             Log.e(LOGTAG, "Failed in JSON encoding: " + je);
         }
 
-        saveCrashLog(crashLog);
-
-        uploadCrashLog(crashLog, 0);
+        // Uploaded on the next start, the process is going away
+        if (!crashLog.isEmpty()) {
+            mCrashLogStore.append(crashLog);
+        }
 
         mDefaultHandler.uncaughtException(t, e);
     }
@@ -328,17 +244,27 @@ public class CrashLogExceptionHandler implements Thread.UncaughtExceptionHandler
     }
 
     private void checkNativeCrash(final File crashReportsDir) {
-        // Search cache/Crash Reports/ for any crashes
-        if (crashReportsDir.exists()) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    for (File f : crashReportsDir.listFiles()) {
+        // Search cache/Crash Reports/ for any crashes. Every new file sends
+        // an event, so scans are coalesced while one is waiting to run.
+        if (!crashReportsDir.exists() || !mNativeScanPending.compareAndSet(false, true)) {
+            return;
+        }
+        mNativeUploadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Cleared first, a report written during the scan gets another one
+                mNativeScanPending.set(false);
+                File[] reports = crashReportsDir.listFiles();
+                if (reports == null) {
+                    return;
+                }
+                for (File f : reports) {
+                    if (f.exists()) {
                         uploadNativeCrashReport(f);
                     }
                 }
-            }).start();
-        }
+            }
+        });
     }
 
     private void uploadNativeCrashReport(final File report) {
@@ -346,7 +272,10 @@ public class CrashLogExceptionHandler implements Thread.UncaughtExceptionHandler
         // get server url from commandline
         String server = BrowserCommandLine.getSwitchValue(BrowserSwitches.CRASH_LOG_SERVER_CMD);
         try {
-            HttpClient httpClient = new DefaultHttpClient();
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(params, CrashLogUploader.TIMEOUT_MS);
+            HttpConnectionParams.setSoTimeout(params, CrashLogUploader.TIMEOUT_MS);
+            HttpClient httpClient = new DefaultHttpClient(params);
             HttpPost httpPost = new HttpPost(server);
 
             // Compress the data
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Crash logs waiting for upload, kept as a series of segment files of
+ * bounded size.
+ *
+ * Each crash is appended to the newest segment as one JSON record and a
+ * newline, plain text so the crashing thread does no compression. Once a
+ * segment is full a new one is started, and the oldest segments are
+ * dropped whenever the store grows past its size limit. Sealing a segment
+ * for upload compresses it into a single gzip stream, which is what
+ * {@link CrashLogUploader} sends. Nothing here reads a log into memory.
+ */
+public class CrashLogStore {
+
+    private static final String LOGTAG = "CrashLogStore";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    static final String DIR = "crash_logs";
+    private static final String SEGMENT_PREFIX = "segment-";
+    // Segments still written to, and segments sealed for upload
+    private static final String OPEN_SUFFIX = ".json";
+    private static final String SEALED_SUFFIX = ".gz";
+    private static final String TMP_SUFFIX = ".tmp";
+    // Segments per store, so rotation drops a fraction of the logs at a time
+    static final int SEGMENT_COUNT = 4;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final File mDir;
+    private final long mMaxBytes;
+    private final long mSegmentBytes;
+    // Segments below this have been handed out for upload and are not
+    // written to anymore
+    private long mWritableFrom;
+
+    public CrashLogStore(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mSegmentBytes = Math.max(maxBytes / SEGMENT_COUNT, 1);
+    }
+
+    /**
+     * Appends a crash record. Runs on the crashing thread, so it writes
+     * straight to disk and syncs before returning.
+     */
+    public synchronized void append(String record) {
+        try {
+            write((record + "\n").getBytes("UTF-8"));
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Failed to save crash log", e);
+        }
+        trim();
+    }
+
+    /**
+     * Moves the contents of a crash log file written by an older version
+     * into the store, a buffer at a time, and deletes it.
+     */
+    public synchronized void importLegacy(File legacy) {
+        if (!legacy.exists()) {
+            return;
+        }
+        try {
+            FileInputStream in = new FileInputStream(legacy);
+            try {
+                FileOutputStream out = new FileOutputStream(openSegment(), true);
+                try {
+                    copy(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Failed to import " + legacy, e);
+        }
+        legacy.delete();
+        trim();
+    }
+
+    /**
+     * Compresses the open segments and returns all segments to upload,
+     * oldest first, each a single gzip stream. Later appends go to a new
+     * segment, so the ones returned do not change while being sent.
+     */
+    public synchronized List<File> seal() {
+        List<File> segments = listSegments();
+        if (segments.isEmpty()) {
+            return segments;
+        }
+        mWritableFrom = getSequence(segments.get(segments.size() - 1)) + 1;
+        List<File> sealed = new ArrayList<File>(segments.size());
+        for (File segment : segments) {
+            if (segment.getName().endsWith(SEALED_SUFFIX)) {
+                sealed.add(segment);
+                continue;
+            }
+            try {
+                sealed.add(compress(segment));
+            } catch (IOException e) {
+                // Left open, sealed again on the next upload
+                Log.e(LOGTAG, "Failed to seal " + segment.getName(), e);
+            }
+        }
+        return sealed;
+    }
+
+    /**
+     * Deletes an uploaded or rejected segment.
+     */
+    public synchronized void remove(File segment) {
+        if (!segment.delete() && segment.exists()) {
+            Log.w(LOGTAG, "Failed to delete " + segment.getName());
+        }
+    }
+
+    public synchronized long getSize() {
+        long size = 0;
+        for (File segment : listSegments()) {
+            size += segment.length();
+        }
+        return size;
+    }
+
+    private void write(byte[] data) throws IOException {
+        File segment = openSegment();
+        FileOutputStream file = new FileOutputStream(segment, true);
+        try {
+            file.write(data);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Replaces an open segment with its gzip compressed copy. Written to a
+     * temporary file first, so a sealed segment is always complete.
+     */
+    private File compress(File segment) throws IOException {
+        String name = segment.getName();
+        String sealedName = name.substring(0, name.length() - OPEN_SUFFIX.length())
+                + SEALED_SUFFIX;
+        File tmp = new File(mDir, sealedName + TMP_SUFFIX);
+        File sealed = new File(mDir, sealedName);
+        FileInputStream in = new FileInputStream(segment);
+        try {
+            FileOutputStream file = new FileOutputStream(tmp);
+            try {
+                GZIPOutputStream out = new GZIPOutputStream(file, BUFFER_SIZE);
+                copy(in, out);
+                out.finish();
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!tmp.renameTo(sealed)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp.getName());
+        }
+        segment.delete();
+        return sealed;
+    }
+
+    /**
+     * Returns the open segment to append to, starting a new one if the
+     * newest is full or already sealed.
+     */
+    private File openSegment() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create " + mDir);
+        }
+        List<File> segments = listSegments();
+        long sequence = mWritableFrom;
+        if (!segments.isEmpty()) {
+            File newest = segments.get(segments.size() - 1);
+            long newestSequence = getSequence(newest);
+            if (newestSequence >= mWritableFrom && newest.getName().endsWith(OPEN_SUFFIX)
+                    && newest.length() < mSegmentBytes) {
+                return newest;
+            }
+            sequence = Math.max(sequence, newestSequence + 1);
+        }
+        return new File(mDir, String.format("%s%016d%s", SEGMENT_PREFIX, sequence,
+                OPEN_SUFFIX));
+    }
+
+    /**
+     * Drops the oldest segments until the store fits its size limit.
+     */
+    private void trim() {
+        List<File> segments = listSegments();
+        long size = 0;
+        for (File segment : segments) {
+            size += segment.length();
+        }
+        for (int i = 0; i < segments.size() && size > mMaxBytes; i++) {
+            File segment = segments.get(i);
+            long length = segment.length();
+            if (segment.delete()) {
+                size -= length;
+                Log.w(LOGTAG, "Crash logs exceeded " + mMaxBytes
+                        + " bytes, dropped " + segment.getName());
+            }
+        }
+        if (LOGV_ENABLED) {
+            Log.v(LOGTAG, "Crash logs take " + size + " bytes");
+        }
+    }
+
+    private List<File> listSegments() {
+        String[] names = mDir.list();
+        List<File> segments = new ArrayList<File>();
+        if (names == null) {
+            return segments;
+        }
+        // Sequence numbers are zero padded, so names sort in order
+        Arrays.sort(names);
+        String previous = null;
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX)) {
+                continue;
+            }
+            if (name.endsWith(TMP_SUFFIX)) {
+                // Left by a seal that did not finish, the open segment is still there
+                new File(mDir, name).delete();
+            } else if (name.endsWith(OPEN_SUFFIX) || name.endsWith(SEALED_SUFFIX)) {
+                // ".gz" sorts first, so an open segment left behind by a
+                // finished seal comes right after its sealed copy
+                if (previous != null && sameSequence(previous, name)) {
+                    new File(mDir, name).delete();
+                    continue;
+                }
+                segments.add(new File(mDir, name));
+                previous = name;
+            }
+        }
+        return segments;
+    }
+
+    private static long getSequence(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.lastIndexOf('.')));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean sameSequence(String a, String b) {
+        int end = a.lastIndexOf('.');
+        return end == b.lastIndexOf('.') && a.regionMatches(0, b, 0, end);
+    }
+
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Uploads the segments of a {@link CrashLogStore} to the crash log server.
+ *
+ * All pending segments go out in one batch, one POST each over a kept alive
+ * connection, streamed from disk with their gzip encoding intact. Each body
+ * is a single gzip stream of newline separated JSON records, sent as
+ * "Content-Encoding: gzip" and "Content-Type: application/x-ndjson". This
+ * replaces the one uncompressed JSON text per POST of older versions, so
+ * the crash log server has to accept it before this ships. Uploads
+ * run on a thread of their own, so blocking network calls never hold up
+ * the {@link BackgroundHandler} workers. A segment is deleted
+ * once the server accepts it or rejects it outright. Network errors and
+ * server errors leave it in place and retry the batch with exponential
+ * backoff, up to a limited number of attempts per run.
+ */
+public class CrashLogUploader {
+
+    private static final String LOGTAG = "CrashLogUploader";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    static final int MAX_ATTEMPTS = 5;
+    static final long INITIAL_BACKOFF_MS = 30 * 1000;
+    static final int TIMEOUT_MS = 30 * 1000;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // One JSON record per line
+    static final String CONTENT_TYPE = "application/x-ndjson";
+
+    private final CrashLogStore mStore;
+    private final String mServer;
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMs;
+    private static HandlerThread sUploadThread;
+
+    private final Handler mHandler = new Handler(getUploadLooper());
+    // Guarded by this
+    private boolean mScheduled;
+    private int mAttempt;
+
+    public CrashLogUploader(CrashLogStore store, String server) {
+        this(store, server, MAX_ATTEMPTS, INITIAL_BACKOFF_MS);
+    }
+
+    public CrashLogUploader(CrashLogStore store, String server, int maxAttempts,
+            long initialBackoffMs) {
+        mStore = store;
+        mServer = server;
+        mMaxAttempts = maxAttempts;
+        mInitialBackoffMs = initialBackoffMs;
+    }
+
+    /**
+     * Returns the looper of the thread all crash uploads run on, one at a
+     * time.
+     */
+    static synchronized Looper getUploadLooper() {
+        if (sUploadThread == null) {
+            sUploadThread = new HandlerThread("CrashLogUpload",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            sUploadThread.start();
+        }
+        return sUploadThread.getLooper();
+    }
+
+    /**
+     * Uploads the pending segments after the given delay, unless an upload
+     * is already scheduled.
+     */
+    public void schedule(long delayMs) {
+        synchronized (this) {
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mHandler.postDelayed(mUpload, delayMs);
+    }
+
+    private final Runnable mUpload = new Runnable() {
+        @Override
+        public void run() {
+            boolean done = uploadPending();
+            long backoff;
+            synchronized (CrashLogUploader.this) {
+                // Cleared only now so that batches never overlap
+                mScheduled = false;
+                if (done || ++mAttempt >= mMaxAttempts) {
+                    if (!done) {
+                        Log.w(LOGTAG, "Giving up on crash log upload after "
+                                + mAttempt + " attempts");
+                    }
+                    mAttempt = 0;
+                    return;
+                }
+                backoff = mInitialBackoffMs << (mAttempt - 1);
+            }
+            schedule(backoff);
+        }
+    };
+
+    /**
+     * Sends all pending segments, oldest first, on the calling thread.
+     * Returns false if it stopped on an error worth retrying.
+     */
+    public boolean uploadPending() {
+        List<File> segments = mStore.seal();
+        for (File segment : segments) {
+            int status;
+            try {
+                status = post(segment);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Failed to upload crash log: " + e);
+                return false;
+            }
+            if (status >= 200 && status < 300) {
+                mStore.remove(segment);
+            } else if (status >= 500 || status == 408 || status == 429) {
+                Log.w(LOGTAG, "Crash log server busy (" + status + "), will retry");
+                return false;
+            } else {
+                // Sending it again will not help
+                Log.w(LOGTAG, "Crash log server rejected " + segment.getName()
+                        + " (" + status + ")");
+                mStore.remove(segment);
+            }
+        }
+        return true;
+    }
+
+    private int post(File segment) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mServer).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setFixedLengthStreamingMode((int) segment.length());
+            InputStream in = new FileInputStream(segment);
+            try {
+                OutputStream out = connection.getOutputStream();
+                CrashLogStore.copy(in, out);
+                out.close();
+            } finally {
+                in.close();
+            }
+            int status = connection.getResponseCode();
+            // Drain the response so the connection can be reused
+            InputStream response = status < 400
+                    ? connection.getInputStream() : connection.getErrorStream();
+            if (response != null) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (response.read(buffer) >= 0) {
+                }
+                response.close();
+            }
+            if (LOGV_ENABLED) {
+                Log.v(LOGTAG, "Uploaded " + segment.getName() + " ("
+                        + segment.length() + " bytes): " + status);
+            }
+            return status;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+}
@@ -25,18 +25,35 @@ import android.os.Message;
 import android.os.Parcel;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.CRC32;
 
 public class CrashRecoveryHandler {
 
     private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
     private static final String LOGTAG = "BrowserCrashRecovery";
     private static final String STATE_FILE = "browser_state.parcel";
+    // Tab states that changed since the last full checkpoint of STATE_FILE
+    // are appended here, so a backup only writes the tabs that changed.
+    private static final String DELTA_FILE = STATE_FILE + ".delta";
+    // Compact the deltas into a new checkpoint once they grow past this size
+    private static final long MAX_DELTA_SIZE = 512 * 1024;
+    // Ties a delta file to the checkpoint it applies to
+    private static final String KEY_GENERATION = "crash_recovery_generation";
+    // Ids of the tabs present when a delta was written
+    private static final String KEY_TAB_KEYS = "crash_recovery_tabs";
     private static final int BUFFER_SIZE = 4096;
     private static final long BACKUP_DELAY = 500; // 500ms between writes
     /* This is the duration for which we will prompt to restore
@@ -59,6 +76,9 @@ public class CrashRecoveryHandler {
     private boolean mIsPreloading = false;
     private boolean mDidPreload = false;
     private Bundle mRecoveryState = null;
+    // CRCs of the marshalled tab states in the checkpoint and deltas on disk
+    private HashMap<String, Long> mWrittenTabs = new HashMap<String, Long>();
+    private long mGeneration = -1;
 
     public static CrashRecoveryHandler initialize(Controller controller) {
         if (sInstance == null) {
@@ -90,10 +110,7 @@ public class CrashRecoveryHandler {
                     if (LOGV_ENABLED) {
                         Log.v(LOGTAG, "Clearing crash recovery state");
                     }
-                    File state = new File(mContext.getCacheDir(), STATE_FILE);
-                    if (state.exists()) {
-                        state.delete();
-                    }
+                    deleteStateFiles();
                     break;
                 case MSG_PRELOAD_STATE:
                     mRecoveryState = loadCrashState();
@@ -148,10 +165,7 @@ public class CrashRecoveryHandler {
     void clearState(boolean block) {
         if (block) {
             if (mContext != null) {
-                File state = new File(mContext.getCacheDir(), STATE_FILE);
-                if (state.exists()) {
-                    state.delete();
-                }
+                deleteStateFiles();
             }
         } else {
             mBackgroundHandler.sendEmptyMessage(MSG_CLEAR_STATE);
@@ -194,6 +208,10 @@ public class CrashRecoveryHandler {
             parcel.unmarshall(data, 0, data.length);
             parcel.setDataPosition(0);
             state = parcel.readBundle();
+            if (state != null) {
+                applyDeltas(state);
+                state.remove(KEY_GENERATION);
+            }
             if (state != null && !state.isEmpty()) {
                 return state;
             }
@@ -239,8 +257,106 @@ public class CrashRecoveryHandler {
         mBackgroundHandler.sendEmptyMessage(MSG_PRELOAD_STATE);
     }
 
+    /**
+     * Applies the deltas written after the checkpoint in state. A delta that
+     * was only partly written when the browser died fails its CRC check and
+     * ends the replay, leaving the state as of the last complete backup.
+     */
+    private void applyDeltas(Bundle state) {
+        File deltaFile = new File(mContext.getCacheDir(), DELTA_FILE);
+        DataInputStream in = null;
+        Parcel parcel = Parcel.obtain();
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(deltaFile), BUFFER_SIZE));
+            if (in.readLong() != state.getLong(KEY_GENERATION, -1)) {
+                // Left over from before the checkpoint was compacted
+                return;
+            }
+            while (true) {
+                int length = in.readInt();
+                long crc = in.readLong();
+                if (length <= 0 || length > deltaFile.length()) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                if (crc(data) != crc) {
+                    break;
+                }
+                parcel.setDataSize(0);
+                parcel.unmarshall(data, 0, length);
+                parcel.setDataPosition(0);
+                Bundle delta = parcel.readBundle();
+                if (delta == null) {
+                    break;
+                }
+                String[] tabs = delta.getStringArray(KEY_TAB_KEYS);
+                delta.remove(KEY_TAB_KEYS);
+                state.putAll(delta);
+                if (tabs != null) {
+                    // Drop the tabs that were closed since the checkpoint
+                    HashSet<String> open = new HashSet<String>();
+                    for (String tab : tabs) {
+                        open.add(tab);
+                    }
+                    for (String key : new ArrayList<String>(state.keySet())) {
+                        if (state.get(key) instanceof Bundle && !open.contains(key)) {
+                            state.remove(key);
+                        }
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No deltas since the checkpoint
+        } catch (EOFException e) {
+            // End of the deltas, or a partly written one
+        } catch (Throwable e) {
+            Log.w(LOGTAG, "Failed to apply state deltas", e);
+        } finally {
+            parcel.recycle();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    synchronized private void deleteStateFiles() {
+        File state = new File(mContext.getCacheDir(), STATE_FILE);
+        if (state.exists()) {
+            state.delete();
+        }
+        File delta = new File(mContext.getCacheDir(), DELTA_FILE);
+        if (delta.exists()) {
+            delta.delete();
+        }
+        mWrittenTabs.clear();
+        mGeneration = -1;
+    }
+
+    private static byte[] marshall(Bundle bundle) {
+        Parcel p = Parcel.obtain();
+        try {
+            bundle.writeToParcel(p, 0);
+            return p.marshall();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
     /**
      * Writes the crash recovery state to a file synchronously.
+     * Only the tabs whose state changed since the last write are appended
+     * to the delta file; a full checkpoint is written the first time and
+     * whenever the deltas grow past MAX_DELTA_SIZE.
      * Errors are swallowed, but logged.
      * @param state The state to write out
      */
@@ -248,26 +364,74 @@ public class CrashRecoveryHandler {
         if (LOGV_ENABLED) {
             Log.v(LOGTAG, "Saving crash recovery state");
         }
-        Parcel p = Parcel.obtain();
         try {
-            state.writeToParcel(p, 0);
-            File stateJournal = new File(mContext.getCacheDir(),
-                    STATE_FILE + ".journal");
-            FileOutputStream fout = new FileOutputStream(stateJournal);
-            fout.write(p.marshall());
-            fout.close();
-            File stateFile = new File(mContext.getCacheDir(),
-                    STATE_FILE);
-            if (!stateJournal.renameTo(stateFile)) {
-                // Failed to rename, try deleting the existing
-                // file and try again
-                stateFile.delete();
-                stateJournal.renameTo(stateFile);
+            HashMap<String, Long> written = new HashMap<String, Long>();
+            Bundle delta = new Bundle(state);
+            for (String key : state.keySet()) {
+                Object value = state.get(key);
+                if (!(value instanceof Bundle)) {
+                    continue;
+                }
+                long crc = crc(marshall((Bundle) value));
+                written.put(key, crc);
+                Long previous = mWrittenTabs.get(key);
+                if (previous != null && previous == crc) {
+                    delta.remove(key);
+                }
+            }
+            File deltaFile = new File(mContext.getCacheDir(), DELTA_FILE);
+            if (mGeneration < 0 || deltaFile.length() > MAX_DELTA_SIZE) {
+                writeCheckpoint(state);
+            } else {
+                delta.putStringArray(KEY_TAB_KEYS,
+                        written.keySet().toArray(new String[written.size()]));
+                appendDelta(deltaFile, marshall(delta));
             }
+            mWrittenTabs = written;
         } catch (Throwable e) {
             Log.i(LOGTAG, "Failed to save persistent state", e);
+            // Start over from a full checkpoint next time
+            mGeneration = -1;
+        }
+    }
+
+    private void appendDelta(File deltaFile, byte[] data) throws IOException {
+        boolean isNew = !deltaFile.exists();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(deltaFile, true));
+        try {
+            if (isNew) {
+                out.writeLong(mGeneration);
+            }
+            out.writeInt(data.length);
+            out.writeLong(crc(data));
+            out.write(data);
         } finally {
-            p.recycle();
+            out.close();
+        }
+    }
+
+    private void writeCheckpoint(Bundle state) throws IOException {
+        long generation = System.currentTimeMillis();
+        Bundle checkpoint = new Bundle(state);
+        checkpoint.putLong(KEY_GENERATION, generation);
+        File stateJournal = new File(mContext.getCacheDir(),
+                STATE_FILE + ".journal");
+        FileOutputStream fout = new FileOutputStream(stateJournal);
+        try {
+            fout.write(marshall(checkpoint));
+        } finally {
+            fout.close();
+        }
+        File stateFile = new File(mContext.getCacheDir(),
+                STATE_FILE);
+        if (!stateJournal.renameTo(stateFile)) {
+            // Failed to rename, try deleting the existing
+            // file and try again
+            stateFile.delete();
+            stateJournal.renameTo(stateFile);
         }
+        // Deltas of the previous generation are ignored from now on
+        new File(mContext.getCacheDir(), DELTA_FILE).delete();
+        mGeneration = generation;
     }
 }
@@ -17,29 +17,45 @@
 
 package com.android.browser;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.browser.platformsupport.Browser;
 import com.android.browser.platformsupport.BrowserContract;
 import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.HistoryColumns;
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
 
-import java.nio.ByteBuffer;
+import org.chromium.base.VisibleForTesting;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class DataController {
     private static final String LOGTAG = "DataController";
+    private static final boolean LOGV_ENABLED = com.android.browser.Browser.LOGV_ENABLED;
     // Message IDs
     private static final int HISTORY_UPDATE_VISITED = 100;
     private static final int HISTORY_UPDATE_TITLE = 101;
@@ -47,12 +63,18 @@ public class DataController {
     private static final int TAB_LOAD_THUMBNAIL = 201;
     private static final int TAB_SAVE_THUMBNAIL = 202;
     private static final int TAB_DELETE_THUMBNAIL = 203;
+    // History writes are coalesced per URL and flushed in a single provider
+    // transaction at most HISTORY_BATCH_DELAY ms after the first one arrives
+    private static final long HISTORY_BATCH_DELAY = 500;
+    private static final int HISTORY_BATCH_MAX_URLS = 64;
+    // Tab thumbnails are stored as JPEG, a few KB instead of the raw pixels
+    private static final int THUMBNAIL_QUALITY = 80;
     private static DataController sInstance;
 
     private Context mContext;
     private DataControllerHandler mDataHandler;
     private Handler mCbHandler; // To respond on the UI thread
-    private ByteBuffer mBuffer; // to capture thumbnails
+    private BookmarkUrlIndex mBookmarkIndex;
 
     /* package */ static interface OnQueryUrlIsBookmark {
         void onQueryUrlIsBookmark(String url, boolean isBookmark);
@@ -62,6 +84,17 @@ public class DataController {
         Object[] args;
     }
 
+    private static class HistoryUpdate {
+        final String url;
+        int visits;
+        long lastVisited;
+        String title;
+        int titleUpdates;
+        HistoryUpdate(String u) {
+            url = u;
+        }
+    }
+
     private static class DCMessage {
         int what;
         Object obj;
@@ -81,6 +114,7 @@ public class DataController {
 
     private DataController(Context c) {
         mContext = c.getApplicationContext();
+        mBookmarkIndex = new BookmarkUrlIndex(mContext);
         mDataHandler = new DataControllerHandler();
         mDataHandler.start();
         mCbHandler = new Handler() {
@@ -114,7 +148,21 @@ public class DataController {
             replyTo.onQueryUrlIsBookmark(url, false);
             return;
         }
-        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url.trim(), replyTo);
+        url = url.trim();
+        Boolean isBookmark = mBookmarkIndex.contains(url);
+        if (isBookmark != null) {
+            // Index is current, no need to go through the data thread
+            replyBookmarkStatus(url, isBookmark, replyTo);
+            return;
+        }
+        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url, replyTo);
+    }
+
+    private void replyBookmarkStatus(String url, boolean isBookmark, Object replyTo) {
+        CallbackContainer cc = new CallbackContainer();
+        cc.replyTo = replyTo;
+        cc.args = new Object[] { url, isBookmark };
+        mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
     }
 
     public void loadThumbnail(Tab tab) {
@@ -129,6 +177,115 @@ public class DataController {
         mDataHandler.sendMessage(TAB_SAVE_THUMBNAIL, tab);
     }
 
+    /**
+     * Fingerprint of a capture over all of its pixels, so any visible change
+     * to the page gets saved. Reads a row at a time, so no buffer the size
+     * of the capture is needed.
+     */
+    static long computeCaptureHash(Bitmap capture) {
+        int width = capture.getWidth();
+        int[] row = new int[width];
+        long hash = 17;
+        for (int y = 0; y < capture.getHeight(); y++) {
+            capture.getPixels(row, 0, width, 0, y, width, 1);
+            for (int pixel : row) {
+                hash = 31 * hash + pixel;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Compresses the capture straight into the provider's thumbnail file,
+     * without building the JPEG on the heap first. Returns the number of
+     * bytes written.
+     */
+    @VisibleForTesting
+    public static long writeThumbnail(ContentResolver cr, long tabId, Bitmap capture)
+            throws IOException {
+        Uri uri = ContentUris.withAppendedId(Thumbnails.CONTENT_URI, tabId);
+        ParcelFileDescriptor pfd = cr.openFileDescriptor(uri, "w");
+        if (pfd == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        CountingOutputStream out = new CountingOutputStream(
+                new ParcelFileDescriptor.AutoCloseOutputStream(pfd));
+        try {
+            if (!capture.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out)) {
+                throw new IOException("Failed to compress thumbnail");
+            }
+        } finally {
+            out.close();
+        }
+        return out.getCount();
+    }
+
+    private static byte[] readThumbnail(ContentResolver cr, Uri uri) {
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = cr.openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return null;
+            }
+            long size = pfd.getStatSize();
+            if (size <= 0 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            // Read into an array of the exact size, this is what Tab keeps
+            byte[] data = new byte[(int) size];
+            InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            pfd = null;
+            try {
+                int read = 0;
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n < 0) {
+                        return null;
+                    }
+                    read += n;
+                }
+            } finally {
+                in.close();
+            }
+            return data;
+        } catch (IOException e) {
+            // FileNotFoundException if the tab has no saved thumbnail
+            return null;
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write the bytes one at a time
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
     // The standard Handler and Message classes don't allow the queue manipulation
     // we want (such as peeking). So we use our own queue.
     class DataControllerHandler extends Thread {
@@ -139,12 +296,23 @@ public class DataController {
             super("DataControllerHandler");
         }
 
+        // Provider round trips and transactions avoided by batching, for logging
+        private long mSavedRoundTrips;
+        private long mSavedTransactions;
+        // Thumbnail saves skipped as the capture had not changed, for logging
+        private int mSkippedThumbnailSaves;
+
         @Override
         public void run() {
             setPriority(Thread.MIN_PRIORITY);
             while (true) {
                 try {
-                    handleMessage(mMessageQueue.take());
+                    DCMessage msg = mMessageQueue.take();
+                    if (isHistoryUpdate(msg)) {
+                        batchHistoryUpdates(msg);
+                    } else {
+                        handleMessage(msg);
+                    }
                 } catch (InterruptedException ex) {
                     break;
                 }
@@ -162,19 +330,171 @@ public class DataController {
             mMessageQueue.add(m);
         }
 
+        private boolean isHistoryUpdate(DCMessage msg) {
+            return msg.what == HISTORY_UPDATE_VISITED || msg.what == HISTORY_UPDATE_TITLE;
+        }
+
+        /**
+         * Collects history updates arriving within HISTORY_BATCH_DELAY of the
+         * first one, merging updates for the same URL. Other messages are
+         * handled as they arrive so bookmark queries and thumbnails don't wait.
+         */
+        private void batchHistoryUpdates(DCMessage first) throws InterruptedException {
+            LinkedHashMap<String, HistoryUpdate> pending =
+                    new LinkedHashMap<String, HistoryUpdate>();
+            int messageCount = 0;
+            long deadline = SystemClock.uptimeMillis() + HISTORY_BATCH_DELAY;
+            DCMessage msg = first;
+            try {
+                while (msg != null) {
+                    if (isHistoryUpdate(msg)) {
+                        mergeHistoryUpdate(pending, msg);
+                        messageCount++;
+                        if (pending.size() >= HISTORY_BATCH_MAX_URLS) {
+                            break;
+                        }
+                    } else {
+                        handleMessage(msg);
+                    }
+                    long remaining = deadline - SystemClock.uptimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    msg = mMessageQueue.poll(remaining, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                doFlushHistoryUpdates(pending, messageCount);
+            }
+        }
+
+        private void mergeHistoryUpdate(HashMap<String, HistoryUpdate> pending,
+                DCMessage msg) {
+            String url;
+            String title = null;
+            if (msg.what == HISTORY_UPDATE_VISITED) {
+                url = (String) msg.obj;
+            } else {
+                String[] args = (String[]) msg.obj;
+                url = args[0];
+                title = args[1];
+            }
+            // Key on the URL the provider will actually store
+            url = BrowserProvider2.filterSearchClient(url);
+            HistoryUpdate update = pending.get(url);
+            if (update == null) {
+                update = new HistoryUpdate(url);
+                pending.put(url, update);
+            }
+            if (msg.what == HISTORY_UPDATE_VISITED) {
+                update.visits++;
+                update.lastVisited = System.currentTimeMillis();
+            } else {
+                update.title = title;
+                update.titleUpdates++;
+            }
+        }
+
+        private void doFlushHistoryUpdates(HashMap<String, HistoryUpdate> pending,
+                int messageCount) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            ContentResolver cr = mContext.getContentResolver();
+            // Look up every URL of the batch in a single query
+            // _id, visits, user entered
+            HashMap<String, long[]> existing = new HashMap<String, long[]>();
+            StringBuilder selection = new StringBuilder(History.URL + " IN (");
+            String[] selectionArgs = new String[pending.size()];
+            int i = 0;
+            for (String url : pending.keySet()) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i++] = url;
+            }
+            selection.append(')');
+            Cursor c = null;
+            try {
+                c = cr.query(History.CONTENT_URI,
+                        new String[] { History._ID, History.URL, History.VISITS,
+                                History.USER_ENTERED },
+                        selection.toString(), selectionArgs, null);
+                while (c != null && c.moveToNext()) {
+                    existing.put(c.getString(1),
+                            new long[] { c.getLong(0), c.getInt(2), c.getInt(3) });
+                }
+            } finally {
+                if (c != null) c.close();
+            }
+
+            ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+            boolean hasInserts = false;
+            for (HistoryUpdate update : pending.values()) {
+                long[] row = existing.get(update.url);
+                if (row != null) {
+                    ContentProviderOperation.Builder b = ContentProviderOperation.newUpdate(
+                            ContentUris.withAppendedId(History.CONTENT_URI, row[0]));
+                    if (update.visits > 0) {
+                        int visits = (int) row[1] + update.visits;
+                        b.withValue(History.VISITS, visits);
+                        b.withValue(History.DATE_LAST_VISITED, update.lastVisited);
+                        // Keep the ranking current so suggestions never compute it
+                        b.withValue(HistoryColumns.FRECENCY,
+                                Frecency.score(visits, update.lastVisited, row[2] != 0));
+                    }
+                    if (update.title != null) {
+                        b.withValue(History.TITLE, update.title);
+                    }
+                    ops.add(b.build());
+                } else if (update.visits > 0) {
+                    hasInserts = true;
+                    ops.add(ContentProviderOperation.newInsert(History.CONTENT_URI)
+                            .withValue(History.URL, update.url)
+                            .withValue(History.VISITS, update.visits)
+                            .withValue(History.DATE_LAST_VISITED, update.lastVisited)
+                            .withValue(History.TITLE,
+                                    update.title != null ? update.title : update.url)
+                            .withValue(History.DATE_CREATED, 0)
+                            .withValue(History.USER_ENTERED, 0)
+                            .withValue(HistoryColumns.FRECENCY,
+                                    Frecency.score(update.visits, update.lastVisited, false))
+                            .build());
+                }
+                // A title update for a URL that isn't in history is a no-op
+            }
+            if (hasInserts) {
+                Browser.truncateHistory(cr);
+            }
+            if (!ops.isEmpty()) {
+                try {
+                    cr.applyBatch(BrowserContract.AUTHORITY, ops);
+                } catch (RemoteException e) {
+                    Log.e(LOGTAG, "Error applying history batch", e);
+                } catch (OperationApplicationException e) {
+                    Log.e(LOGTAG, "Error applying history batch", e);
+                }
+            }
+
+            // Unbatched, every visit was a query plus a write and every title
+            // update a write, each write in its own transaction.
+            int unbatchedRoundTrips = 0;
+            int unbatchedTransactions = 0;
+            for (HistoryUpdate update : pending.values()) {
+                unbatchedRoundTrips += 2 * update.visits + update.titleUpdates;
+                unbatchedTransactions += update.visits + update.titleUpdates;
+            }
+            int roundTrips = ops.isEmpty() ? 1 : 2;
+            int transactions = ops.isEmpty() ? 0 : 1;
+            mSavedRoundTrips += Math.max(0, unbatchedRoundTrips - roundTrips);
+            mSavedTransactions += Math.max(0, unbatchedTransactions - transactions);
+            if (LOGV_ENABLED) {
+                Log.v(LOGTAG, "History batch: " + messageCount + " updates for "
+                        + pending.size() + " urls, saved " + mSavedRoundTrips
+                        + " round trips and " + mSavedTransactions + " transactions so far");
+            }
+        }
+
         private void handleMessage(DCMessage msg) {
             switch (msg.what) {
-            case HISTORY_UPDATE_VISITED:
-                doUpdateVisitedHistory((String) msg.obj);
-                break;
-            case HISTORY_UPDATE_TITLE:
-                String[] args = (String[]) msg.obj;
-                doUpdateHistoryTitle(args[0], args[1]);
-                break;
             case QUERY_URL_IS_BOOKMARK:
-                // TODO: Look for identical messages in the queue and remove them
-                // TODO: Also, look for partial matches and merge them (such as
-                //       multiple callbacks querying the same URL)
                 doQueryBookmarkStatus((String) msg.obj, msg.replyTo);
                 break;
             case TAB_LOAD_THUMBNAIL:
@@ -194,110 +514,78 @@ public class DataController {
             }
         }
 
-        private byte[] getCaptureBlob(Tab tab) {
+        private void doSaveThumbnail(Tab tab) {
+            ContentResolver cr = mContext.getContentResolver();
+            Bitmap capture;
+            // The UI thread takes the same lock, so only copy the pixels under it
             synchronized (tab) {
-                Bitmap capture = tab.getScreenshot();
-                if (capture == null) {
-                    return null;
-                }
-                if (mBuffer == null || mBuffer.limit() < capture.getByteCount()) {
-                    mBuffer = ByteBuffer.allocate(capture.getByteCount());
+                Bitmap screenshot = tab.getScreenshot();
+                if (screenshot == null) {
+                    return;
                 }
-                capture.copyPixelsToBuffer(mBuffer);
-                mBuffer.rewind();
-                return mBuffer.array();
+                capture = screenshot.copy(screenshot.getConfig(), false);
             }
-        }
-
-        private void doSaveThumbnail(Tab tab) {
-            byte[] blob = getCaptureBlob(tab);
-            if (blob == null) {
+            if (capture == null) {
                 return;
             }
-            ContentResolver cr = mContext.getContentResolver();
-            ContentValues values = new ContentValues();
-            values.put(Thumbnails._ID, tab.getId());
-            values.put(Thumbnails.THUMBNAIL, blob);
-            cr.insert(Thumbnails.CONTENT_URI, values);
+            long hash = computeCaptureHash(capture);
+            if (hash == tab.getCaptureHash()) {
+                capture.recycle();
+                mSkippedThumbnailSaves++;
+                if (LOGV_ENABLED) {
+                    Log.v(LOGTAG, "Capture unchanged, skipped "
+                            + mSkippedThumbnailSaves + " thumbnail saves so far");
+                }
+                return;
+            }
+            try {
+                writeThumbnail(cr, tab.getId(), capture);
+                tab.setCaptureHash(hash);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Failed to save thumbnail of tab " + tab.getId(), e);
+            } finally {
+                capture.recycle();
+            }
         }
 
         private void doLoadThumbnail(Tab tab) {
             ContentResolver cr = mContext.getContentResolver();
+            Uri uri = ContentUris.withAppendedId(Thumbnails.CONTENT_URI, tab.getId());
             Cursor c = null;
+            byte[] data = null;
             try {
-                Uri uri = ContentUris.withAppendedId(Thumbnails.CONTENT_URI, tab.getId());
                 c = cr.query(uri, new String[] {Thumbnails._ID,
                         Thumbnails.THUMBNAIL}, null, null, null);
                 if (c.moveToFirst()) {
-                    byte[] data = c.getBlob(1);
-                    if (data != null && data.length > 0) {
-                        tab.updateCaptureFromBlob(data);
-                    }
+                    // Thumbnails saved by older versions are still in the table
+                    data = c.getBlob(1);
                 }
             } finally {
                 if (c != null) {
                     c.close();
                 }
             }
-        }
-
-        private void doUpdateVisitedHistory(String url) {
-            ContentResolver cr = mContext.getContentResolver();
-            Cursor c = null;
-            try {
-                c = cr.query(History.CONTENT_URI, new String[] {History._ID, History.VISITS},
-                        History.URL + "=?", new String[] { url }, null);
-                if (c.moveToFirst()) {
-                    ContentValues values = new ContentValues();
-                    values.put(History.VISITS, c.getInt(1) + 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(History.CONTENT_URI, c.getLong(0)),
-                            values, null, null);
-                } else {
-                    Browser.truncateHistory(cr);
-                    ContentValues values = new ContentValues();
-                    values.put(History.URL, url);
-                    values.put(History.VISITS, 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    values.put(History.TITLE, url);
-                    values.put(History.DATE_CREATED, 0);
-                    values.put(History.USER_ENTERED, 0);
-                    cr.insert(History.CONTENT_URI, values);
-                }
-            } finally {
-                if (c != null) c.close();
+            if (data == null || data.length == 0) {
+                data = readThumbnail(cr, uri);
+            }
+            if (data != null && data.length > 0) {
+                tab.updateCaptureFromBlob(data);
             }
         }
 
         private void doQueryBookmarkStatus(String url, Object replyTo) {
             // Check to see if the site is bookmarked
-            Cursor cursor = null;
-            boolean isBookmark = false;
-            try {
-                cursor = mContext.getContentResolver().query(
-                        BookmarkUtils.getBookmarksUri(mContext),
-                        new String[] { BrowserContract.Bookmarks.URL },
-                        BrowserContract.Bookmarks.URL + " == ?",
-                        new String[] { url },
-                        null);
-                isBookmark = cursor.moveToFirst();
-            } catch (SQLiteException e) {
-                Log.e(LOGTAG, "Error checking for bookmark: " + e);
-            } finally {
-                if (cursor != null) cursor.close();
+            boolean isBookmark = mBookmarkIndex.load(url);
+            replyBookmarkStatus(url, isBookmark, replyTo);
+            // Answer queued queries for the same url with the same result
+            Iterator<DCMessage> it = mMessageQueue.iterator();
+            while (it.hasNext()) {
+                DCMessage queued = it.next();
+                if (queued.what == QUERY_URL_IS_BOOKMARK && url.equals(queued.obj)) {
+                    it.remove();
+                    replyBookmarkStatus(url, isBookmark, queued.replyTo);
+                }
             }
-            CallbackContainer cc = new CallbackContainer();
-            cc.replyTo = replyTo;
-            cc.args = new Object[] { url, isBookmark };
-            mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
-        }
-
-        private void doUpdateHistoryTitle(String url, String title) {
-            ContentResolver cr = mContext.getContentResolver();
-            ContentValues values = new ContentValues();
-            values.put(History.TITLE, title);
-            cr.update(History.CONTENT_URI, values, History.URL + "=?",
-                    new String[] { url });
         }
     }
 }
@@ -20,6 +20,7 @@ import com.android.browser.R;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.DataSetObserver;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -74,37 +75,63 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
      * Set up the bins for determining which items belong to which groups.
      */
     private void buildMap() {
-        // The cursor is sorted by date
-        // The ItemMap will store the number of items in each bin.
-        int array[] = new int[DateSorter.DAY_COUNT];
-        // Zero out the array.
-        for (int j = 0; j < DateSorter.DAY_COUNT; j++) {
-            array[j] = 0;
+        int array[];
+        if (mCursor instanceof BinnedCursor) {
+            // Counted when the cursor was loaded
+            array = ((BinnedCursor) mCursor).getBins();
+        } else {
+            array = countBins(mCursor, mDateIndex, mDateSorter);
         }
         mNumberOfBins = 0;
-        int dateIndex = -1;
-        if (mCursor.moveToFirst() && mCursor.getCount() > 0) {
-            while (!mCursor.isAfterLast()) {
-                long date = getLong(mDateIndex);
-                int index = mDateSorter.getIndex(date);
-                if (index > dateIndex) {
-                    mNumberOfBins++;
-                    if (index == DateSorter.DAY_COUNT - 1) {
-                        // We are already in the last bin, so it will
-                        // include all the remaining items
-                        array[index] = mCursor.getCount()
-                                - mCursor.getPosition();
-                        break;
-                    }
-                    dateIndex = index;
-                }
-                array[dateIndex]++;
-                mCursor.moveToNext();
+        for (int j = 0; j < DateSorter.DAY_COUNT; j++) {
+            if (array[j] != 0) {
+                mNumberOfBins++;
             }
         }
         mItemMap = array;
     }
 
+    /**
+     * Count the number of items in each bin by walking the cursor, which
+     * must be sorted by date, most recent first.
+     */
+    static int[] countBins(Cursor cursor, int dateIndex, DateSorter sorter) {
+        // The ItemMap will store the number of items in each bin.
+        int array[] = new int[DateSorter.DAY_COUNT];
+        if (cursor.moveToFirst()) {
+            while (!cursor.isAfterLast()) {
+                int index = sorter.getIndex(cursor.getLong(dateIndex));
+                if (index == DateSorter.DAY_COUNT - 1) {
+                    // We are already in the last bin, so it will
+                    // include all the remaining items
+                    array[index] = cursor.getCount() - cursor.getPosition();
+                    break;
+                }
+                array[index]++;
+                cursor.moveToNext();
+            }
+        }
+        return array;
+    }
+
+    /**
+     * A cursor that carries the number of items in each {@link DateSorter}
+     * bin along with it, so that the adapter does not need to walk it on the
+     * UI thread to build its groups.
+     */
+    static class BinnedCursor extends CursorWrapper {
+        private final int[] mBins;
+
+        BinnedCursor(Cursor cursor, int[] bins) {
+            super(cursor);
+            mBins = bins;
+        }
+
+        int[] getBins() {
+            return mBins;
+        }
+    }
+
     /**
      * Get the byte array at cursorIndex from the Cursor.  Assumes the Cursor
      * has already been moved to the correct position.  Along with
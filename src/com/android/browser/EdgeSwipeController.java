@@ -30,10 +30,6 @@
 package com.android.browser;
 
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Paint;
 import android.os.CountDownTimer;
 import android.support.v4.widget.ViewDragHelper;
 import android.view.View;
@@ -126,6 +122,8 @@ public class EdgeSwipeController extends ViewDragHelper.Callback {
 
     private void swipeSessionCleanup() {
         mView.goLive();
+        // The grayscale snapshots go back to the pool, the views must let go first
+        mView.clearBitmaps();
         mModel.cleanup();
         mCurrIndex = EDGE_SWIPE_INVALID_INDEX;
         mState = ViewDragHelper.STATE_IDLE;
@@ -175,27 +173,19 @@ public class EdgeSwipeController extends ViewDragHelper.Callback {
         }
     }
 
-    private Bitmap getGrayscale(Bitmap bitmap)
-    {
-        if (bitmap == null)
+    private Bitmap getGrayscaleSnapshotOrFavicon(int index) {
+        Bitmap bm = mModel.readSnapshot(index);
+        if (bm != null && mView.isPortrait() == isPortrait(bm)) {
+            // Rendered in the background when the snapshot arrived
+            Bitmap gray = mModel.readGrayscaleSnapshot(index);
+            return gray != null ? gray : bm;
+        }
+        bm = getSnapshotOrFavicon(index);
+        if (bm == null) {
             return null;
-
-        int height = bitmap.getHeight();
-        int width = bitmap.getWidth();
-
-        Bitmap gray = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        Canvas c = new Canvas(gray);
-        Paint paint = new Paint();
-        ColorMatrix cm = new ColorMatrix();
-
-        cm.setSaturation(0);
-
-        ColorMatrixColorFilter f = new ColorMatrixColorFilter(cm);
-
-        paint.setColorFilter(f);
-
-        c.drawBitmap(bitmap, 0, 0, paint);
-        return gray;
+        }
+        // Favicons are small enough to convert in place
+        return EdgeSwipeModel.toGrayscale(bm, null);
     }
 
     private void monitorProgressAtLoad(final int pageIndex) {
@@ -224,13 +214,13 @@ public class EdgeSwipeController extends ViewDragHelper.Callback {
                         switch (mFromEdge) {
                             case ViewDragHelper.EDGE_LEFT:
                                 mView.setSlidingViewBitmap(
-                                        getGrayscale(getSnapshotOrFavicon(pageIndex)),
+                                        getGrayscaleSnapshotOrFavicon(pageIndex),
                                         mModel.getColor(pageIndex));
                                 mGrayBM = true;
                                 break;
                             case ViewDragHelper.EDGE_RIGHT:
                                 mView.setStationaryViewBitmap(
-                                        getGrayscale(getSnapshotOrFavicon(pageIndex)),
+                                        getGrayscaleSnapshotOrFavicon(pageIndex),
                                         mModel.getColor(pageIndex));
                                 mGrayBM = true;
                                 break;
@@ -240,7 +230,7 @@ public class EdgeSwipeController extends ViewDragHelper.Callback {
                             return;
                         }
                         mView.setStationaryViewBitmap(
-                                getGrayscale(getSnapshotOrFavicon(pageIndex)),
+                                getGrayscaleSnapshotOrFavicon(pageIndex),
                                 mModel.getColor(pageIndex));
                         mGrayBM = true;
                     }
@@ -361,6 +351,7 @@ public class EdgeSwipeController extends ViewDragHelper.Callback {
                     mActiveTab.getWebView().stopLoading();
                     mActiveTab.getWebView().goToHistoryIndex(mCurrIndex);
                     monitorProgressAtLoad(mCurrIndex);
+                    mModel.prefetchSnapshots(mCurrIndex, -1);
                     mDragHelper.settleCapturedViewAt(
                             releasedChild.getMeasuredWidth(),
                             releasedChild.getTop());
@@ -371,6 +362,7 @@ public class EdgeSwipeController extends ViewDragHelper.Callback {
                     mActiveTab.getWebView().stopLoading();
                     mActiveTab.getWebView().goToHistoryIndex(mCurrIndex);
                     monitorProgressAtLoad(mCurrIndex);
+                    mModel.prefetchSnapshots(mCurrIndex, 1);
                     mDragHelper.settleCapturedViewAt(
                             -releasedChild.getMeasuredWidth(),
                             releasedChild.getTop());
@@ -506,15 +498,11 @@ public class EdgeSwipeController extends ViewDragHelper.Callback {
             if (ViewDragHelper.EDGE_LEFT == (edgeFlags & ViewDragHelper.EDGE_LEFT)) {
                 mFromEdge = ViewDragHelper.EDGE_LEFT;
                 mView.slidingViewTouched(mFromEdge);
-                if (mCurrIndex > 0) {
-                    mModel.fetchSnapshot(mCurrIndex - 1);
-                }
+                mModel.prefetchSnapshots(mCurrIndex, -1);
             } else if (ViewDragHelper.EDGE_RIGHT == (edgeFlags & ViewDragHelper.EDGE_RIGHT)) {
                 mFromEdge = ViewDragHelper.EDGE_RIGHT;
                 mView.slidingViewTouched(mFromEdge);
-                if (mCurrIndex < mMaxIndex) {
-                    mModel.fetchSnapshot(mCurrIndex + 1);
-                }
+                mModel.prefetchSnapshots(mCurrIndex, 1);
             }
         }
     }
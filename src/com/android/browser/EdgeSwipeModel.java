@@ -30,16 +30,44 @@
 package com.android.browser;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
 import android.util.SparseArray;
 import android.webkit.ValueCallback;
 
 import org.codeaurora.swe.WebHistoryItem;
 
+import java.util.ArrayList;
+
 public class EdgeSwipeModel {
     private static final int MS_TIME_BETWEEN_CAPTURES = 1000;
-    private SparseArray<Bitmap> mBitmaps;
+    // Snapshots and their grayscale variants each get this share of the heap
+    private static final int MAX_CACHE_BYTES =
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 32 * 1024 * 1024);
+    // Grayscale bitmaps kept around for reuse once evicted
+    private static final int MAX_POOLED_BITMAPS = 2;
+
+    private static final Paint sGrayscalePaint = new Paint();
+
+    static {
+        ColorMatrix cm = new ColorMatrix();
+        cm.setSaturation(0);
+        sGrayscalePaint.setColorFilter(new ColorMatrixColorFilter(cm));
+    }
+
+    private final LruCache<Integer, Bitmap> mBitmaps;
+    private final LruCache<Integer, Bitmap> mGrayBitmaps;
+    private final ArrayList<Bitmap> mBitmapPool = new ArrayList<>();
     private SparseArray<Integer> mColors;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Bumped on cleanup, so grayscale results of an earlier session are dropped
+    private int mGeneration;
 
     private long mLastCaptureTime;
     private int mLastCaptureIndex;
@@ -50,17 +78,96 @@ public class EdgeSwipeModel {
 
     private static final int mMinProgress = 85;
 
-    private static final int mMaxBitmaps = 5;
-
     public EdgeSwipeModel(Tab tab, TitleBar bar) {
         mTab = tab;
         mBar = bar;
         mLastCaptureIndex = -1;
         mLastCaptureTime = 0;
-        mBitmaps = new SparseArray<>();
+        mBitmaps = new LruCache<Integer, Bitmap>(MAX_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Integer index, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Integer index,
+                    Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    mGrayBitmaps.remove(index);
+                }
+            }
+        };
+        mGrayBitmaps = new LruCache<Integer, Bitmap>(MAX_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Integer index, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
         mColors = new SparseArray<>();
     }
 
+    private void putSnapshot(int index, Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        mBitmaps.put(index, bitmap);
+        updateGrayscale(index, bitmap);
+    }
+
+    /**
+     * Renders the grayscale variant of a snapshot in the background, drawing
+     * into a pooled bitmap when one of the right size is available.
+     */
+    private void updateGrayscale(final int index, final Bitmap bitmap) {
+        final int generation = mGeneration;
+        final Bitmap reuse = takePooledBitmap(bitmap.getWidth(), bitmap.getHeight());
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap gray = toGrayscale(bitmap, reuse);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration && mBitmaps.get(index) == bitmap) {
+                            mGrayBitmaps.put(index, gray);
+                        } else {
+                            recycleToPool(gray);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private Bitmap takePooledBitmap(int width, int height) {
+        for (int i = 0; i < mBitmapPool.size(); i++) {
+            Bitmap bitmap = mBitmapPool.get(i);
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                return mBitmapPool.remove(i);
+            }
+        }
+        return null;
+    }
+
+    private void recycleToPool(Bitmap bitmap) {
+        if (mBitmapPool.size() < MAX_POOLED_BITMAPS) {
+            mBitmapPool.add(bitmap);
+        }
+    }
+
+    static Bitmap toGrayscale(Bitmap bitmap, Bitmap reuse) {
+        Bitmap gray = reuse;
+        if (gray == null) {
+            gray = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(),
+                    Bitmap.Config.ARGB_8888);
+        } else {
+            gray.eraseColor(Color.TRANSPARENT);
+        }
+        Canvas c = new Canvas(gray);
+        c.drawBitmap(bitmap, 0, 0, sGrayscalePaint);
+        return gray;
+    }
+
     public void updateSnapshot(final int index) {
         if (mBitmaps.get(index) != null) {
             return;
@@ -90,7 +197,7 @@ public class EdgeSwipeModel {
                 new ValueCallback<Bitmap>() {
                     @Override
                     public void onReceiveValue(Bitmap value) {
-                        mBitmaps.put(index, value);
+                        putSnapshot(index, value);
                         mLastCaptureTime = System.currentTimeMillis();
                         mLastCaptureIndex = captureIndex;
                         mLastBitmap = value;
@@ -119,7 +226,7 @@ public class EdgeSwipeModel {
         long currentTime = System.currentTimeMillis();
         if (captureIndex == mLastCaptureIndex &&
                 (currentTime < (mLastCaptureTime + MS_TIME_BETWEEN_CAPTURES))) {
-            mBitmaps.put(index, mLastBitmap);
+            putSnapshot(index, mLastBitmap);
             return;
         }
 
@@ -127,12 +234,29 @@ public class EdgeSwipeModel {
                 new ValueCallback<Bitmap>() {
                     @Override
                     public void onReceiveValue(Bitmap bitmap) {
-                        mBitmaps.put(index, bitmap);
+                        putSnapshot(index, bitmap);
                     }
                 }
         );
     }
 
+    /**
+     * Fetches the snapshots of the next two history entries in the given
+     * direction, the ones a following swipe would show.
+     */
+    public void prefetchSnapshots(int index, int direction) {
+        if (mTab.getWebView() == null) {
+            return;
+        }
+        int size = mTab.getWebView().copyBackForwardList().getSize();
+        for (int i = 1; i <= 2; i++) {
+            int next = index + i * direction;
+            if (next >= 0 && next < size) {
+                fetchSnapshot(next);
+            }
+        }
+    }
+
     public Bitmap readSnapshot(int index) {
         if (index < 0) {
             return null;
@@ -145,6 +269,17 @@ public class EdgeSwipeModel {
         return mBitmaps.get(index);
     }
 
+    /**
+     * Returns the grayscale variant of the snapshot at index, or null if it
+     * is not ready yet.
+     */
+    public Bitmap readGrayscaleSnapshot(int index) {
+        if (index < 0) {
+            return null;
+        }
+        return mGrayBitmaps.get(index);
+    }
+
     public int getColor(int index) {
         if (index < 0) {
             return Color.DKGRAY;
@@ -163,11 +298,20 @@ public class EdgeSwipeModel {
     }
 
     public void deleteSnapshot(int index) {
-        mBitmaps.delete(index);
+        mBitmaps.remove(index);
     }
 
+    /**
+     * Ends a swipe session. The grayscale bitmaps are pooled and drawn over
+     * later, so the caller must have removed them from every view first.
+     */
     public void cleanup() {
-        mBitmaps.clear();
+        mGeneration++;
+        for (Bitmap gray : mGrayBitmaps.snapshot().values()) {
+            recycleToPool(gray);
+        }
+        mBitmaps.evictAll();
+        mGrayBitmaps.evictAll();
         mColors.clear();
     }
 }
@@ -109,6 +109,14 @@ public class EdgeSwipeView {
         mbShowingLive = false;
     }
 
+    /**
+     * Drops the snapshots shown, so their bitmaps can be reused.
+     */
+    public void clearBitmaps() {
+        mStationaryView.setImageBitmap(null);
+        mSlidingView.setImageBitmap(null);
+    }
+
     public boolean isLive() {
         return mbShowingLive;
     }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser;
+
+/**
+ * Ranking of suggestion candidates by how often and how recently they were
+ * visited.
+ *
+ * A page's worth is its weight decayed by its age, weight * 2^(-age / HALF_LIFE).
+ * That is kept as log(weight) + lastVisited * ln(2) / HALF_LIFE, which
+ * orders pages the same way at any point in time. So the score only
+ * changes when the page is visited and can be stored with the history row.
+ * Bonuses are multiplicative weights and are added as logarithms.
+ */
+final class Frecency {
+
+    private static final double HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000.0;
+    private static final double DECAY = Math.log(2) / HALF_LIFE_MS;
+
+    // Typed urls are worth twice as many visits
+    private static final double TYPED_BONUS = Math.log(2);
+    private static final double BOOKMARK_BONUS = Math.log(4);
+
+    /** How well the text matched, used with {@link #matchBonus}. */
+    static final int MATCH_WORD = 0;
+    static final int MATCH_TITLE = 1;
+    static final int MATCH_URL = 2;
+    static final int MATCH_HOST = 3;
+    private static final double[] MATCH_BONUS = {
+            0, Math.log(1.5), Math.log(2), Math.log(3)
+    };
+
+    /**
+     * Score of a history row, stored by DataController when a visit is
+     * recorded.
+     */
+    static double score(int visits, long lastVisited, boolean typed) {
+        double score = Math.log(1 + Math.max(0, visits)) + Math.max(0, lastVisited) * DECAY;
+        return typed ? score + TYPED_BONUS : score;
+    }
+
+    /**
+     * Score of a page bookmarked at the given time, counted as one visit.
+     */
+    static double bookmarkScore(long created) {
+        return score(1, created, false) + BOOKMARK_BONUS;
+    }
+
+    static double bookmarkBonus() {
+        return BOOKMARK_BONUS;
+    }
+
+    static double matchBonus(int match) {
+        return MATCH_BONUS[match];
+    }
+
+    private Frecency() {}
+}
@@ -32,10 +32,8 @@ package com.android.browser;
 
 import android.app.ActivityManager;
 import android.content.Context;
-import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.List;
 
 public class MemoryMonitor {
 
@@ -52,30 +50,17 @@ public class MemoryMonitor {
         int maxActiveTabs = getMaxActiveTabs(context);
         TabControl tabControl  = controller.getTabControl();
 
-        ArrayList<Tab> activeTabList = new ArrayList<Tab>();
-
+        ArrayList<Tab> tabs = new ArrayList<Tab>();
         for (int i = 0; i < tabControl.getTabCount(); i++) {
-            Tab tab = tabControl.getTab(i);
-            if(tab.isNativeActive())
-                activeTabList.add(tab);
+            tabs.add(tabControl.getTab(i));
         }
 
-        int numActiveTabsToRelease = activeTabList.size() - maxActiveTabs;
-
-        if(numActiveTabsToRelease < 1)
-            return;
-        // sort tabs in order of LRU first
-        Collections.sort(activeTabList, new Comparator<Tab>() {
-            @Override
-            public int compare(Tab tab1, Tab tab2) {
-                return tab1.getTimestamp().compareTo(tab2.getTimestamp());
-            }
-        });
-
-        for(int i = 0; i < numActiveTabsToRelease; i++) {
-            if(tabControl.getCurrentTab()!=  activeTabList.get(i)) {
-                activeTabList.get(i).destroyThroughMemoryMonitor();
-            }
+        // Only the number of active tabs is capped here, memory budgets
+        // are applied when the system reports memory pressure
+        List<Tab> tabsToRelease = tabControl.getEvictionPolicy().selectTabsToEvict(
+                tabs, tabControl.getCurrentTab(), maxActiveTabs, Long.MAX_VALUE);
+        for (Tab tab : tabsToRelease) {
+            tab.destroyThroughMemoryMonitor();
         }
     }
 
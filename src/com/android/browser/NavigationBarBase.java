@@ -22,7 +22,6 @@ import android.app.SearchManager;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
@@ -54,9 +53,7 @@ import com.android.browser.preferences.SiteSpecificPreferencesFragment;
 
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
 import java.net.URISyntaxException;
-import java.net.URL;
 
 import org.codeaurora.net.NetworkServices;
 import org.codeaurora.swe.WebRefiner;
@@ -242,30 +239,11 @@ public class NavigationBarBase extends LinearLayout implements
     }
 
     private void updateSiteIconColor(String urlString, int color) {
-        try {
-            URL url = new URL(urlString);
-            String host = url.getHost();
-            SharedPreferences prefs = BrowserSettings.getInstance().getPreferences();
-            int currentColor = prefs.getInt(host + ":color", 0);
-            if (currentColor != color) {
-                SharedPreferences.Editor editor = prefs.edit();
-                editor.remove(host + ":color");
-                editor.putInt(host + ":color", color);
-                editor.commit();
-            }
-        } catch (MalformedURLException e) {
-        }
+        SiteColorStore.getInstance(getContext()).setColor(urlString, color);
     }
 
     public static int getSiteIconColor(String urlString) {
-        try {
-            URL url = new URL(urlString);
-            String host = url.getHost();
-            SharedPreferences prefs = BrowserSettings.getInstance().getPreferences();
-            return prefs.getInt(host + ":color", 0);
-        } catch (MalformedURLException e) {
-            return 0;
-        }
+        return SiteColorStore.getInstance(Browser.getContext()).getColor(urlString);
     }
 
     public static int getDefaultStatusBarColor() {
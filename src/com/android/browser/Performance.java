@@ -16,13 +16,25 @@
 
 package com.android.browser;
 
-import com.android.browser.platformsupport.Process;
 import com.android.browser.platformsupport.WebAddress;
 
+import android.content.Context;
+import android.net.TrafficStats;
+import android.os.Build;
 import android.os.Debug;
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
 /**
  * Performance analysis
  */
@@ -35,26 +47,53 @@ public class Performance {
 
     private static boolean mInTrace;
 
-    // Performance probe
-    private static final int[] SYSTEM_CPU_FORMAT = new int[] {
-            Process.PROC_SPACE_TERM | Process.PROC_COMBINE,
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 1: user time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 2: nice time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 3: sys time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 4: idle time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 5: iowait time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG, // 6: irq time
-            Process.PROC_SPACE_TERM | Process.PROC_OUT_LONG  // 7: softirq time
-    };
-
-    private static long mStart;
-    private static long mProcessStart;
-    private static long mUserStart;
-    private static long mSystemStart;
-    private static long mIdleStart;
-    private static long mIrqStart;
-
-    private static long mUiStart;
+    // Number of finished page loads kept for percentiles and export
+    private static final int MAX_RECORDS = 256;
+
+    private static final String EXPORT_VERSION = "1";
+
+    /**
+     * Metrics of one navigation in one tab. Times are in milliseconds
+     * relative to the start of the load, -1 if the event was not seen.
+     */
+    static class PageLoadRecord {
+        long tabId;
+        String host;
+        long startTime;
+        long firstVisualPixel = -1;
+        // The engine doesn't report DOMContentLoaded to the embedder yet
+        long domContentLoaded = -1;
+        long finished = -1;
+        long uiCpu;
+        long processCpu;
+        long bytesLoaded = -1;
+
+        private long mUptimeStart;
+        private long mUiCpuStart;
+        private long mProcessCpuStart;
+        private long mRxBytesStart;
+
+        JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("tab", tabId);
+            o.put("host", host);
+            o.put("start", startTime);
+            o.put("first_visual_pixel", firstVisualPixel);
+            o.put("dom_content_loaded", domContentLoaded);
+            o.put("finished", finished);
+            o.put("ui_cpu", uiCpu);
+            o.put("process_cpu", processCpu);
+            o.put("bytes", bytesLoaded);
+            return o;
+        }
+    }
+
+    // Loads in progress, keyed by tab id
+    private static final HashMap<Long, PageLoadRecord> sInFlight =
+            new HashMap<Long, PageLoadRecord>();
+    private static final PageLoadRecord[] sRecords = new PageLoadRecord[MAX_RECORDS];
+    private static int sNextRecord;
+    private static int sRecordCount;
 
     static void tracePageStart(String url) {
         if (BrowserSettings.getInstance().isTracing()) {
@@ -79,56 +118,166 @@ public class Performance {
         }
     }
 
-    static void onPageStarted() {
-        mStart = SystemClock.uptimeMillis();
-        mProcessStart = Process.getElapsedCpuTime();
-        long[] sysCpu = new long[7];
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT, null, sysCpu, null)) {
-            mUserStart = sysCpu[0] + sysCpu[1];
-            mSystemStart = sysCpu[2];
-            mIdleStart = sysCpu[3];
-            mIrqStart = sysCpu[4] + sysCpu[5] + sysCpu[6];
-        }
-        mUiStart = SystemClock.currentThreadTimeMillis();
+    static void onPageStarted(Tab tab) {
+        PageLoadRecord r = new PageLoadRecord();
+        r.tabId = tab.getId();
+        // Don't keep where incognito tabs went
+        r.host = tab.isPrivateBrowsingEnabled() ? null : getHost(tab.getUrl());
+        r.startTime = System.currentTimeMillis();
+        r.mUptimeStart = SystemClock.uptimeMillis();
+        r.mUiCpuStart = SystemClock.currentThreadTimeMillis();
+        r.mProcessCpuStart = Process.getElapsedCpuTime();
+        r.mRxBytesStart = TrafficStats.getUidRxBytes(Process.myUid());
+        synchronized (sInFlight) {
+            sInFlight.put(r.tabId, r);
+        }
     }
 
-    static void onPageFinished(String url) {
-        long[] sysCpu = new long[7];
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT, null, sysCpu, null)) {
-            String uiInfo =
-                    "UI thread used " + (SystemClock.currentThreadTimeMillis() - mUiStart) + " ms";
-            if (LOGD_ENABLED) {
-                Log.d(LOGTAG, uiInfo);
+    static void onFirstVisualPixel(Tab tab) {
+        synchronized (sInFlight) {
+            PageLoadRecord r = sInFlight.get(tab.getId());
+            if (r != null && r.firstVisualPixel < 0) {
+                r.firstVisualPixel = SystemClock.uptimeMillis() - r.mUptimeStart;
             }
-            // The string that gets written to the log
-            String performanceString =
-                    "It took total " + (SystemClock.uptimeMillis() - mStart)
-                            + " ms clock time to load the page." + "\nbrowser process used "
-                            + (Process.getElapsedCpuTime() - mProcessStart)
-                            + " ms, user processes used " + (sysCpu[0] + sysCpu[1] - mUserStart)
-                            * 10 + " ms, kernel used " + (sysCpu[2] - mSystemStart) * 10
-                            + " ms, idle took " + (sysCpu[3] - mIdleStart) * 10
-                            + " ms and irq took " + (sysCpu[4] + sysCpu[5] + sysCpu[6] - mIrqStart)
-                            * 10 + " ms, " + uiInfo;
-            if (LOGD_ENABLED) {
-                Log.d(LOGTAG, performanceString + "\nWebpage: " + url);
+        }
+    }
+
+    static void onPageFinished(Tab tab) {
+        PageLoadRecord r;
+        synchronized (sInFlight) {
+            r = sInFlight.remove(tab.getId());
+        }
+        if (r == null) {
+            return;
+        }
+        r.finished = SystemClock.uptimeMillis() - r.mUptimeStart;
+        // UI thread time also covers work done for other tabs meanwhile
+        r.uiCpu = SystemClock.currentThreadTimeMillis() - r.mUiCpuStart;
+        r.processCpu = Process.getElapsedCpuTime() - r.mProcessCpuStart;
+        long rxBytes = TrafficStats.getUidRxBytes(Process.myUid());
+        if (rxBytes != TrafficStats.UNSUPPORTED && r.mRxBytesStart != TrafficStats.UNSUPPORTED) {
+            r.bytesLoaded = rxBytes - r.mRxBytesStart;
+        }
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, r.host + " loaded in " + r.finished + " ms, first pixel at "
+                    + r.firstVisualPixel + " ms, UI thread used " + r.uiCpu
+                    + " ms, browser process used " + r.processCpu + " ms, "
+                    + r.bytesLoaded + " bytes received");
+        }
+        synchronized (sRecords) {
+            sRecords[sNextRecord] = r;
+            sNextRecord = (sNextRecord + 1) % MAX_RECORDS;
+            sRecordCount = Math.min(sRecordCount + 1, MAX_RECORDS);
+        }
+    }
+
+    static void onTabClosed(Tab tab) {
+        synchronized (sInFlight) {
+            sInFlight.remove(tab.getId());
+        }
+    }
+
+    private static String getHost(String url) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            return new WebAddress(url).getHost();
+        } catch (android.net.ParseException ex) {
+            return null;
+        }
+    }
+
+    private static List<PageLoadRecord> getRecords() {
+        synchronized (sRecords) {
+            ArrayList<PageLoadRecord> records = new ArrayList<PageLoadRecord>(sRecordCount);
+            int first = (sNextRecord - sRecordCount + MAX_RECORDS) % MAX_RECORDS;
+            for (int i = 0; i < sRecordCount; i++) {
+                records.add(sRecords[(first + i) % MAX_RECORDS]);
             }
-            if (url != null) {
-                // strip the url to maintain consistency
-                String newUrl = new String(url);
-                if (newUrl.startsWith("http://www.")) {
-                    newUrl = newUrl.substring(11);
-                } else if (newUrl.startsWith("http://")) {
-                    newUrl = newUrl.substring(7);
-                } else if (newUrl.startsWith("https://www.")) {
-                    newUrl = newUrl.substring(12);
-                } else if (newUrl.startsWith("https://")) {
-                    newUrl = newUrl.substring(8);
-                }
-                if (LOGD_ENABLED) {
-                    Log.d(LOGTAG, newUrl + " loaded");
-                }
+            return records;
+        }
+    }
+
+    /**
+     * Returns the value at percentile p (0-100) of the recorded values,
+     * ignoring the loads where the metric wasn't available, or -1.
+     */
+    static long percentile(long[] values, int p) {
+        long[] sorted = new long[values.length];
+        int n = 0;
+        for (long v : values) {
+            if (v >= 0) {
+                sorted[n++] = v;
             }
         }
+        if (n == 0) {
+            return -1;
+        }
+        Arrays.sort(sorted, 0, n);
+        // Nearest rank
+        int rank = (int) Math.ceil(p / 100.0 * n);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static JSONObject percentiles(long[] values) throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("p50", percentile(values, 50));
+        o.put("p95", percentile(values, 95));
+        o.put("p99", percentile(values, 99));
+        return o;
+    }
+
+    /**
+     * Returns the recorded page loads and their percentiles as JSON, along
+     * with enough about the build and device to compare exports.
+     */
+    public static String exportJson(Context context) {
+        List<PageLoadRecord> records = getRecords();
+        int n = records.size();
+        long[] firstVisualPixel = new long[n];
+        long[] domContentLoaded = new long[n];
+        long[] finished = new long[n];
+        long[] uiCpu = new long[n];
+        long[] processCpu = new long[n];
+        long[] bytes = new long[n];
+        try {
+            JSONArray loads = new JSONArray();
+            for (int i = 0; i < n; i++) {
+                PageLoadRecord r = records.get(i);
+                firstVisualPixel[i] = r.firstVisualPixel;
+                domContentLoaded[i] = r.domContentLoaded;
+                finished[i] = r.finished;
+                uiCpu[i] = r.uiCpu;
+                processCpu[i] = r.processCpu;
+                bytes[i] = r.bytesLoaded;
+                loads.put(r.toJson());
+            }
+            JSONObject summary = new JSONObject();
+            summary.put("first_visual_pixel", percentiles(firstVisualPixel));
+            summary.put("dom_content_loaded", percentiles(domContentLoaded));
+            summary.put("finished", percentiles(finished));
+            summary.put("ui_cpu", percentiles(uiCpu));
+            summary.put("process_cpu", percentiles(processCpu));
+            summary.put("bytes", percentiles(bytes));
+
+            JSONObject build = new JSONObject();
+            build.put("fingerprint", Build.FINGERPRINT);
+            build.put("model", Build.MODEL);
+            build.put("sdk", Build.VERSION.SDK_INT);
+            build.put("browser", UpdateNotificationService.getCurrentVersionCode(context));
+
+            JSONObject root = new JSONObject();
+            root.put("version", EXPORT_VERSION);
+            root.put("exported", System.currentTimeMillis());
+            root.put("build", build);
+            root.put("count", n);
+            root.put("percentiles", summary);
+            root.put("loads", loads);
+            return root.toString(2);
+        } catch (JSONException e) {
+            Log.e(LOGTAG, "Failed to export page load metrics", e);
+            return null;
+        }
     }
 }
@@ -80,6 +80,7 @@ public interface PreferenceKeys {
     static final String PREF_SMALL_SCREEN = "small_screen";
     static final String PREF_WIDE_VIEWPORT = "wide_viewport";
     static final String PREF_RESET_PRELOGIN = "reset_prelogin";
+    static final String PREF_EXPORT_PAGE_LOAD_METRICS = "export_page_load_metrics";
 
     // ----------------------
     // Keys for lab_preferences.xml
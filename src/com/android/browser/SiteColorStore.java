@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the dominant favicon color of recently visited hosts, used to
+ * tint the status bar. Kept in memory as a bounded LRU map and persisted to
+ * a small binary file of its own, off the UI thread, rather than as one key
+ * per host in the default preferences.
+ */
+public class SiteColorStore {
+
+    private static final String LOGTAG = "SiteColorStore";
+
+    private static final String FILE_NAME = "site_colors";
+    private static final int VERSION = 1;
+    static final int MAX_HOSTS = 256;
+    // Suffix of the per-host keys this replaces in the default preferences
+    private static final String LEGACY_SUFFIX = ":color";
+
+    private static SiteColorStore sInstance;
+
+    private final File mFile;
+    private final LinkedHashMap<String, Integer> mColors =
+            new LinkedHashMap<String, Integer>(MAX_HOSTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+    private boolean mLoaded;
+    private boolean mSaveScheduled;
+
+    public static synchronized SiteColorStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SiteColorStore(
+                    context.getApplicationContext().getFileStreamPath(FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    SiteColorStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the stored colors, moving any left in the given preferences over
+     * on first run. Must not be called on the UI thread; until it is done
+     * lookups return no color.
+     */
+    public void load(SharedPreferences legacyPrefs) {
+        LinkedHashMap<String, Integer> colors = new LinkedHashMap<String, Integer>();
+        boolean migrated = false;
+        try {
+            read(colors);
+        } catch (FileNotFoundException e) {
+            migrated = migrate(legacyPrefs, colors);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read site colors", e);
+        }
+        boolean dirty = migrated;
+        synchronized (this) {
+            // Colors set while loading are more recent
+            LinkedHashMap<String, Integer> recent = new LinkedHashMap<String, Integer>(mColors);
+            mColors.clear();
+            mColors.putAll(colors);
+            mColors.putAll(recent);
+            mLoaded = true;
+            dirty |= !recent.isEmpty();
+        }
+        if (dirty) {
+            scheduleSave();
+        }
+    }
+
+    public synchronized int getColor(String url) {
+        String host = getHost(url);
+        if (host == null) {
+            return 0;
+        }
+        Integer color = mColors.get(host);
+        return color != null ? color : 0;
+    }
+
+    public void setColor(String url, int color) {
+        String host = getHost(url);
+        if (host == null) {
+            return;
+        }
+        synchronized (this) {
+            Integer current = mColors.put(host, color);
+            if (current != null && current == color) {
+                return;
+            }
+        }
+        scheduleSave();
+    }
+
+    private void scheduleSave() {
+        synchronized (this) {
+            if (mSaveScheduled || !mLoaded) {
+                // Saved once loading is done
+                return;
+            }
+            mSaveScheduled = true;
+        }
+        BackgroundHandler.execute(mSave, BackgroundHandler.PRIORITY_MAINTENANCE);
+    }
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            String[] hosts;
+            int[] colors;
+            synchronized (SiteColorStore.this) {
+                mSaveScheduled = false;
+                hosts = new String[mColors.size()];
+                colors = new int[hosts.length];
+                int i = 0;
+                // Least recently used first, so reading back restores the order
+                for (Map.Entry<String, Integer> entry : mColors.entrySet()) {
+                    hosts[i] = entry.getKey();
+                    colors[i++] = entry.getValue();
+                }
+            }
+            try {
+                write(hosts, colors);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Failed to save site colors", e);
+            }
+        }
+    };
+
+    private void read(Map<String, Integer> colors) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String host = in.readUTF();
+                colors.put(host, in.readInt());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(String[] hosts, int[] colors) throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(hosts.length);
+            for (int i = 0; i < hosts.length; i++) {
+                out.writeUTF(hosts[i]);
+                out.writeInt(colors[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + mFile);
+        }
+    }
+
+    private static boolean migrate(SharedPreferences prefs, Map<String, Integer> colors) {
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!key.endsWith(LEGACY_SUFFIX)) {
+                continue;
+            }
+            if (entry.getValue() instanceof Integer) {
+                colors.put(key.substring(0, key.length() - LEGACY_SUFFIX.length()),
+                        (Integer) entry.getValue());
+            }
+            if (editor == null) {
+                editor = prefs.edit();
+            }
+            editor.remove(key);
+        }
+        if (editor == null) {
+            return false;
+        }
+        editor.apply();
+        return true;
+    }
+
+    /**
+     * Returns the host of the given url, or null if it has none. Cheaper
+     * than going through java.net.URL for every favicon update.
+     */
+    static String getHost(String url) {
+        if (url == null) {
+            return null;
+        }
+        int start = url.indexOf("://");
+        if (start < 0) {
+            return null;
+        }
+        start += 3;
+        int length = url.length();
+        int end = start;
+        while (end < length) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            start = at + 1;
+        }
+        if (start < end && url.charAt(start) == '[') {
+            int bracket = url.indexOf(']', start);
+            if (bracket >= 0 && bracket < end) {
+                end = bracket + 1;
+            }
+        } else {
+            int colon = url.indexOf(':', start);
+            if (colon >= 0 && colon < end) {
+                end = colon;
+            }
+        }
+        return start < end ? url.substring(start, end) : null;
+    }
+}
@@ -29,10 +29,12 @@ import android.text.TextUtils;
 import android.util.Log;
 import org.codeaurora.swe.WebView;
 
+import com.android.browser.provider.SnapshotChunkStore;
 import com.android.browser.provider.SnapshotProvider.Snapshots;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
@@ -93,6 +95,24 @@ public class SnapshotTab extends Tab {
         }
     }
 
+    @Override
+    void destroy() {
+        super.destroy();
+        if (getWebView() != null) {
+            // Postponed
+            return;
+        }
+        // The restored view state copies the stored chunks, drop it with the WebView
+        final SnapshotChunkStore store = SnapshotChunkStore.getInstance(mContext);
+        final long id = mSnapshotId;
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                store.release(id);
+            }
+        }, BackgroundHandler.PRIORITY_MAINTENANCE);
+    }
+
     @Override
     void addChildTab(Tab child) {
         if (mIsLive) {
@@ -172,6 +192,7 @@ public class SnapshotTab extends Tab {
             Snapshots.BACKGROUND, // 5
             Snapshots.DATE_CREATED, // 6
             Snapshots.VIEWSTATE_PATH, // 7
+            Snapshots.VIEWSTATE_CHUNKS, // 8
         };
         static final int SNAPSHOT_ID = 0;
         static final int SNAPSHOT_URL = 1;
@@ -181,10 +202,12 @@ public class SnapshotTab extends Tab {
         static final int SNAPSHOT_BACKGROUND = 5;
         static final int SNAPSHOT_DATE_CREATED = 6;
         static final int SNAPSHOT_VIEWSTATE_PATH = 7;
+        static final int SNAPSHOT_VIEWSTATE_CHUNKS = 8;
 
         private SnapshotTab mTab;
         private ContentResolver mContentResolver;
         private Context mContext;
+        private String mRestoredPath;
 
         public LoadData(SnapshotTab t, Context context) {
             mTab = t;
@@ -196,7 +219,19 @@ public class SnapshotTab extends Tab {
         protected Cursor doInBackground(Void... params) {
             long id = mTab.mSnapshotId;
             Uri uri = ContentUris.withAppendedId(Snapshots.CONTENT_URI, id);
-            return mContentResolver.query(uri, PROJECTION, null, null, null);
+            Cursor c = mContentResolver.query(uri, PROJECTION, null, null, null);
+            if (c != null && c.moveToFirst()
+                    && !c.isNull(SNAPSHOT_VIEWSTATE_CHUNKS)) {
+                // Reassemble off the UI thread, view states can be large
+                try {
+                    mRestoredPath = SnapshotChunkStore.getInstance(mContext)
+                            .restore(id, c.getString(SNAPSHOT_VIEWSTATE_CHUNKS))
+                            .getName();
+                } catch (IOException e) {
+                    Log.w(LOGTAG, "Failed to restore view state", e);
+                }
+            }
+            return c;
         }
 
         private InputStream getInputStream(Cursor c) throws FileNotFoundException {
@@ -220,7 +255,12 @@ public class SnapshotTab extends Tab {
                     WebView web = mTab.getWebView();
                     if (web != null) {
                         String path = result.getString(SNAPSHOT_VIEWSTATE_PATH);
-                        if (!TextUtils.isEmpty(path)) {
+                        if (!result.isNull(SNAPSHOT_VIEWSTATE_CHUNKS)) {
+                            if (mRestoredPath == null) {
+                                throw new FileNotFoundException("View state chunks missing");
+                            }
+                            web.loadViewState(mRestoredPath);
+                        } else if (!TextUtils.isEmpty(path)) {
                              web.loadViewState(path);
                         } else {
                             InputStream ins = getInputStream(result);
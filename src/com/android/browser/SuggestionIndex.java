@@ -0,0 +1,635 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.util.Log;
+
+import com.android.browser.mdm.URLFilter;
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.Bookmarks;
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.HistoryColumns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory prefix index over bookmarks and history for omnibox
+ * suggestions. Each page is indexed by its url without scheme and "www.",
+ * by its full url and by the words of its title, so a keystroke is a
+ * range lookup in a sorted map instead of a set of LIKE queries.
+ *
+ * The index is loaded on first use and then kept up to date from provider
+ * change notifications, applied the next time the index is queried. A
+ * changed history row is re-read by id. Inserts and deletes are notified
+ * on the history directory only; those are found by comparing row ids,
+ * then only the new rows are read. Bookmark changes are rare and reload
+ * the bookmarks part. Anything else reloads everything.
+ */
+class SuggestionIndex {
+
+    private static final String LOGTAG = "SuggestionIndex";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    // History is capped by the provider, bookmarks are not
+    private static final int MAX_BOOKMARKS = 2000;
+    private static final int MAX_TITLE_TOKENS = 8;
+    private static final int MAX_KEY_LENGTH = 64;
+
+    private static final String[] URL_SCHEMES = {
+            "http://", "https://"
+    };
+    private static final String WWW_PREFIX = "www.";
+
+    /**
+     * A page that can be suggested, ranked by {@link Frecency}.
+     */
+    static class Entry {
+        final String url;
+        String title;
+        boolean isBookmark;
+        boolean inHistory;
+        int visits;
+        long date;
+        double historyScore = Double.NEGATIVE_INFINITY;
+        double bookmarkScore = Double.NEGATIVE_INFINITY;
+        // Frecency of the page, kept up to date by refresh()
+        double score;
+        final ArrayList<String> keys = new ArrayList<String>(4);
+        // Url and whole title keys, null if there are none
+        String urlKey;
+        String titleKey;
+        // History rows of this url
+        final ArrayList<HistoryRow> historyRows = new ArrayList<HistoryRow>(1);
+
+        Entry(String u) {
+            url = u;
+        }
+    }
+
+    private static class HistoryRow {
+        final Entry entry;
+        final int visits;
+        final long date;
+        final double score;
+
+        HistoryRow(Entry e, int v, long d, double s) {
+            entry = e;
+            visits = v;
+            date = d;
+            score = s;
+        }
+    }
+
+    private static final String[] HISTORY_PROJECTION = new String[] {
+            History._ID, History.URL, History.TITLE, History.VISITS,
+            History.DATE_LAST_VISITED, History.USER_ENTERED, HistoryColumns.FRECENCY
+    };
+    // Bound variables per query when reading rows by id
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static SuggestionIndex sInstance;
+
+    private final Context mContext;
+    private final AtomicInteger mHistoryGeneration = new AtomicInteger();
+    private final AtomicInteger mBookmarkGeneration = new AtomicInteger();
+    private int mLoadedHistoryGeneration = -1;
+    private int mLoadedBookmarkGeneration = -1;
+    // History rows changed since the last refresh
+    private final HashSet<Long> mChangedHistoryIds = new HashSet<Long>();
+    // Set when rows may have been inserted or deleted since the last refresh
+    private final AtomicBoolean mHistoryRescan = new AtomicBoolean();
+    private final HashMap<Long, HistoryRow> mHistoryRows = new HashMap<Long, HistoryRow>();
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    // Normalized url and title keys
+    private final TreeMap<String, ArrayList<Entry>> mKeys =
+            new TreeMap<String, ArrayList<Entry>>();
+    // Full urls cut to a key, for text that starts with a scheme
+    private final TreeMap<String, ArrayList<Entry>> mUrls =
+            new TreeMap<String, ArrayList<Entry>>();
+
+    static synchronized SuggestionIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SuggestionIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SuggestionIndex(Context context) {
+        mContext = context;
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                List<String> segments = uri != null ? uri.getPathSegments() : null;
+                String segment = segments != null && segments.size() > 0
+                        ? segments.get(0) : null;
+                boolean legacy = uri != null
+                        && BrowserProvider2.LEGACY_AUTHORITY.equals(uri.getAuthority());
+                if (legacy && segment == null) {
+                    // Sent along with every change, which is also notified
+                    // under its own uri
+                    return;
+                }
+                if (!legacy && "history".equals(segment)) {
+                    long id = segments.size() > 1 ? parseId(segments.get(1)) : -1;
+                    if (id >= 0) {
+                        synchronized (mChangedHistoryIds) {
+                            mChangedHistoryIds.add(id);
+                        }
+                    } else {
+                        mHistoryRescan.set(true);
+                    }
+                    return;
+                }
+                if (legacy || segment == null || "combined".equals(segment)) {
+                    mHistoryGeneration.incrementAndGet();
+                }
+                if (legacy || segment == null || "bookmarks".equals(segment)
+                        || "combined".equals(segment)) {
+                    mBookmarkGeneration.incrementAndGet();
+                }
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                BrowserContract.AUTHORITY_URI, true, observer);
+        context.getContentResolver().registerContentObserver(
+                Uri.parse("content://" + BrowserProvider2.LEGACY_AUTHORITY), true, observer);
+    }
+
+    /**
+     * Returns up to limit pages matching the text, best first. Reloads the
+     * stale parts of the index, so must not be called on the UI thread.
+     */
+    synchronized List<Entry> query(String text, int limit) {
+        refresh();
+        // Best match of each page, as its frecency plus the match bonus
+        final HashMap<Entry, Double> matches = new HashMap<Entry, Double>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        if (lower.startsWith("http") || lower.startsWith("file")) {
+            for (ArrayList<Entry> entries : prefixRange(mUrls, lower).values()) {
+                for (Entry e : entries) {
+                    // Keys are cut, longer text must match the whole url
+                    if (lower.length() <= MAX_KEY_LENGTH
+                            || e.url.toLowerCase(Locale.ROOT).startsWith(lower)) {
+                        addMatch(matches, e, Frecency.MATCH_URL);
+                    }
+                }
+            }
+        } else {
+            String key = normalizeKey(lower);
+            if (key.length() == 0) {
+                // Like "%", everything matches
+                for (Entry e : mEntries.values()) {
+                    addMatch(matches, e, Frecency.MATCH_WORD);
+                }
+            } else {
+                for (Map.Entry<String, ArrayList<Entry>> keyed
+                        : prefixRange(mKeys, key).entrySet()) {
+                    for (Entry e : keyed.getValue()) {
+                        addMatch(matches, e, getMatch(e, keyed.getKey(), key));
+                    }
+                }
+            }
+        }
+        ArrayList<Entry> results = new ArrayList<Entry>(matches.size());
+        for (Entry e : matches.keySet()) {
+            // Don't suggest pages the URLBlackList policy blocks
+            if (URLFilter.isAllowed(e.url)) {
+                results.add(e);
+            }
+        }
+        Collections.sort(results, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return Double.compare(matches.get(rhs), matches.get(lhs));
+            }
+        });
+        if (results.size() > limit) {
+            return new ArrayList<Entry>(results.subList(0, limit));
+        }
+        return results;
+    }
+
+    private static void addMatch(HashMap<Entry, Double> matches, Entry e, int match) {
+        double rank = e.score + Frecency.matchBonus(match);
+        Double previous = matches.get(e);
+        if (previous == null || previous < rank) {
+            matches.put(e, rank);
+        }
+    }
+
+    private static int getMatch(Entry e, String matchedKey, String text) {
+        if (matchedKey.equals(e.urlKey)) {
+            // The url key, best if the text covers the whole host
+            int slash = matchedKey.indexOf('/');
+            int hostLength = slash < 0 ? matchedKey.length() : slash;
+            return text.length() >= hostLength ? Frecency.MATCH_HOST : Frecency.MATCH_URL;
+        }
+        return matchedKey.equals(e.titleKey) ? Frecency.MATCH_TITLE : Frecency.MATCH_WORD;
+    }
+
+    private static <V> SortedMap<String, V> prefixRange(TreeMap<String, V> map, String prefix) {
+        if (prefix.length() > MAX_KEY_LENGTH) {
+            // Keys are cut, the caller's text is matched against the cut key
+            prefix = prefix.substring(0, MAX_KEY_LENGTH);
+        }
+        return map.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private void refresh() {
+        int history = mHistoryGeneration.get();
+        int bookmarks = mBookmarkGeneration.get();
+        long start = LOGV_ENABLED ? System.nanoTime() : 0;
+        boolean reloaded = false;
+        if (bookmarks != mLoadedBookmarkGeneration) {
+            if (loadBookmarks()) {
+                mLoadedBookmarkGeneration = bookmarks;
+            }
+            reloaded = true;
+        }
+        if (history != mLoadedHistoryGeneration) {
+            // A full load covers the row changes seen so far
+            mHistoryRescan.set(false);
+            synchronized (mChangedHistoryIds) {
+                mChangedHistoryIds.clear();
+            }
+            if (loadHistory()) {
+                mLoadedHistoryGeneration = history;
+            }
+            reloaded = true;
+        } else {
+            if (mHistoryRescan.getAndSet(false)) {
+                rescanHistory();
+            }
+            ArrayList<Long> changed;
+            synchronized (mChangedHistoryIds) {
+                changed = new ArrayList<Long>(mChangedHistoryIds);
+                mChangedHistoryIds.clear();
+            }
+            if (!changed.isEmpty()) {
+                loadHistoryRows(changed);
+            }
+        }
+        if (!reloaded) {
+            return;
+        }
+        for (Entry e : mEntries.values()) {
+            updateScore(e);
+        }
+        if (LOGV_ENABLED) {
+            Log.v(LOGTAG, "Reloaded " + mEntries.size() + " entries, " + mKeys.size()
+                    + " keys in " + (System.nanoTime() - start) / 1000 + " us");
+        }
+    }
+
+    private static void updateScore(Entry e) {
+        e.score = Math.max(e.bookmarkScore, e.isBookmark
+                ? e.historyScore + Frecency.bookmarkBonus() : e.historyScore);
+    }
+
+    private boolean loadBookmarks() {
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(
+                    BookmarkUtils.getBookmarksUri(mContext),
+                    new String[] { Bookmarks.URL, Bookmarks.TITLE, Bookmarks.DATE_CREATED,
+                            Bookmarks.DATE_MODIFIED },
+                    Bookmarks.IS_FOLDER + " == 0", null, null);
+            if (c == null) {
+                return false;
+            }
+            for (Entry e : new ArrayList<Entry>(mEntries.values())) {
+                e.isBookmark = false;
+                e.bookmarkScore = Double.NEGATIVE_INFINITY;
+                removeIfUnused(e);
+            }
+            int count = 0;
+            while (c.moveToNext() && count < MAX_BOOKMARKS) {
+                Entry e = getOrCreate(c.getString(0));
+                if (e == null) {
+                    continue;
+                }
+                e.isBookmark = true;
+                e.bookmarkScore = Frecency.bookmarkScore(
+                        Math.max(c.getLong(2), c.getLong(3)));
+                setTitle(e, c.getString(1));
+                count++;
+            }
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error loading bookmarks: " + e);
+            return false;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    private boolean loadHistory() {
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(History.CONTENT_URI,
+                    HISTORY_PROJECTION, null, null, null);
+            if (c == null) {
+                return false;
+            }
+            mHistoryRows.clear();
+            for (Entry e : new ArrayList<Entry>(mEntries.values())) {
+                e.historyRows.clear();
+                updateHistory(e);
+                removeIfUnused(e);
+            }
+            while (c.moveToNext()) {
+                putHistoryRow(c);
+            }
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error loading history: " + e);
+            return false;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    /**
+     * Finds the history rows inserted or deleted since the last refresh
+     * by their ids, and reads only the inserted ones.
+     */
+    private void rescanHistory() {
+        Cursor c = null;
+        HashSet<Long> present = new HashSet<Long>();
+        try {
+            c = mContext.getContentResolver().query(History.CONTENT_URI,
+                    new String[] { History._ID }, null, null, null);
+            if (c == null) {
+                mHistoryRescan.set(true);
+                return;
+            }
+            while (c.moveToNext()) {
+                present.add(c.getLong(0));
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error scanning history: " + e);
+            mHistoryRescan.set(true);
+            return;
+        } finally {
+            if (c != null) c.close();
+        }
+        for (Long id : new ArrayList<Long>(mHistoryRows.keySet())) {
+            if (!present.contains(id)) {
+                removeHistoryRow(id);
+            }
+        }
+        ArrayList<Long> added = new ArrayList<Long>();
+        for (Long id : present) {
+            if (!mHistoryRows.containsKey(id)) {
+                added.add(id);
+            }
+        }
+        if (!added.isEmpty()) {
+            loadHistoryRows(added);
+        }
+    }
+
+    /**
+     * Reads the given history rows, dropping the ones no longer there.
+     */
+    private void loadHistoryRows(List<Long> ids) {
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+            List<Long> batch = ids.subList(from,
+                    Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+            StringBuilder selection = new StringBuilder(History._ID + " IN (");
+            String[] args = new String[batch.size()];
+            for (int i = 0; i < args.length; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                args[i] = Long.toString(batch.get(i));
+            }
+            selection.append(')');
+            HashSet<Long> missing = new HashSet<Long>(batch);
+            Cursor c = null;
+            try {
+                c = mContext.getContentResolver().query(History.CONTENT_URI,
+                        HISTORY_PROJECTION, selection.toString(), args, null);
+                if (c == null) {
+                    continue;
+                }
+                while (c.moveToNext()) {
+                    missing.remove(c.getLong(0));
+                    putHistoryRow(c);
+                }
+            } catch (SQLiteException e) {
+                Log.e(LOGTAG, "Error loading history rows: " + e);
+                continue;
+            } finally {
+                if (c != null) c.close();
+            }
+            for (Long id : missing) {
+                removeHistoryRow(id);
+            }
+        }
+    }
+
+    private void putHistoryRow(Cursor c) {
+        long id = c.getLong(0);
+        removeHistoryRow(id);
+        Entry e = getOrCreate(c.getString(1));
+        if (e == null) {
+            return;
+        }
+        // Rows written before the column existed have no score yet
+        double score = c.isNull(6)
+                ? Frecency.score(c.getInt(3), c.getLong(4), c.getInt(5) != 0)
+                : c.getDouble(6);
+        HistoryRow row = new HistoryRow(e, c.getInt(3), c.getLong(4), score);
+        mHistoryRows.put(id, row);
+        e.historyRows.add(row);
+        updateHistory(e);
+        if (!e.isBookmark) {
+            setTitle(e, c.getString(2));
+        }
+    }
+
+    private void removeHistoryRow(long id) {
+        HistoryRow row = mHistoryRows.remove(id);
+        if (row == null) {
+            return;
+        }
+        row.entry.historyRows.remove(row);
+        updateHistory(row.entry);
+        removeIfUnused(row.entry);
+    }
+
+    /**
+     * Recomputes the history fields of the entry from its rows.
+     */
+    private static void updateHistory(Entry e) {
+        e.inHistory = !e.historyRows.isEmpty();
+        e.visits = 0;
+        e.date = 0;
+        e.historyScore = Double.NEGATIVE_INFINITY;
+        for (HistoryRow row : e.historyRows) {
+            e.visits += row.visits;
+            e.date = Math.max(e.date, row.date);
+            e.historyScore = Math.max(e.historyScore, row.score);
+        }
+        updateScore(e);
+    }
+
+    private static long parseId(String segment) {
+        try {
+            return Long.parseLong(segment);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Entry getOrCreate(String url) {
+        if (url == null) {
+            return null;
+        }
+        Entry e = mEntries.get(url);
+        if (e == null) {
+            e = new Entry(url);
+            mEntries.put(url, e);
+            add(mUrls, cut(url.toLowerCase(Locale.ROOT)), e);
+            e.urlKey = addKey(e, normalizeKey(url.toLowerCase(Locale.ROOT)));
+        }
+        return e;
+    }
+
+    private void removeIfUnused(Entry e) {
+        if (e.isBookmark || e.inHistory) {
+            return;
+        }
+        mEntries.remove(e.url);
+        remove(mUrls, cut(e.url.toLowerCase(Locale.ROOT)), e);
+        removeKeys(e);
+    }
+
+    private void setTitle(Entry e, String title) {
+        if (title == null ? e.title == null : title.equals(e.title)) {
+            return;
+        }
+        removeKeys(e);
+        addKey(e, e.urlKey);
+        e.titleKey = null;
+        e.title = title;
+        if (title == null) {
+            return;
+        }
+        String lower = title.toLowerCase(Locale.ROOT);
+        e.titleKey = addKey(e, lower.trim());
+        int tokens = 0;
+        int start = -1;
+        for (int i = 0; i <= lower.length() && tokens < MAX_TITLE_TOKENS; i++) {
+            boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                // The first word is covered by the whole title key
+                if (start > 0) {
+                    addKey(e, lower.substring(start));
+                }
+                start = -1;
+                tokens++;
+            }
+        }
+    }
+
+    /**
+     * Indexes the entry under key, cut to length. Returns the key it was
+     * indexed under, or null if key is empty.
+     */
+    private String addKey(Entry e, String key) {
+        if (key == null || key.length() == 0) {
+            return null;
+        }
+        key = cut(key);
+        if (!e.keys.contains(key)) {
+            add(mKeys, key, e);
+            e.keys.add(key);
+        }
+        return key;
+    }
+
+    private void removeKeys(Entry e) {
+        for (String key : e.keys) {
+            remove(mKeys, key, e);
+        }
+        e.keys.clear();
+    }
+
+    private static void add(TreeMap<String, ArrayList<Entry>> map, String key, Entry e) {
+        ArrayList<Entry> entries = map.get(key);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            map.put(key, entries);
+        }
+        entries.add(e);
+    }
+
+    private static void remove(TreeMap<String, ArrayList<Entry>> map, String key, Entry e) {
+        ArrayList<Entry> entries = map.get(key);
+        if (entries != null) {
+            entries.remove(e);
+            if (entries.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static String cut(String key) {
+        return key.length() > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key;
+    }
+
+    /**
+     * Lower case url or typed text without its scheme and "www.", so both
+     * "goo" and "www.goo" find http://www.google.com.
+     */
+    static String normalizeKey(String lowerUrl) {
+        for (String scheme : URL_SCHEMES) {
+            if (lowerUrl.startsWith(scheme)) {
+                lowerUrl = lowerUrl.substring(scheme.length());
+                break;
+            }
+        }
+        if (lowerUrl.startsWith(WWW_PREFIX)) {
+            lowerUrl = lowerUrl.substring(WWW_PREFIX.length());
+        }
+        return lowerUrl;
+    }
+}
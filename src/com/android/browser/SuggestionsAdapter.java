@@ -19,12 +19,11 @@ package com.android.browser;
 import android.app.SearchManager;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.android.browser.R;
-import com.android.browser.platformsupport.BrowserContract;
-import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
 import com.android.browser.search.SearchEngine;
 
 import android.text.Html;
@@ -41,7 +40,9 @@ import android.widget.TextView;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * adapter to wrap multiple cursors for url/search completions
@@ -55,19 +56,13 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     public static final int TYPE_SEARCH = 3;
     public static final int TYPE_SUGGEST = 4;
 
-    private static final String[] COMBINED_PROJECTION = {
-            OmniboxSuggestions._ID,
-            OmniboxSuggestions.TITLE,
-            OmniboxSuggestions.URL,
-            OmniboxSuggestions.IS_BOOKMARK
-            };
-
-    private static final String COMBINED_SELECTION =
-            "(url LIKE ? OR url LIKE ? OR url LIKE ? OR url LIKE ? OR title LIKE ?)";
+    // Wait for the user to pause typing before asking the search engine
+    private static final long SUGGEST_DEBOUNCE_MS = 150;
 
     final Context mContext;
     final Filter mFilter;
-    SuggestionResults mMixedResults;
+    // Read by the filter thread when a query is superseded
+    volatile SuggestionResults mMixedResults;
     List<SuggestItem> mSuggestResults, mFilterResults;
     List<CursorSource> mSources;
     boolean mLandscapeMode;
@@ -78,6 +73,11 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     boolean mIncognitoMode;
     BrowserSettings mSettings;
 
+    // Bumped for every new constraint; results of older ones are dropped
+    final AtomicInteger mQueryGeneration = new AtomicInteger();
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+    SlowFilterTask mSuggestTask;
+
     interface CompletionListener {
 
         public void onSearch(String txt);
@@ -205,13 +205,19 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
     class SlowFilterTask extends AsyncTask<CharSequence, Void, List<SuggestItem>> {
 
+        final int mGeneration;
+
+        SlowFilterTask(int generation) {
+            mGeneration = generation;
+        }
+
         @Override
         protected List<SuggestItem> doInBackground(CharSequence... params) {
             SuggestCursor cursor = new SuggestCursor();
             cursor.runQuery(params[0]);
             List<SuggestItem> results = new ArrayList<SuggestItem>();
             int count = cursor.getCount();
-            for (int i = 0; i < count; i++) {
+            for (int i = 0; i < count && !isCancelled(); i++) {
                 SuggestItem item = cursor.getItem();
                 if(item != null)
                     results.add(item);
@@ -223,7 +229,16 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
         @Override
         protected void onPostExecute(List<SuggestItem> items) {
-            mSuggestResults = items;
+            if (mSuggestTask == this) {
+                mSuggestTask = null;
+            }
+            if (mGeneration != mQueryGeneration.get()) {
+                // The user kept typing, these are for an older query
+                return;
+            }
+            synchronized (mResultsLock) {
+                mSuggestResults = items;
+            }
             mMixedResults = buildSuggestionResults();
             notifyDataSetChanged();
         }
@@ -251,6 +266,15 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
     class SuggestFilter extends Filter {
 
+        @Override
+        public void filter(CharSequence constraint, FilterListener listener) {
+            // Called on the UI thread for each edit, before the filter
+            // thread picks it up, so work for older text can see that it
+            // has been superseded
+            mQueryGeneration.incrementAndGet();
+            super.filter(constraint, listener);
+        }
+
         @Override
         public CharSequence convertResultToString(Object item) {
             if (item == null) {
@@ -264,10 +288,24 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             }
         }
 
-        void startSuggestionsAsync(final CharSequence constraint) {
-            if (!mIncognitoMode) {
-                new SlowFilterTask().execute(constraint);
+        void startSuggestionsAsync(final CharSequence constraint, final int generation) {
+            if (mIncognitoMode) {
+                return;
             }
+            mHandler.removeCallbacksAndMessages(null);
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != mQueryGeneration.get()) {
+                        return;
+                    }
+                    if (mSuggestTask != null) {
+                        mSuggestTask.cancel(true);
+                    }
+                    mSuggestTask = new SlowFilterTask(generation);
+                    mSuggestTask.execute(constraint);
+                }
+            }, SUGGEST_DEBOUNCE_MS);
         }
 
         private boolean shouldProcessEmptyQuery() {
@@ -278,12 +316,13 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         @Override
         protected FilterResults performFiltering(CharSequence constraint) {
             FilterResults res = new FilterResults();
+            final int generation = mQueryGeneration.get();
             if (TextUtils.isEmpty(constraint) && !shouldProcessEmptyQuery()) {
                 res.count = 0;
                 res.values = null;
                 return res;
             }
-            startSuggestionsAsync(constraint);
+            startSuggestionsAsync(constraint, generation);
             List<SuggestItem> filterResults = new ArrayList<SuggestItem>();
             if (constraint != null) {
                 for (CursorSource sc : mSources) {
@@ -291,6 +330,14 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
                 }
                 mixResults(filterResults);
             }
+            if (generation != mQueryGeneration.get()) {
+                // Superseded while querying. Keep what is shown, an empty
+                // result would close the dropdown until the next one lands
+                SuggestionResults shown = mMixedResults;
+                res.count = (shown == null) ? 0 : shown.getLineCount();
+                res.values = shown;
+                return res;
+            }
             synchronized (mResultsLock) {
                 mFilterResults = filterResults;
             }
@@ -318,7 +365,8 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
         @Override
         protected void publishResults(CharSequence constraint, FilterResults fresults) {
-            if (fresults.values instanceof SuggestionResults) {
+            if (fresults.values instanceof SuggestionResults
+                    && fresults.values != mMixedResults) {
                 mMixedResults = (SuggestionResults) fresults.values;
                 notifyDataSetChanged();
             }
@@ -353,12 +401,17 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
         void addResult(SuggestItem item) {
             int ix = 0;
-            while ((ix < items.size()) && (item.type >= items.get(ix).type))
+            while ((ix < items.size()) && (group(item.type) >= group(items.get(ix).type)))
                 ix++;
             items.add(ix, item);
             counts[item.type]++;
         }
 
+        // Bookmarks and history come ranked together from the index
+        private int group(int type) {
+            return type == TYPE_BOOKMARK ? TYPE_HISTORY : type;
+        }
+
         int getLineCount() {
             return Math.min((mLandscapeMode ? mLinesLandscape : mLinesPortrait), items.size());
         }
@@ -424,14 +477,32 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
      */
     class CombinedCursor extends CursorSource {
 
+        private List<SuggestionIndex.Entry> mRows =
+                Collections.<SuggestionIndex.Entry>emptyList();
+        private int mPosition;
+
+        @Override
+        boolean moveToNext() {
+            mPosition++;
+            return mPosition < mRows.size();
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public void close() {
+            mRows = Collections.<SuggestionIndex.Entry>emptyList();
+        }
+
         @Override
         public SuggestItem getItem() {
-            if ((mCursor != null) && (!mCursor.isAfterLast())) {
-                String title = mCursor.getString(1);
-                String url = mCursor.getString(2);
-                boolean isBookmark = (mCursor.getInt(3) == 1);
-                return new SuggestItem(getTitle(title, url), getUrl(title, url),
-                        isBookmark ? TYPE_BOOKMARK : TYPE_HISTORY);
+            if (mPosition < mRows.size()) {
+                SuggestionIndex.Entry row = mRows.get(mPosition);
+                return new SuggestItem(getTitle(row.title, row.url), getUrl(row.title, row.url),
+                        row.isBookmark ? TYPE_BOOKMARK : TYPE_HISTORY);
             }
             return null;
         }
@@ -439,35 +510,9 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         @Override
         public void runQuery(CharSequence constraint) {
             // constraint != null
-            if (mCursor != null) {
-                mCursor.close();
-            }
-            String like = constraint + "%";
-            String[] args = null;
-            String selection = null;
-            if (like.startsWith("http") || like.startsWith("file")) {
-                args = new String[1];
-                args[0] = like;
-                selection = "url LIKE ?";
-            } else {
-                args = new String[5];
-                args[0] = "http://" + like;
-                args[1] = "http://www." + like;
-                args[2] = "https://" + like;
-                args[3] = "https://www." + like;
-                // To match against titles.
-                args[4] = like;
-                selection = COMBINED_SELECTION;
-            }
-            Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
-            ub.appendQueryParameter(BrowserContract.PARAM_LIMIT,
-                    Integer.toString(Math.max(mLinesLandscape, mLinesPortrait)));
-            mCursor =
-                    mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
-                            selection, (constraint != null) ? args : null, null);
-            if (mCursor != null) {
-                mCursor.moveToFirst();
-            }
+            mPosition = 0;
+            mRows = SuggestionIndex.getInstance(mContext).query(constraint.toString(),
+                    Math.max(mLinesLandscape, mLinesPortrait));
         }
 
         /**
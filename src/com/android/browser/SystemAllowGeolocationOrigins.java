@@ -72,7 +72,7 @@ class SystemAllowGeolocationOrigins {
     }
 
     void maybeApplySettingAsync() {
-        BackgroundHandler.execute(mMaybeApplySetting);
+        BackgroundHandler.execute(mMaybeApplySetting, BackgroundHandler.PRIORITY_MAINTENANCE);
     }
 
     /**
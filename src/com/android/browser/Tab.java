@@ -182,10 +182,17 @@ class Tab implements PictureListener {
     private int mCaptureWidth;
     private int mCaptureHeight;
     private Bitmap mCapture;
+    // Compressed capture restored from storage, decoded on first use
+    private byte[] mPendingCaptureBlob;
     private Bitmap mViewportCapture;
+    // Hash of the last persisted capture, used to skip saving identical ones.
+    // Only used on the DataController thread, which computes it.
+    private long mCaptureHash;
     private Handler mHandler;
     private boolean mUpdateThumbnail;
     private Timestamp timestamp;
+    // Number of times the tab was made the active tab
+    private int mActivationCount;
     private boolean mFullScreen = false;
     private boolean mReceivedError;
 
@@ -378,6 +385,7 @@ class Tab implements PictureListener {
         public void onFirstVisualPixel(WebView view) {
             mFirstVisualPixelPainted = true;
             mFirstPixelObservable.set(true);
+            Performance.onFirstVisualPixel(Tab.this);
         }
 
         // return true if want to hijack the url to let another app to handle it
@@ -1242,6 +1250,7 @@ class Tab implements PictureListener {
     public void initCaptureBitmap() {
         mCapture = Bitmap.createBitmap(mCaptureWidth, mCaptureHeight, Bitmap.Config.RGB_565);
         mCapture.eraseColor(Color.WHITE);
+        mPendingCaptureBlob = null;
     }
 
     /**
@@ -1290,11 +1299,16 @@ class Tab implements PictureListener {
     public void setTimeStamp(){
         Date d = new Date();
         timestamp = (new Timestamp(d.getTime()));
+        mActivationCount++;
     }
 
     public Timestamp getTimestamp() {
         return timestamp;
     }
+
+    public int getActivationCount() {
+        return mActivationCount;
+    }
     /**
      * Sets the WebView for this tab, correctly removing the old WebView from
      * the container view.
@@ -1842,6 +1856,9 @@ class Tab implements PictureListener {
 
     public Bitmap getScreenshot() {
         synchronized (Tab.this) {
+            if (mPendingCaptureBlob != null) {
+                decodePendingCapture();
+            }
             return mCapture;
         }
     }
@@ -1995,6 +2012,7 @@ class Tab implements PictureListener {
                     }
 
                     Canvas c = new Canvas(mCapture);
+                    mPendingCaptureBlob = null;
                     mCapture.eraseColor(Color.WHITE);
                     c.drawBitmap(bitmap, 0, 0, null);
 
@@ -2007,6 +2025,7 @@ class Tab implements PictureListener {
                             mCapture.getHeight(), sAlphaPaint);
                     c.setBitmap(null);
 
+                    // Skipped off the UI thread if the capture did not change
                     persistThumbnail();
                     thumbnailUpdated();
                 }
@@ -2038,6 +2057,14 @@ class Tab implements PictureListener {
         }
     }
 
+    long getCaptureHash() {
+        return mCaptureHash;
+    }
+
+    void setCaptureHash(long hash) {
+        mCaptureHash = hash;
+    }
+
     protected void persistThumbnail() {
         DataController.getInstance(mContext).saveThumbnail(this);
     }
@@ -2051,6 +2078,14 @@ class Tab implements PictureListener {
             if (mCapture == null) {
                 return;
             }
+            if (!isRawCapture(blob, mCapture.getByteCount())) {
+                // Compressed capture, only decode it once someone asks for it
+                mPendingCaptureBlob = blob;
+                return;
+            }
+            // Raw pixels saved by older versions, which wrote their whole
+            // buffer; it may be longer than the capture if its size changed
+            mPendingCaptureBlob = null;
             ByteBuffer buffer = ByteBuffer.wrap(blob);
             try {
                 mCapture.copyPixelsFromBuffer(buffer);
@@ -2063,6 +2098,33 @@ class Tab implements PictureListener {
         }
     }
 
+    /**
+     * Older versions saved the raw pixels of the capture, at least as many
+     * bytes as the bitmap holds. JPEG captures start with the SOI marker.
+     */
+    private static boolean isRawCapture(byte[] blob, int byteCount) {
+        if (blob.length < byteCount) {
+            return false;
+        }
+        return blob.length < 2 || (blob[0] & 0xff) != 0xff || (blob[1] & 0xff) != 0xd8;
+    }
+
+    private void decodePendingCapture() {
+        byte[] blob = mPendingCaptureBlob;
+        mPendingCaptureBlob = null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap decoded = BitmapFactory.decodeByteArray(blob, 0, blob.length, options);
+        if (decoded == null) {
+            Log.w(LOGTAG, "Failed to decode saved capture for tab " + mId);
+            return;
+        }
+        Canvas c = new Canvas(mCapture);
+        c.drawBitmap(decoded, 0, 0, null);
+        c.setBitmap(null);
+        decoded.recycle();
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder(100);
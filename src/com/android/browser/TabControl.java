@@ -29,7 +29,6 @@ import org.codeaurora.swe.util.Observable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
 
 class TabControl {
     // Log Tag
@@ -87,6 +86,8 @@ class TabControl {
 
     private OnThumbnailUpdatedListener mOnThumbnailUpdatedListener;
 
+    private final TabEvictionPolicy mEvictionPolicy;
+
     private Observable mTabCountObservable;
 
     /**
@@ -97,6 +98,7 @@ class TabControl {
         mMaxTabs = mController.getMaxTabs();
         mTabs = new ArrayList<Tab>(mMaxTabs);
         mTabQueue = new ArrayList<Tab>(mMaxTabs);
+        mEvictionPolicy = new TabEvictionPolicy(controller.getContext());
         mTabCountObservable = new Observable();
         mTabCountObservable.set(0);
     }
@@ -304,6 +306,7 @@ class TabControl {
         // Remove t from our list of tabs.
         mTabs.remove(t);
         mTabCountObservable.set(mTabs.size());
+        Performance.onTabClosed(t);
 
         //Clear incognito geolocation state if this is the last incognito tab.
         if (t.isPrivateBrowsingEnabled()) {
@@ -526,6 +529,10 @@ class TabControl {
         }
     }
 
+    TabEvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
     /**
      * Free the memory in this order, 1) free the background tabs; 2) free the
      * WebView cache;
@@ -533,16 +540,14 @@ class TabControl {
     void freeMemory() {
         if (getTabCount() == 0) return;
 
-        // free the least frequently used background tabs
-        Vector<Tab> tabs = getHalfLeastUsedTabs(getCurrentTab());
-        if (tabs.size() > 0) {
-            Log.w(LOGTAG, "Free " + tabs.size() + " tabs in the browser");
-            for (Tab t : tabs) {
-                // store the WebView's state.
-                t.saveState();
-                // destroy the tab
-                t.destroy();
+        // Release about half of the live tabs, as onLowMemory always has
+        int liveTabs = 0;
+        for (Tab t : mTabs) {
+            if (t.isNativeActive()) {
+                liveTabs++;
             }
+        }
+        if (releaseTabs(liveTabs - liveTabs / 2, Long.MAX_VALUE)) {
             return;
         }
 
@@ -554,38 +559,34 @@ class TabControl {
         }
     }
 
-    private Vector<Tab> getHalfLeastUsedTabs(Tab current) {
-        Vector<Tab> tabsToGo = new Vector<Tab>();
-
-        // Don't do anything if we only have 1 tab or if the current tab is
-        // null.
-        if (getTabCount() == 1 || current == null) {
-            return tabsToGo;
-        }
+    /**
+     * Free memory for the given onTrimMemory level: release the background
+     * tabs the eviction policy picks to get under the level's budget.
+     */
+    void freeMemory(int level) {
+        if (getTabCount() == 0) return;
 
-        if (mTabQueue.size() == 0) {
-            return tabsToGo;
-        }
+        releaseTabs(mEvictionPolicy.getTabBudget(level), mEvictionPolicy.getMemoryBudget(level));
+    }
 
-        // Rip through the queue starting at the beginning and tear down half of
-        // available tabs which are not the current tab or the parent of the
-        // current tab.
-        int openTabCount = 0;
-        for (Tab t : mTabQueue) {
-            if (t != null && t.getWebView() != null) {
-                openTabCount++;
-                if (t != current && t != current.getParent()) {
-                    tabsToGo.add(t);
-                }
-            }
+    /**
+     * Destroys the background tabs least worth keeping until the live tabs
+     * fit the given budgets. Returns true if any tab was released.
+     */
+    private boolean releaseTabs(int maxLiveTabs, long memoryBudget) {
+        List<Tab> tabs = mEvictionPolicy.selectTabsToEvict(mTabs, getCurrentTab(),
+                maxLiveTabs, memoryBudget);
+        if (tabs.isEmpty()) {
+            return false;
         }
-
-        openTabCount /= 2;
-        if (tabsToGo.size() > openTabCount) {
-            tabsToGo.setSize(openTabCount);
+        Log.w(LOGTAG, "Free " + tabs.size() + " tabs in the browser");
+        for (Tab t : tabs) {
+            // store the WebView's state.
+            t.saveState();
+            // destroy the tab
+            t.destroy();
         }
-
-        return tabsToGo;
+        return true;
     }
 
     Tab getLeastUsedTab(Tab current) {
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import org.codeaurora.swe.WebView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides which background tabs give up their WebView when memory gets
+ * tight. Tabs are scored by recency, how often they are visited and how
+ * much memory their renderer is estimated to use, and only the lowest
+ * scoring tabs needed to get back under the budget are released.
+ *
+ * Subclasses can override {@link #score} to change the ranking.
+ */
+class TabEvictionPolicy {
+
+    // Fixed cost of a live WebView, on top of the size of its content
+    private static final long BASE_TAB_MEMORY = 8 * 1024 * 1024;
+    private static final long MAX_CONTENT_MEMORY = 32 * 1024 * 1024;
+    private static final long MINUTE = 60 * 1000;
+
+    private final int mMaxLiveTabs;
+    private final long mMemoryBudget;
+
+    TabEvictionPolicy(Context context) {
+        mMaxLiveTabs = context.getResources()
+                .getInteger(R.integer.feature_num_min_active_tabs);
+        ActivityManager am = (ActivityManager) context
+                .getSystemService(Context.ACTIVITY_SERVICE);
+        // Let the live tabs use up to half of the app's heap budget
+        mMemoryBudget = am.getMemoryClass() * 1024L * 1024L / 2;
+    }
+
+    /**
+     * Number of live tabs allowed at the given onTrimMemory level.
+     */
+    int getTabBudget(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 1;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return Math.max(1, mMaxLiveTabs / 2);
+        }
+        return mMaxLiveTabs;
+    }
+
+    /**
+     * Estimated memory the live tabs may use at the given onTrimMemory level.
+     */
+    long getMemoryBudget(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return mMemoryBudget / 2;
+        }
+        return mMemoryBudget;
+    }
+
+    /**
+     * Returns the tabs to release so that no more than maxLiveTabs tabs keep
+     * a WebView and their estimated memory fits in memoryBudget, lowest
+     * scoring first. The current tab, its parent and tabs that are busy
+     * loading or showing a sub window are never chosen.
+     */
+    List<Tab> selectTabsToEvict(List<Tab> tabs, Tab current, int maxLiveTabs,
+            long memoryBudget) {
+        final long now = System.currentTimeMillis();
+        ArrayList<Tab> candidates = new ArrayList<Tab>();
+        int liveTabs = 0;
+        long liveMemory = 0;
+        for (Tab t : tabs) {
+            if (!t.isNativeActive()) {
+                continue;
+            }
+            liveTabs++;
+            liveMemory += estimateMemory(t);
+            if (t != current && (current == null || t != current.getParent())
+                    && !t.inPageLoad() && t.getSubWebView() == null) {
+                candidates.add(t);
+            }
+        }
+        final ArrayList<Tab> victims = new ArrayList<Tab>();
+        if (liveTabs <= maxLiveTabs && liveMemory <= memoryBudget) {
+            return victims;
+        }
+        final ArrayList<Double> scores = new ArrayList<Double>(candidates.size());
+        for (Tab t : candidates) {
+            scores.add(score(t, now));
+        }
+        final ArrayList<Integer> order = new ArrayList<Integer>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(scores.get(lhs), scores.get(rhs));
+            }
+        });
+        for (int i : order) {
+            if (liveTabs <= maxLiveTabs && liveMemory <= memoryBudget) {
+                break;
+            }
+            Tab t = candidates.get(i);
+            victims.add(t);
+            liveTabs--;
+            liveMemory -= estimateMemory(t);
+        }
+        return victims;
+    }
+
+    /**
+     * How much a tab is worth keeping alive; higher scores are kept longer.
+     */
+    protected double score(Tab tab, long now) {
+        long lastUsed = tab.getTimestamp() != null ? tab.getTimestamp().getTime() : 0;
+        double ageMinutes = Math.max(0, now - lastUsed) / (double) MINUTE;
+        double recency = 1.0 / (1.0 + ageMinutes);
+        double frequency = Math.log1p(tab.getActivationCount());
+        double memoryMb = estimateMemory(tab) / (1024.0 * 1024.0);
+        // Heavier tabs free more memory per reload, so go first
+        return (2 * recency + frequency) / (1.0 + memoryMb / 64.0);
+    }
+
+    /**
+     * Rough estimate of the renderer memory held by a tab, from the area of
+     * its content.
+     */
+    protected long estimateMemory(Tab tab) {
+        WebView view = tab.getWebView();
+        if (view == null) {
+            return 0;
+        }
+        long content = 4L * Math.max(0, view.getContentWidth())
+                * Math.max(0, view.getContentHeight());
+        return BASE_TAB_MEMORY + Math.min(content, MAX_CONTENT_MEMORY);
+    }
+}
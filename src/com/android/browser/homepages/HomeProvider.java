@@ -35,12 +35,33 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.HashMap;
 
 public class HomeProvider extends ContentProvider {
 
     private static final String TAG = "HomeProvider";
     public static final String AUTHORITY = BrowserConfig.AUTHORITY + ".home";
     public static final String MOST_VISITED = "content://" + AUTHORITY + "/index";
+    static final String THUMBNAIL_PATH = "thumbnail";
+    static final String THUMBNAIL_URL = "url";
+    private static final String THUMBNAIL_VERSION = "v";
+    private static final String THUMBNAIL_CACHE_CONTROL = "max-age=604800";
+
+    /**
+     * Returns the uri the most visited page loads the thumbnail of url from.
+     * version changes whenever the thumbnail may have, so WebView can keep
+     * the image cached until then.
+     */
+    static String getThumbnailUri(String url, long version) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(AUTHORITY)
+                .path(THUMBNAIL_PATH)
+                .appendQueryParameter(THUMBNAIL_URL, url)
+                .appendQueryParameter(THUMBNAIL_VERSION, Long.toString(version))
+                .build()
+                .toString();
+    }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
@@ -97,6 +118,12 @@ public class HomeProvider extends ContentProvider {
                 if (AUTHORITY.equals(uri.getAuthority())) {
                     InputStream ins = context.getContentResolver()
                             .openInputStream(uri);
+                    if (THUMBNAIL_PATH.equals(uri.getLastPathSegment())) {
+                        HashMap<String, String> headers = new HashMap<String, String>();
+                        headers.put("Cache-Control", THUMBNAIL_CACHE_CONTROL);
+                        return new WebResourceResponse("image/png", null, 200, "OK",
+                                headers, ins);
+                    }
                     return new WebResourceResponse("text/html", "utf-8", ins);
                 }
             }
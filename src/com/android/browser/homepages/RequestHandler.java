@@ -20,22 +20,20 @@ import android.content.Context;
 import android.content.UriMatcher;
 import android.content.res.Resources;
 import android.database.Cursor;
-import android.database.MergeCursor;
 import android.net.Uri;
-import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
 
 import com.android.browser.R;
 import com.android.browser.homepages.Template.ListEntityIterator;
+import com.android.browser.homepages.Template.Sink;
 import com.android.browser.platformsupport.BrowserContract.Bookmarks;
 import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.platformsupport.BrowserContract.Images;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.util.Arrays;
@@ -48,8 +46,9 @@ public class RequestHandler extends Thread {
     private static final String TAG = "RequestHandler";
     private static final int INDEX = 1;
     private static final int RESOURCE = 2;
+    private static final int THUMBNAIL = 3;
+    private static final int MAX_TILES = 12;
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
-    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
 
     Uri mUri;
     Context mContext;
@@ -58,6 +57,7 @@ public class RequestHandler extends Thread {
     static {
         sUriMatcher.addURI(HomeProvider.AUTHORITY, "index", INDEX);
         sUriMatcher.addURI(HomeProvider.AUTHORITY, "res/*/*", RESOURCE);
+        sUriMatcher.addURI(HomeProvider.AUTHORITY, HomeProvider.THUMBNAIL_PATH, THUMBNAIL);
     }
 
     public RequestHandler(Context context, Uri uri, OutputStream out) {
@@ -91,59 +91,124 @@ public class RequestHandler extends Thread {
         case RESOURCE:
             writeResource(getUriResourcePath());
             break;
+        case THUMBNAIL:
+            writeThumbnail(mUri.getQueryParameter(HomeProvider.THUMBNAIL_URL));
+            break;
         }
     }
 
-    byte[] htmlEncode(String s) {
-        return TextUtils.htmlEncode(s).getBytes(UTF8_CHARSET);
-    }
-
-    // We can reuse this for both History and Bookmarks queries because the
-    // columns defined actually belong to the CommonColumn and ImageColumn
-    // interfaces that both History and Bookmarks implement
-    private static final String[] PROJECTION = new String[] {
+    // The thumbnails themselves are left out, the page loads them from
+    // HomeProvider by url. The third column versions the thumbnail uri,
+    // thumbnails are only captured when the page is visited or bookmarked.
+    private static final String[] HISTORY_PROJECTION = new String[] {
         History.URL,
         History.TITLE,
-        History.THUMBNAIL
+        History.DATE_LAST_VISITED
+    };
+    private static final String[] BOOKMARKS_PROJECTION = new String[] {
+        Bookmarks.URL,
+        Bookmarks.TITLE,
+        Bookmarks.DATE_MODIFIED
     };
     private static final String SELECTION = History.URL
             + " NOT LIKE 'content:%' AND " + History.THUMBNAIL + " IS NOT NULL";
     void writeTemplatedIndex() throws IOException {
         Template t = Template.getCachedTemplate(mContext, R.raw.most_visited);
-        Cursor historyResults = mContext.getContentResolver().query(
-                History.CONTENT_URI, PROJECTION, SELECTION,
-                null, History.VISITS + " DESC LIMIT 12");
-        Cursor cursor = historyResults;
+        MostVisitedIterator tiles = new MostVisitedIterator();
+        t.assignLoop("most_visited", tiles);
         try {
-            if (cursor.getCount() < 12) {
-                Cursor bookmarkResults = mContext.getContentResolver().query(
-                        Bookmarks.CONTENT_URI, PROJECTION, SELECTION,
-                        null, Bookmarks.DATE_CREATED + " DESC LIMIT 12");
-                cursor = new MergeCursor(new Cursor[] { historyResults, bookmarkResults }) {
-                    @Override
-                    public int getCount() {
-                        return Math.min(12, super.getCount());
-                    }
-                };
-            }
-            t.assignLoop("most_visited", new Template.CursorListEntityWrapper(cursor) {
-                @Override
-                public void writeValue(OutputStream stream, String key) throws IOException {
-                    Cursor cursor = getCursor();
-                    if (key.equals("url")) {
-                        stream.write(htmlEncode(cursor.getString(0)));
-                    } else if (key.equals("title")) {
-                        stream.write(htmlEncode(cursor.getString(1)));
-                    } else if (key.equals("thumbnail")) {
-                        stream.write("data:image/png;base64,".getBytes());
-                        byte[] thumb = cursor.getBlob(2);
-                        stream.write(Base64.encode(thumb, Base64.DEFAULT));
-                    }
-                }
-            });
             t.write(mOutput);
         } finally {
-            cursor.close();
+            tiles.close();
+        }
+    }
+
+    /**
+     * Walks the most visited history and then the most recent bookmarks,
+     * up to MAX_TILES rows. The queries run when the template reaches the
+     * tiles, after the page skeleton has been flushed out.
+     */
+    private class MostVisitedIterator implements ListEntityIterator {
+        private Cursor mHistory;
+        private Cursor mBookmarks;
+        private Cursor mCursor;
+        private int mCount;
+
+        @Override
+        public void reset() {
+            close();
+            mHistory = mContext.getContentResolver().query(
+                    History.CONTENT_URI, HISTORY_PROJECTION, SELECTION,
+                    null, History.VISITS + " DESC LIMIT " + MAX_TILES);
+            mCursor = mHistory;
+            mCount = 0;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (mCursor == null || mCount >= MAX_TILES) {
+                return false;
+            }
+            if (mCursor.moveToNext()) {
+                mCount++;
+                return true;
+            }
+            if (mCursor != mHistory) {
+                return false;
+            }
+            mBookmarks = mContext.getContentResolver().query(
+                    Bookmarks.CONTENT_URI, BOOKMARKS_PROJECTION, SELECTION,
+                    null, Bookmarks.DATE_CREATED + " DESC LIMIT " + (MAX_TILES - mCount));
+            mCursor = mBookmarks;
+            return moveToNext();
+        }
+
+        @Override
+        public void writeValue(Sink sink, String key) throws IOException {
+            if (key.equals("url")) {
+                sink.writeHtml(mCursor.getString(0));
+            } else if (key.equals("title")) {
+                sink.writeHtml(mCursor.getString(1));
+            } else if (key.equals("thumbnail")) {
+                sink.writeHtml(HomeProvider.getThumbnailUri(
+                        mCursor.getString(0), mCursor.getLong(2)));
+            }
+        }
+
+        @Override
+        public ListEntityIterator getListIterator(String key) {
+            return null;
+        }
+
+        void close() {
+            if (mHistory != null) {
+                mHistory.close();
+                mHistory = null;
+            }
+            if (mBookmarks != null) {
+                mBookmarks.close();
+                mBookmarks = null;
+            }
+            mCursor = null;
+        }
+    }
+
+    void writeThumbnail(String url) throws IOException {
+        if (url == null) {
+            return;
+        }
+        Cursor c = mContext.getContentResolver().query(Images.CONTENT_URI,
+                new String[] { Images.THUMBNAIL }, Images.URL + "=?",
+                new String[] { url }, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            if (c.moveToFirst() && !c.isNull(0)) {
+                mOutput.write(c.getBlob(0));
+            }
+        } finally {
+            c.close();
         }
     }
 
@@ -168,31 +233,32 @@ public class RequestHandler extends Thread {
             int index = -1;
 
             @Override
-            public void writeValue(OutputStream stream, String key) throws IOException {
+            public void writeValue(Sink sink, String key) throws IOException {
                 File f = files[index];
                 if ("name".equals(key)) {
-                    stream.write(f.getName().getBytes());
+                    sink.writeText(f.getName());
                 }
                 if ("url".equals(key)) {
-                    stream.write(("file://" + f.getAbsolutePath()).getBytes());
+                    sink.writeText("file://");
+                    sink.writeText(f.getAbsolutePath());
                 }
                 if ("type".equals(key)) {
-                    stream.write((f.isDirectory() ? "dir" : "file").getBytes());
+                    sink.writeText(f.isDirectory() ? "dir" : "file");
                 }
                 if ("size".equals(key)) {
                     if (f.isFile()) {
-                        stream.write(readableFileSize(f.length()).getBytes());
+                        sink.writeText(readableFileSize(f.length()));
                     }
                 }
                 if ("last_modified".equals(key)) {
                     String date = DateFormat.getDateTimeInstance(
                             DateFormat.SHORT, DateFormat.SHORT)
                             .format(f.lastModified());
-                    stream.write(date.getBytes());
+                    sink.writeText(date);
                 }
                 if ("alt".equals(key)) {
                     if (index % 2 == 0) {
-                        stream.write("alt".getBytes());
+                        sink.writeText("alt");
                     }
                 }
             }
@@ -1,4 +1,3 @@
-
 /*
  * Copyright (C) 2011 The Android Open Source Project
  *
@@ -19,9 +18,10 @@ package com.android.browser.homepages;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,12 +32,39 @@ import android.util.TypedValue;
 
 import com.android.browser.R;
 
+/**
+ * Templates used by the built in pages (most visited, folder listing and
+ * my navigation).
+ *
+ * A template is compiled once into an immutable list of instructions whose
+ * static parts are already UTF-8 encoded, and is cached by resource id until
+ * the locale changes. Rendering writes through a pooled {@link Sink}, so
+ * the only allocations per render are the ones the data makes.
+ */
 public class Template {
 
-    private static HashMap<Integer, Template> sCachedTemplates = new HashMap<Integer, Template>();
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+    private static final Pattern CONST_PATTERN = Pattern.compile("<%@\\s*(\\w+/\\w+)\\s*%>");
+    private static final Pattern ENTITY_PATTERN = Pattern.compile("<%([=\\{])\\s*(\\w+)\\s*%>");
+    private static final Pattern LIST_END_PATTERN = Pattern.compile("<%\\}\\s*(\\w+)\\s*%>");
+    private static final String R_PACKAGE = R.class.getPackage().getName();
+
+    private static final HashMap<Integer, Template> sCachedTemplates =
+            new HashMap<Integer, Template>();
+    private static Locale sCachedLocale;
+
+    private static final int SINK_POOL_SIZE = 2;
+    private static final ArrayList<Sink> sSinkPool = new ArrayList<Sink>(SINK_POOL_SIZE);
 
     public static Template getCachedTemplate(Context context, int id) {
+        // Constants are resolved at compile time and may be localized
+        Locale locale = context.getResources().getConfiguration().locale;
         synchronized (sCachedTemplates) {
+            if (!locale.equals(sCachedLocale)) {
+                sCachedTemplates.clear();
+                sCachedLocale = locale;
+            }
             Template template = sCachedTemplates.get(id);
             if (template == null) {
                 template = new Template(context, id);
@@ -49,65 +76,71 @@ public class Template {
     }
 
     interface Entity {
-        void write(OutputStream stream, EntityData params) throws IOException;
+        void write(Sink sink, EntityData params) throws IOException;
     }
 
-    interface EntityData {
-        void writeValue(OutputStream stream, String key) throws IOException;
+    public interface EntityData {
+        void writeValue(Sink sink, String key) throws IOException;
         ListEntityIterator getListIterator(String key);
     }
 
-    interface ListEntityIterator extends EntityData {
+    public interface ListEntityIterator extends EntityData {
         void reset();
         boolean moveToNext();
     }
 
     static class StringEntity implements Entity {
 
-        byte[] mValue;
+        final byte[] mValue;
 
         public StringEntity(String value) {
-            mValue = value.getBytes();
+            mValue = value.getBytes(UTF8_CHARSET);
         }
 
         @Override
-        public void write(OutputStream stream, EntityData params) throws IOException {
-            stream.write(mValue);
+        public void write(Sink sink, EntityData params) throws IOException {
+            sink.write(mValue, 0, mValue.length);
         }
 
     }
 
     static class SimpleEntity implements Entity {
 
-        String mKey;
+        final String mKey;
 
         public SimpleEntity(String key) {
             mKey = key;
         }
 
         @Override
-        public void write(OutputStream stream, EntityData params) throws IOException {
-            params.writeValue(stream, mKey);
+        public void write(Sink sink, EntityData params) throws IOException {
+            params.writeValue(sink, mKey);
         }
 
     }
 
     static class ListEntity implements Entity {
 
-        String mKey;
-        Template mSubTemplate;
+        final String mKey;
+        final Entity[] mSubTemplate;
 
-        public ListEntity(Context context, String key, String subTemplate) {
+        public ListEntity(String key, Entity[] subTemplate) {
             mKey = key;
-            mSubTemplate = new Template(context, subTemplate);
+            mSubTemplate = subTemplate;
         }
 
         @Override
-        public void write(OutputStream stream, EntityData params) throws IOException {
+        public void write(Sink sink, EntityData params) throws IOException {
             ListEntityIterator iter = params.getListIterator(mKey);
+            if (iter == null) {
+                return;
+            }
+            // Lists are usually backed by a query, let what comes before
+            // them render in the meantime
+            sink.flush();
             iter.reset();
             while (iter.moveToNext()) {
-                mSubTemplate.write(stream, iter);
+                Template.write(mSubTemplate, sink, iter);
             }
         }
 
@@ -156,22 +189,160 @@ public class Template {
         }
 
         @Override
-        public void writeValue(OutputStream stream, String key) throws IOException {
-            stream.write((byte[]) mData.get(key));
+        public void writeValue(Sink sink, String key) throws IOException {
+            byte[] value = (byte[]) mData.get(key);
+            if (value != null) {
+                sink.write(value, 0, value.length);
+            }
         }
 
     }
 
-    private List<Entity> mTemplate;
-    private HashMap<String, Object> mData = new HashMap<String, Object>();
-    private Template(Context context, int tid) {
-        this(context, readRaw(context, tid));
+    /**
+     * Buffered output of a render. Encodes strings straight into its buffer
+     * instead of going through String.getBytes().
+     */
+    public static final class Sink extends OutputStream {
+
+        private final byte[] mBuffer = new byte[8192];
+        private int mCount;
+        private OutputStream mOut;
+
+        Sink() {}
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                flushBuffer();
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            if (length >= mBuffer.length) {
+                flushBuffer();
+                mOut.write(b, offset, length);
+                return;
+            }
+            if (length > mBuffer.length - mCount) {
+                flushBuffer();
+            }
+            System.arraycopy(b, offset, mBuffer, mCount, length);
+            mCount += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            mOut.flush();
+        }
+
+        /**
+         * Writes s as UTF-8.
+         */
+        public void writeText(CharSequence s) throws IOException {
+            if (s != null) {
+                writeChars(s, false);
+            }
+        }
+
+        /**
+         * Writes s as UTF-8, escaped the same way as TextUtils.htmlEncode.
+         */
+        public void writeHtml(CharSequence s) throws IOException {
+            if (s != null) {
+                writeChars(s, true);
+            }
+        }
+
+        private void writeChars(CharSequence s, boolean escape) throws IOException {
+            final int length = s.length();
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (escape) {
+                    switch (c) {
+                        case '<': writeAscii("&lt;"); continue;
+                        case '>': writeAscii("&gt;"); continue;
+                        case '&': writeAscii("&amp;"); continue;
+                        case '\'': writeAscii("&#39;"); continue;
+                        case '"': writeAscii("&quot;"); continue;
+                    }
+                }
+                if (mBuffer.length - mCount < 4) {
+                    flushBuffer();
+                }
+                if (c < 0x80) {
+                    mBuffer[mCount++] = (byte) c;
+                } else if (c < 0x800) {
+                    mBuffer[mCount++] = (byte) (0xc0 | (c >> 6));
+                    mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    mBuffer[mCount++] = (byte) (0xf0 | (cp >> 18));
+                    mBuffer[mCount++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    mBuffer[mCount++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    mBuffer[mCount++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    mBuffer[mCount++] = '?';
+                } else {
+                    mBuffer[mCount++] = (byte) (0xe0 | (c >> 12));
+                    mBuffer[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private void writeAscii(String s) throws IOException {
+            if (mBuffer.length - mCount < s.length()) {
+                flushBuffer();
+            }
+            for (int i = 0; i < s.length(); i++) {
+                mBuffer[mCount++] = (byte) s.charAt(i);
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (mCount > 0) {
+                mOut.write(mBuffer, 0, mCount);
+                mCount = 0;
+            }
+        }
+    }
+
+    private static Sink obtainSink(OutputStream out) {
+        Sink sink = null;
+        synchronized (sSinkPool) {
+            if (!sSinkPool.isEmpty()) {
+                sink = sSinkPool.remove(sSinkPool.size() - 1);
+            }
+        }
+        if (sink == null) {
+            sink = new Sink();
+        }
+        sink.mOut = out;
+        return sink;
+    }
+
+    private static void recycleSink(Sink sink) {
+        sink.mOut = null;
+        sink.mCount = 0;
+        synchronized (sSinkPool) {
+            if (sSinkPool.size() < SINK_POOL_SIZE) {
+                sSinkPool.add(sink);
+            }
+        }
     }
 
-    private Template(Context context, String template) {
-        mTemplate = new ArrayList<Entity>();
-        template = replaceConsts(context, template);
-        parseTemplate(context, template);
+    private final Entity[] mTemplate;
+    private final HashMap<String, Object> mData = new HashMap<String, Object>();
+
+    private Template(Context context, int tid) {
+        ArrayList<Entity> entities = new ArrayList<Entity>();
+        String template = replaceConsts(context, readRaw(context, tid));
+        parseTemplate(template, 0, template.length(), entities);
+        mTemplate = entities.toArray(new Entity[entities.size()]);
     }
 
     private Template(Template copy) {
@@ -182,41 +353,49 @@ public class Template {
         return new Template(this);
     }
 
-    void parseTemplate(Context context, String template) {
-        final Pattern pattern = Pattern.compile("<%([=\\{])\\s*(\\w+)\\s*%>");
-        Matcher m = pattern.matcher(template);
-        int start = 0;
+    private static void parseTemplate(String template, int start, int end,
+            ArrayList<Entity> entities) {
+        Matcher m = ENTITY_PATTERN.matcher(template);
+        m.region(start, end);
         while (m.find()) {
-            String static_part = template.substring(start, m.start());
-            if (static_part.length() > 0) {
-                mTemplate.add(new StringEntity(static_part));
+            if (m.start() > start) {
+                entities.add(new StringEntity(template.substring(start, m.start())));
             }
             String type = m.group(1);
             String name = m.group(2);
-            if (type.equals("=")) {
-                mTemplate.add(new SimpleEntity(name));
-            } else if (type.equals("{")) {
-                Pattern p = Pattern.compile("<%\\}\\s*" + Pattern.quote(name) + "\\s*%>");
-                Matcher end_m = p.matcher(template);
-                if (end_m.find(m.end())) {
-                    start = m.end();
-                    m.region(end_m.end(), template.length());
-                    String subTemplate = template.substring(start, end_m.start());
-                    mTemplate.add(new ListEntity(context, name, subTemplate));
-                    start = end_m.end();
-                    continue;
+            start = m.end();
+            if (type.equals("{")) {
+                Matcher listEnd = findListEnd(template, m.end(), end, name);
+                if (listEnd != null) {
+                    ArrayList<Entity> sub = new ArrayList<Entity>();
+                    parseTemplate(template, m.end(), listEnd.start(), sub);
+                    entities.add(new ListEntity(name, sub.toArray(new Entity[sub.size()])));
+                    start = listEnd.end();
+                    m.region(start, end);
                 }
+            } else {
+                entities.add(new SimpleEntity(name));
             }
-            start = m.end();
         }
-        String static_part = template.substring(start, template.length());
-        if (static_part.length() > 0) {
-            mTemplate.add(new StringEntity(static_part));
+        if (end > start) {
+            entities.add(new StringEntity(template.substring(start, end)));
         }
     }
 
+    // Returns the match of the closing tag of the list name, or null
+    private static Matcher findListEnd(String template, int start, int end, String name) {
+        Matcher m = LIST_END_PATTERN.matcher(template);
+        m.region(start, end);
+        while (m.find()) {
+            if (m.group(1).equals(name)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
     public void assign(String name, String value) {
-        mData.put(name, value.getBytes());
+        mData.put(name, value.getBytes(UTF8_CHARSET));
     }
 
     public void assignLoop(String name, ListEntityIterator iter) {
@@ -228,23 +407,32 @@ public class Template {
     }
 
     public void write(OutputStream stream, EntityData data) throws IOException {
-        for (Entity ent : mTemplate) {
-            ent.write(stream, data);
+        Sink sink = obtainSink(stream);
+        try {
+            write(mTemplate, sink, data);
+            sink.flush();
+        } finally {
+            recycleSink(sink);
+        }
+    }
+
+    private static void write(Entity[] entities, Sink sink, EntityData data)
+            throws IOException {
+        for (Entity ent : entities) {
+            ent.write(sink, data);
         }
     }
 
     private static String replaceConsts(Context context, String template) {
-        final Pattern pattern = Pattern.compile("<%@\\s*(\\w+/\\w+)\\s*%>");
         final Resources res = context.getResources();
-        Matcher m = pattern.matcher(template);
+        Matcher m = CONST_PATTERN.matcher(template);
         StringBuffer sb = new StringBuffer();
         while (m.find()) {
             String name = m.group(1);
             if (name.startsWith("drawable/")) {
                 m.appendReplacement(sb, "res/" + name);
             } else {
-                final String packageName = R.class.getPackage().getName();
-                int id = res.getIdentifier(name, null, packageName);
+                int id = res.getIdentifier(name, null, R_PACKAGE);
                 if(id == 0) {
                     id = res.getIdentifier(name, null, context.getPackageName());
                 }
@@ -262,7 +450,7 @@ public class Template {
                     } else {
                         replacement = value.coerceToString().toString();
                     }
-                    m.appendReplacement(sb, replacement);
+                    m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
                 }
             }
         }
@@ -278,7 +466,12 @@ public class Template {
             return new String(buf, "utf-8");
         } catch (IOException ex) {
             return "<html><body>Error</body></html>";
+        } finally {
+            try {
+                ins.close();
+            } catch (IOException e) {
+            }
         }
     }
 
-}
\ No newline at end of file
+}
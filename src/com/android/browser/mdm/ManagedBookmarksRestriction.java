@@ -31,10 +31,7 @@
 package com.android.browser.mdm;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 
@@ -42,7 +39,6 @@ import com.android.browser.platformsupport.BrowserContract;
 
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import static org.chromium.base.ApplicationStatus.getApplicationContext;
 
@@ -51,7 +47,7 @@ public class ManagedBookmarksRestriction extends Restriction {
     private final static String TAG = "+++MngdBookmarks_Rest";
 
     public static final String MANAGED_BOOKMARKS = "ManagedBookmarks";
-    private static final String FOLDER_URL_KEY = "MDM";
+    static final String FOLDER_URL_KEY = "MDM";
     private static ManagedBookmarksRestriction sInstance;
     private String mJsonBookmarks;
     public BookmarksDb mDb;
@@ -166,24 +162,6 @@ public class ManagedBookmarksRestriction extends Restriction {
             return c;
         }
 
-        private void addBookmark(String title, long parent, String url) {
-            ContentValues values = new ContentValues();
-            values.put(BrowserContract.Bookmarks.PARENT, parent);
-            values.put(BrowserContract.Bookmarks.TITLE, title);
-            values.put(BrowserContract.Bookmarks.URL, url);
-
-            try {
-                Uri uri = cr().insert(BrowserContract.Bookmarks.CONTENT_URI, values);
-                if (uri == null) {
-                    Log.e(TAG, "Bookmark '" + title + "' creation failed.");
-                }
-            } catch (android.database.sqlite.SQLiteException e) {
-                Log.e(TAG, "addBookmark-SQL Exception during creation: [" + e.toString() + "]");
-            } catch (CRException e) {
-                Log.e(TAG, "addBookmark CR Exception: [" + e.toString() + "]");
-            }
-        }
-
         private boolean bookmarksAlreadyEnabled(int hash) {
             boolean ret = false;
             String incomingHash = String.valueOf(hash);
@@ -202,62 +180,6 @@ public class ManagedBookmarksRestriction extends Restriction {
             return ret;
         }
 
-        private void addFolder(String title, long parent, JSONArray children, int hash) {
-            ContentValues values = new ContentValues();
-            values.put(BrowserContract.Bookmarks.PARENT, parent);
-            values.put(BrowserContract.Bookmarks.TITLE, title);
-            values.put(BrowserContract.Bookmarks.IS_FOLDER, 1);
-
-            // We are using the URL field (normally not used for folders) to
-            // lock down that this folder is managed by Mdm.  This is certainly
-            // non-standard, but the alternative would be to modify the database schema,
-            // which would become a maintenance headache later when google updates the schema.
-            if (hash != 0) {
-                // We add the hash of the json string to the root folder. We use this
-                // to check if we already have this bookmark set enabled.
-                values.put(BrowserContract.Bookmarks.URL, FOLDER_URL_KEY + ":" + hash);
-            }
-            else {
-                values.put(BrowserContract.Bookmarks.URL, FOLDER_URL_KEY);
-            }
-
-            try {
-                Uri uri = cr().insert(BrowserContract.Bookmarks.CONTENT_URI, values);
-                if (uri != null) {
-                    long nodeId = ContentUris.parseId(uri);
-
-                    if (children != null) {
-                        for (int i = 0; i < children.length(); i++) {
-                            JSONObject j = children.getJSONObject(i);
-
-                            // if it has a URL, then it's a bookmark
-                            if (j.has("url")) {
-                                String t = j.getString("name");
-                                String u = j.getString("url");
-                                mDb.addBookmark(t, nodeId, u);
-                            }
-                            // if it has children, then it's a subfolder
-                            else if (j.has("children")) {
-                                String t = j.getString("name");
-                                JSONArray ja = new JSONArray(j.getString("children"));
-                                addFolder(t, nodeId, ja, 0);
-                            } else {
-                                Log.e(TAG, "Parse error processing children for [" + title + "]");
-                            }
-                        }
-                    }
-                } else {
-                    Log.e(TAG, "Folder creation failed.");
-                }
-            } catch (android.database.sqlite.SQLiteException e) {
-                Log.e(TAG, "addFolder-SQL Exception during creation: [" + e.toString() + "]");
-            } catch (JSONException e) {
-                Log.e(TAG, "addFolder-JSON exception during creation: [" + e.toString() + "]");
-            } catch (CRException e) {
-                Log.e(TAG, "addFolder CR Exception: [" + e.toString() + "]");
-            }
-        }
-
         public boolean isMdmElement(long id) {
             boolean ret = false;
 
@@ -299,48 +221,6 @@ public class ManagedBookmarksRestriction extends Restriction {
             c.close();
             return ret;
         }
-
-        private void deleteTree(long folderId) {
-            if (folderId == -1) {
-                Log.i(TAG, " deleteTree: no tree to delete.");
-                return;
-            }
-
-            String[] projections =
-                    new String[]{
-                            BrowserContract.Bookmarks.IS_FOLDER,
-                            BrowserContract.Bookmarks._ID};
-
-            try {
-                Cursor c = getChildrenForMdmFolder(folderId, projections);
-
-                int n = c.getCount();
-                if (n != 0) {
-                    c.moveToFirst();
-                    for (int i = 0; i < n; i++) {
-                        int isFolder = c.getInt(0);
-                        int itemId   = c.getInt(1);
-
-                        if (isFolder == 1) {
-                            deleteTree(itemId);
-                        }
-                        else {
-                            mDb.deleteItemById(itemId);
-                        }
-                        c.moveToNext();
-                    }
-                }
-                else {
-                    Log.i(TAG,"DeleteTree: no children for id["+folderId+"]");
-                }
-                c.close();
-
-                // now that the contents have been deleted, delete this folder
-                mDb.deleteItemById(folderId);
-            } catch (android.database.sqlite.SQLiteException e) {
-                Log.e(TAG, "deleteTree SQL Exception: [" + e.toString() + "]");
-            }
-        }
     }
 
     /* For Debugging
@@ -385,7 +265,8 @@ public class ManagedBookmarksRestriction extends Restriction {
     } */
 
     private void removeManagedBookmarks() {
-        mDb.deleteTree(mDb.getMdmRootFolderId());
+        new ManagedBookmarksSync(getApplicationContext().getContentResolver())
+                .delete(mDb.getMdmRootFolderId());
     }
 
     public boolean bookmarksWereCreated() {
@@ -393,14 +274,11 @@ public class ManagedBookmarksRestriction extends Restriction {
     }
 
     private void addManagedBookmarks() {
-        String name = "Managed";
-        int rootFolder = 1;
         mCreatedMdmBookmarks = false;
 
         int hash = mJsonBookmarks.hashCode();
         if (! mDb.bookmarksAlreadyEnabled(hash)) {
             Log.i(TAG, ">>>>>>> BOOKMARKS NOT ALREADY ENABLED <<<<<<<<<<<<");
-            removeManagedBookmarks();
             JSONArray dict = null;
             try {
                 dict = new JSONArray(mJsonBookmarks);
@@ -408,7 +286,9 @@ public class ManagedBookmarksRestriction extends Restriction {
                 Log.w(TAG, "addManagedBookmarks: Incoming JSON didn't parse. Creating empty folder." + e.toString());
             }
 
-            mDb.addFolder(name, rootFolder, dict, hash);
+            // Only the differences to the current folder are written
+            new ManagedBookmarksSync(getApplicationContext().getContentResolver())
+                    .sync(mDb.getMdmRootFolderId(), dict, hash);
 
             mCreatedMdmBookmarks = true;
         }
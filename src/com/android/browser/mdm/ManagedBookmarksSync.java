@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.mdm;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.Bookmarks;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Brings the managed bookmarks folder in line with a ManagedBookmarks policy.
+ *
+ * The folder is read a level at a time and diffed against the policy tree.
+ * Folders are matched by name and bookmarks by url within their parent, and
+ * a bookmark that moved to another folder keeps its row. Only the
+ * differences are written, as one applyBatch() call. The batch allows a
+ * yield every OPS_PER_YIELD_POINT operations, where the provider may commit
+ * and start a new transaction, so a large sync is atomic only within each
+ * of those windows; a failure part way leaves the earlier windows applied
+ * and the next sync diffs again from there.
+ */
+final class ManagedBookmarksSync {
+
+    private final static String TAG = "+++MngdBookmarks_Sync";
+
+    static final String ROOT_TITLE = "Managed";
+    static final long ROOT_PARENT = 1;
+
+    // Ids per IN (...) clause, below SQLite's limit on bound variables
+    private static final int MAX_IDS_PER_CLAUSE = 500;
+    // SQLiteContentProvider refuses more operations than this between yield points
+    private static final int OPS_PER_YIELD_POINT = 400;
+
+    private static final String[] PROJECTION = new String[] {
+            Bookmarks._ID,
+            Bookmarks.PARENT,
+            Bookmarks.IS_FOLDER,
+            Bookmarks.TITLE,
+            Bookmarks.URL,
+            Bookmarks.POSITION,
+    };
+
+    /** A row of the managed folder. */
+    private static class Row {
+        long id;
+        long parent;
+        boolean folder;
+        String title;
+        String url;
+        long position;
+        final ArrayList<Row> children = new ArrayList<Row>();
+        boolean kept;
+    }
+
+    /** An entry of the policy. */
+    private static class Item {
+        final String title;
+        final String url;
+        final ArrayList<Item> children;
+        Row match;
+
+        Item(String t, String u, ArrayList<Item> c) {
+            title = t;
+            url = u;
+            children = c;
+        }
+
+        boolean isFolder() {
+            return url == null;
+        }
+
+        String key() {
+            return isFolder() ? "F" + title : "B" + url;
+        }
+    }
+
+    /** Parent of an item, either an existing row or a folder inserted by the batch. */
+    private static class Parent {
+        final long id;
+        final int opIndex;
+
+        Parent(long i, int op) {
+            id = i;
+            opIndex = op;
+        }
+    }
+
+    private final ContentResolver mCr;
+    private final ArrayList<ContentProviderOperation> mOps =
+            new ArrayList<ContentProviderOperation>();
+    private final HashMap<String, ArrayDeque<Row>> mMovable =
+            new HashMap<String, ArrayDeque<Row>>();
+    private int mInserts;
+    private int mUpdates;
+    private int mMoves;
+    private int mDeletes;
+
+    ManagedBookmarksSync(ContentResolver cr) {
+        mCr = cr;
+    }
+
+    /**
+     * Makes the managed folder rootId (-1 if there is none yet) match json,
+     * and tags it with hash.
+     */
+    void sync(long rootId, JSONArray json, int hash) {
+        ArrayList<Item> items = parse(json);
+        Row root = rootId != -1 ? load(rootId) : null;
+        Parent parent;
+        if (root == null) {
+            parent = new Parent(-1, mOps.size());
+            add(ContentProviderOperation.newInsert(Bookmarks.CONTENT_URI)
+                    .withValue(Bookmarks.PARENT, ROOT_PARENT)
+                    .withValue(Bookmarks.TITLE, ROOT_TITLE)
+                    .withValue(Bookmarks.IS_FOLDER, 1)
+                    .withValue(Bookmarks.URL, folderUrl(hash)));
+            mInserts++;
+        } else {
+            parent = new Parent(root.id, -1);
+            root.kept = true;
+            match(items, root);
+            collectMovable(root);
+        }
+        apply(items, parent);
+        if (root != null) {
+            deleteUnkept(root);
+            // Tag last, so an interrupted sync is redone next time
+            add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Bookmarks.CONTENT_URI, root.id))
+                    .withValue(Bookmarks.URL, folderUrl(hash)));
+        }
+        commit();
+        Log.i(TAG, "Synced managed bookmarks: " + mInserts + " inserted, " + mUpdates
+                + " updated, " + mMoves + " moved, " + mDeletes + " deleted in "
+                + mOps.size() + " operations");
+    }
+
+    /**
+     * Deletes the managed folder rootId and everything in it.
+     */
+    void delete(long rootId) {
+        if (rootId == -1) {
+            Log.i(TAG, "delete: no tree to delete.");
+            return;
+        }
+        Row root = load(rootId);
+        if (root != null) {
+            deleteUnkept(root);
+            commit();
+        }
+    }
+
+    static String folderUrl(int hash) {
+        // We add the hash of the json string to the root folder. We use this
+        // to check if we already have this bookmark set enabled.
+        return hash != 0
+                ? ManagedBookmarksRestriction.FOLDER_URL_KEY + ":" + hash
+                : ManagedBookmarksRestriction.FOLDER_URL_KEY;
+    }
+
+    private static ArrayList<Item> parse(JSONArray json) {
+        ArrayList<Item> items = new ArrayList<Item>();
+        if (json == null) {
+            return items;
+        }
+        for (int i = 0; i < json.length(); i++) {
+            try {
+                JSONObject j = json.getJSONObject(i);
+                String name = j.getString("name");
+                // if it has a URL, then it's a bookmark
+                if (j.has("url")) {
+                    items.add(new Item(name, j.getString("url"), null));
+                }
+                // if it has children, then it's a subfolder
+                else if (j.has("children")) {
+                    items.add(new Item(name, null,
+                            parse(new JSONArray(j.getString("children")))));
+                } else {
+                    Log.e(TAG, "Parse error processing child [" + name + "]");
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "parse JSON exception: [" + e.toString() + "]");
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Reads the folder rootId and everything below it, one query per level.
+     */
+    private Row load(long rootId) {
+        Row root = null;
+        HashMap<Long, Row> folders = new HashMap<Long, Row>();
+        Cursor c = mCr.query(ContentUris.withAppendedId(Bookmarks.CONTENT_URI, rootId),
+                PROJECTION, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                root = readRow(c);
+                folders.put(root.id, root);
+            }
+            c.close();
+        }
+        ArrayList<Long> level = new ArrayList<Long>(folders.keySet());
+        while (!level.isEmpty()) {
+            ArrayList<Long> next = new ArrayList<Long>();
+            for (int start = 0; start < level.size(); start += MAX_IDS_PER_CLAUSE) {
+                c = mCr.query(Bookmarks.CONTENT_URI, PROJECTION,
+                        Bookmarks.PARENT + " IN (" + joinIds(level, start) + ")", null,
+                        Bookmarks.POSITION + " ASC, " + Bookmarks._ID + " ASC");
+                if (c == null) {
+                    continue;
+                }
+                while (c.moveToNext()) {
+                    Row row = readRow(c);
+                    folders.get(row.parent).children.add(row);
+                    if (row.folder) {
+                        folders.put(row.id, row);
+                        next.add(row.id);
+                    }
+                }
+                c.close();
+            }
+            level = next;
+        }
+        return root;
+    }
+
+    private static Row readRow(Cursor c) {
+        Row row = new Row();
+        row.id = c.getLong(0);
+        row.parent = c.getLong(1);
+        row.folder = c.getInt(2) != 0;
+        row.title = c.getString(3);
+        row.url = c.getString(4);
+        row.position = c.getLong(5);
+        return row;
+    }
+
+    /**
+     * Pairs the items with the rows of the folder they go in, recursing into
+     * matched folders.
+     */
+    private static void match(ArrayList<Item> items, Row folder) {
+        HashMap<String, ArrayDeque<Row>> byKey = new HashMap<String, ArrayDeque<Row>>();
+        for (Row row : folder.children) {
+            String key = row.folder ? "F" + row.title : "B" + row.url;
+            ArrayDeque<Row> rows = byKey.get(key);
+            if (rows == null) {
+                rows = new ArrayDeque<Row>();
+                byKey.put(key, rows);
+            }
+            rows.add(row);
+        }
+        for (Item item : items) {
+            ArrayDeque<Row> rows = byKey.get(item.key());
+            if (rows != null && !rows.isEmpty()) {
+                item.match = rows.poll();
+                item.match.kept = true;
+                if (item.isFolder()) {
+                    match(item.children, item.match);
+                }
+            }
+        }
+    }
+
+    /**
+     * Indexes the bookmarks nothing matched in place, by url, so items that
+     * moved to another folder can take them over.
+     */
+    private void collectMovable(Row folder) {
+        for (Row row : folder.children) {
+            if (row.folder) {
+                collectMovable(row);
+            } else if (!row.kept && row.url != null) {
+                ArrayDeque<Row> rows = mMovable.get(row.url);
+                if (rows == null) {
+                    rows = new ArrayDeque<Row>();
+                    mMovable.put(row.url, rows);
+                }
+                rows.add(row);
+            }
+        }
+    }
+
+    /**
+     * Adds the operations that put items, in order, into parent.
+     */
+    private void apply(ArrayList<Item> items, Parent parent) {
+        for (int position = 0; position < items.size(); position++) {
+            Item item = items.get(position);
+            Row row = item.match;
+            if (row == null && !item.isFolder()) {
+                ArrayDeque<Row> rows = mMovable.get(item.url);
+                if (rows != null && !rows.isEmpty()) {
+                    row = rows.poll();
+                    row.kept = true;
+                    ContentProviderOperation.Builder b = update(row)
+                            .withValue(Bookmarks.TITLE, item.title)
+                            .withValue(Bookmarks.POSITION, position);
+                    withParent(b, parent);
+                    add(b);
+                    mMoves++;
+                    continue;
+                }
+            }
+            if (row != null) {
+                if (!TextUtils.equals(row.title, item.title) || row.position != position) {
+                    add(update(row)
+                            .withValue(Bookmarks.TITLE, item.title)
+                            .withValue(Bookmarks.POSITION, position));
+                    mUpdates++;
+                }
+                if (item.isFolder()) {
+                    apply(item.children, new Parent(row.id, -1));
+                }
+                continue;
+            }
+            int opIndex = mOps.size();
+            ContentProviderOperation.Builder b =
+                    ContentProviderOperation.newInsert(Bookmarks.CONTENT_URI)
+                    .withValue(Bookmarks.TITLE, item.title)
+                    .withValue(Bookmarks.POSITION, position);
+            withParent(b, parent);
+            if (item.isFolder()) {
+                // We are using the URL field (normally not used for folders) to
+                // lock down that this folder is managed by Mdm.
+                b.withValue(Bookmarks.IS_FOLDER, 1)
+                        .withValue(Bookmarks.URL, ManagedBookmarksRestriction.FOLDER_URL_KEY);
+            } else {
+                b.withValue(Bookmarks.URL, item.url);
+            }
+            add(b);
+            mInserts++;
+            if (item.isFolder()) {
+                apply(item.children, new Parent(-1, opIndex));
+            }
+        }
+    }
+
+    /**
+     * Deletes the rows below folder that weren't kept, along with everything
+     * in them.
+     */
+    private void deleteUnkept(Row folder) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        collectUnkept(folder, ids);
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_CLAUSE) {
+            add(ContentProviderOperation.newDelete(Bookmarks.CONTENT_URI)
+                    .withSelection(Bookmarks._ID + " IN (" + joinIds(ids, start) + ")", null));
+        }
+        mDeletes += ids.size();
+    }
+
+    private static void collectUnkept(Row row, ArrayList<Long> ids) {
+        // Bookmarks moved out of a deleted folder were kept
+        if (!row.kept) {
+            ids.add(row.id);
+        }
+        for (Row child : row.children) {
+            collectUnkept(child, ids);
+        }
+    }
+
+    private static ContentProviderOperation.Builder update(Row row) {
+        return ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Bookmarks.CONTENT_URI, row.id));
+    }
+
+    private static void withParent(ContentProviderOperation.Builder b, Parent parent) {
+        if (parent.opIndex >= 0) {
+            b.withValueBackReference(Bookmarks.PARENT, parent.opIndex);
+        } else {
+            b.withValue(Bookmarks.PARENT, parent.id);
+        }
+    }
+
+    private void add(ContentProviderOperation.Builder b) {
+        if (mOps.size() % OPS_PER_YIELD_POINT == OPS_PER_YIELD_POINT - 1) {
+            b.withYieldAllowed(true);
+        }
+        mOps.add(b.build());
+    }
+
+    private void commit() {
+        if (mOps.isEmpty()) {
+            return;
+        }
+        try {
+            mCr.applyBatch(BrowserContract.AUTHORITY, mOps);
+        } catch (RemoteException e) {
+            Log.e(TAG, "commit Remote Exception: [" + e.toString() + "]");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "commit Exception: [" + e.toString() + "]");
+        } catch (android.database.sqlite.SQLiteException e) {
+            Log.e(TAG, "commit SQL Exception: [" + e.toString() + "]");
+        }
+    }
+
+    /**
+     * Returns up to MAX_IDS_PER_CLAUSE ids from start, comma separated.
+     */
+    private static String joinIds(ArrayList<Long> ids, int start) {
+        StringBuilder sb = new StringBuilder();
+        int end = Math.min(ids.size(), start + MAX_IDS_PER_CLAUSE);
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                sb.append(',');
+            }
+            sb.append(ids.get(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.mdm;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Java side check of the URLBlackList and URLWhiteList policies, for code
+ * that wants to leave blocked urls out (suggestions, bookmarks, preloads)
+ * before they ever reach the network stack.
+ *
+ * Each filter is [scheme://][.]host[:port][/path], or * for everything.
+ * Hosts match their subdomains too unless they start with a dot. The most
+ * specific filter that matches decides, longest host first, then longest
+ * path, and the white list wins ties.
+ *
+ * The policy is compiled into a trie of the reversed hosts, written to a
+ * file and memory mapped, so that the next start only maps it again.
+ * {@link #isAllowed} walks the mapped trie without allocating. A new
+ * policy is swapped in as a whole.
+ */
+public final class URLFilter {
+
+    private final static String TAG = "URLFilter";
+
+    private static final String FILE_NAME = "url_filter.bin";
+    private static final int MAGIC = 0x55524c46; // "URLF"
+    private static final int VERSION = 1;
+
+    // Header: magic, version, policy hash, node count, rule count, pool length
+    private static final int HEADER_INTS = 6;
+    // Node: char, first child, next sibling, first rule, rule count
+    private static final int NODE_INTS = 5;
+    // Rule: flags, scheme offset, scheme length, port, path offset, path length, host length
+    private static final int RULE_INTS = 7;
+
+    private static final int FLAG_ALLOW = 1;
+    private static final int FLAG_EXACT_HOST = 2;
+
+    private static final int NONE = -1;
+
+    private static volatile URLFilter sCurrent;
+
+    private final ByteBuffer mBuffer;
+    private final int mPolicyHash;
+    private final int mNodes;
+    private final int mRules;
+    private final int mPool;
+
+    private URLFilter(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_INTS * 4
+                || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a compiled url filter");
+        }
+        mBuffer = buffer;
+        mPolicyHash = buffer.getInt(8);
+        int nodeCount = buffer.getInt(12);
+        int ruleCount = buffer.getInt(16);
+        int poolLength = buffer.getInt(20);
+        mNodes = HEADER_INTS * 4;
+        mRules = mNodes + nodeCount * NODE_INTS * 4;
+        mPool = mRules + ruleCount * RULE_INTS * 4;
+        if (buffer.capacity() < mPool + poolLength * 2) {
+            throw new IOException("Truncated url filter");
+        }
+    }
+
+    /**
+     * Returns whether the current policy lets url through. Everything is
+     * allowed if no policy is set.
+     */
+    public static boolean isAllowed(String url) {
+        URLFilter filter = sCurrent;
+        return filter == null || url == null || filter.matches(url);
+    }
+
+    /**
+     * Maps the policy compiled by an earlier run, if any.
+     */
+    static void load(Context context) {
+        if (sCurrent != null) {
+            return;
+        }
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            sCurrent = map(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map " + file + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Compiles the policy, unless it is the one in use, and swaps it in.
+     */
+    static synchronized void update(Context context, String blackList, String whiteList) {
+        String[] black = split(blackList);
+        String[] white = split(whiteList);
+        if (black.length == 0) {
+            // A white list only makes exceptions to the black list
+            remove(context);
+            return;
+        }
+        int hash = (blackList + '\n' + whiteList).hashCode();
+        URLFilter current = sCurrent;
+        if (current != null && current.mPolicyHash == hash) {
+            return;
+        }
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(compile(black, white, hash));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmp);
+            }
+            sCurrent = map(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compile url filter: " + e.toString());
+            tmp.delete();
+        }
+    }
+
+    private static void remove(Context context) {
+        sCurrent = null;
+        new File(context.getFilesDir(), FILE_NAME).delete();
+    }
+
+    private static URLFilter map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed
+            return new URLFilter(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String[] split(String list) {
+        if (list == null) {
+            return new String[0];
+        }
+        ArrayList<String> filters = new ArrayList<String>();
+        for (String filter : list.split(",")) {
+            filter = filter.trim();
+            if (filter.length() > 0) {
+                filters.add(filter);
+            }
+        }
+        return filters.toArray(new String[filters.size()]);
+    }
+
+    // Compiling
+
+    private static class Node {
+        final char c;
+        final ArrayList<Node> children = new ArrayList<Node>();
+        final ArrayList<int[]> rules = new ArrayList<int[]>();
+        int index;
+
+        Node(char ch) {
+            c = ch;
+        }
+
+        Node child(char ch) {
+            for (Node child : children) {
+                if (child.c == ch) {
+                    return child;
+                }
+            }
+            Node child = new Node(ch);
+            children.add(child);
+            return child;
+        }
+    }
+
+    static byte[] compile(String[] black, String[] white, int hash) {
+        Node root = new Node('\0');
+        StringBuilder pool = new StringBuilder();
+        for (String filter : black) {
+            addFilter(root, pool, filter, false);
+        }
+        for (String filter : white) {
+            addFilter(root, pool, filter, true);
+        }
+
+        // Number the nodes breadth first
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        nodes.add(root);
+        int ruleCount = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            node.index = i;
+            ruleCount += node.rules.size();
+            nodes.addAll(node.children);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(4 * (HEADER_INTS + nodes.size() * NODE_INTS
+                + ruleCount * RULE_INTS) + 2 * pool.length());
+        out.putInt(MAGIC).putInt(VERSION).putInt(hash)
+                .putInt(nodes.size()).putInt(ruleCount).putInt(pool.length());
+        int rule = 0;
+        for (Node node : nodes) {
+            out.putInt(node.c);
+            out.putInt(node.children.isEmpty() ? NONE : node.children.get(0).index);
+            out.putInt(NONE); // patched below
+            out.putInt(node.rules.isEmpty() ? NONE : rule);
+            out.putInt(node.rules.size());
+            rule += node.rules.size();
+        }
+        for (Node node : nodes) {
+            for (int i = 0; i + 1 < node.children.size(); i++) {
+                int at = 4 * (HEADER_INTS + node.children.get(i).index * NODE_INTS + 2);
+                out.putInt(at, node.children.get(i + 1).index);
+            }
+        }
+        for (Node node : nodes) {
+            for (int[] r : node.rules) {
+                for (int value : r) {
+                    out.putInt(value);
+                }
+            }
+        }
+        for (int i = 0; i < pool.length(); i++) {
+            out.putChar(pool.charAt(i));
+        }
+        return out.array();
+    }
+
+    private static void addFilter(Node root, StringBuilder pool, String filter,
+            boolean allow) {
+        int flags = allow ? FLAG_ALLOW : 0;
+        String rest = filter;
+        String scheme = null;
+        int sep = rest.indexOf("://");
+        if (sep >= 0) {
+            scheme = rest.substring(0, sep).toLowerCase(Locale.ROOT);
+            rest = rest.substring(sep + 3);
+        }
+        int hostEnd = 0;
+        while (hostEnd < rest.length() && rest.charAt(hostEnd) != ':'
+                && rest.charAt(hostEnd) != '/') {
+            hostEnd++;
+        }
+        String host = rest.substring(0, hostEnd).toLowerCase(Locale.ROOT);
+        rest = rest.substring(hostEnd);
+        if (host.equals("*")) {
+            host = "";
+        } else if (host.startsWith(".")) {
+            flags |= FLAG_EXACT_HOST;
+            host = host.substring(1);
+        }
+        int port = NONE;
+        if (rest.startsWith(":")) {
+            int portEnd = rest.indexOf('/');
+            if (portEnd < 0) {
+                portEnd = rest.length();
+            }
+            try {
+                port = Integer.parseInt(rest.substring(1, portEnd));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring filter with a bad port: " + filter);
+                return;
+            }
+            rest = rest.substring(portEnd);
+        }
+        String path = rest.equals("/") ? "" : rest;
+
+        Node node = root;
+        for (int i = host.length() - 1; i >= 0; i--) {
+            node = node.child(host.charAt(i));
+        }
+        int schemeOffset = pool.length();
+        if (scheme != null) {
+            pool.append(scheme);
+        }
+        int pathOffset = pool.length();
+        pool.append(path);
+        node.rules.add(new int[] {
+                flags,
+                schemeOffset, scheme != null ? scheme.length() : NONE,
+                port,
+                pathOffset, path.length(),
+                host.length()
+        });
+    }
+
+    // Matching, without allocations
+
+    private int node(int index, int field) {
+        return mBuffer.getInt(mNodes + 4 * (index * NODE_INTS + field));
+    }
+
+    private int rule(int index, int field) {
+        return mBuffer.getInt(mRules + 4 * (index * RULE_INTS + field));
+    }
+
+    private char poolChar(int offset) {
+        return mBuffer.getChar(mPool + 2 * offset);
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    boolean matches(String url) {
+        final int length = url.length();
+        int schemeEnd = url.indexOf("://");
+        int hostStart = schemeEnd < 0 ? 0 : schemeEnd + 3;
+        if (schemeEnd < 0) {
+            schemeEnd = 0;
+        }
+        int hostEnd = hostStart;
+        while (hostEnd < length) {
+            char c = url.charAt(hostEnd);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            if (c == '@') {
+                // Skip user info
+                hostStart = hostEnd + 1;
+            }
+            hostEnd++;
+        }
+        int authorityEnd = hostEnd;
+        int port = NONE;
+        int portSearch = hostStart;
+        if (hostStart < authorityEnd && url.charAt(hostStart) == '[') {
+            // IPv6 literal
+            while (portSearch < authorityEnd && url.charAt(portSearch) != ']') {
+                portSearch++;
+            }
+        }
+        for (int i = portSearch; i < authorityEnd; i++) {
+            if (url.charAt(i) == ':') {
+                hostEnd = i;
+                port = 0;
+                for (int j = i + 1; j < authorityEnd; j++) {
+                    char c = url.charAt(j);
+                    if (c < '0' || c > '9') {
+                        port = NONE;
+                        break;
+                    }
+                    port = port * 10 + (c - '0');
+                }
+                break;
+            }
+        }
+        if (port == NONE) {
+            port = defaultPort(url, schemeEnd);
+        }
+        int pathEnd = authorityEnd;
+        while (pathEnd < length && url.charAt(pathEnd) != '?' && url.charAt(pathEnd) != '#') {
+            pathEnd++;
+        }
+
+        // Best rule so far
+        int bestRule = NONE;
+        int bestHost = -1;
+        int bestPath = -1;
+
+        // Rules for any host hang off the root
+        int node = 0;
+        int pos = hostEnd;
+        while (true) {
+            boolean boundary = node == 0 || pos == hostStart || url.charAt(pos - 1) == '.';
+            int count = node(node, 4);
+            if (boundary && count > 0) {
+                int first = node(node, 3);
+                int hostLength = hostEnd - pos;
+                for (int r = first; r < first + count; r++) {
+                    int flags = rule(r, 0);
+                    if ((flags & FLAG_EXACT_HOST) != 0 && pos != hostStart) {
+                        continue;
+                    }
+                    if (!ruleMatches(r, url, schemeEnd, port, authorityEnd, pathEnd)) {
+                        continue;
+                    }
+                    int pathLength = rule(r, 5);
+                    if (hostLength > bestHost
+                            || (hostLength == bestHost && pathLength > bestPath)
+                            || (hostLength == bestHost && pathLength == bestPath
+                                    && (flags & FLAG_ALLOW) != 0)) {
+                        bestRule = r;
+                        bestHost = hostLength;
+                        bestPath = pathLength;
+                    }
+                }
+            }
+            if (pos == hostStart) {
+                break;
+            }
+            char c = lower(url.charAt(--pos));
+            int child = node(node, 1);
+            while (child != NONE && node(child, 0) != c) {
+                child = node(child, 2);
+            }
+            if (child == NONE) {
+                break;
+            }
+            node = child;
+        }
+        return bestRule == NONE || (rule(bestRule, 0) & FLAG_ALLOW) != 0;
+    }
+
+    private boolean ruleMatches(int r, String url, int schemeEnd, int port,
+            int pathStart, int pathEnd) {
+        int schemeLength = rule(r, 2);
+        if (schemeLength != NONE) {
+            if (schemeLength != schemeEnd) {
+                return false;
+            }
+            int offset = rule(r, 1);
+            for (int i = 0; i < schemeLength; i++) {
+                if (lower(url.charAt(i)) != poolChar(offset + i)) {
+                    return false;
+                }
+            }
+        }
+        int rulePort = rule(r, 3);
+        if (rulePort != NONE && rulePort != port) {
+            return false;
+        }
+        int pathLength = rule(r, 5);
+        if (pathLength > pathEnd - pathStart) {
+            return false;
+        }
+        int offset = rule(r, 4);
+        for (int i = 0; i < pathLength; i++) {
+            if (url.charAt(pathStart + i) != poolChar(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int defaultPort(String url, int schemeEnd) {
+        if (schemeEnd == 4 && url.regionMatches(true, 0, "http", 0, 4)) {
+            return 80;
+        } else if (schemeEnd == 5 && url.regionMatches(true, 0, "https", 0, 5)) {
+            return 443;
+        } else if (schemeEnd == 3 && url.regionMatches(true, 0, "ftp", 0, 3)) {
+            return 21;
+        }
+        return NONE;
+    }
+}
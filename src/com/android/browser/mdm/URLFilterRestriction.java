@@ -32,6 +32,8 @@ package com.android.browser.mdm;
 
 import android.os.Bundle;
 
+import com.android.browser.Browser;
+
 import org.codeaurora.swe.MdmManager;
 
 public class URLFilterRestriction extends Restriction {
@@ -53,11 +55,18 @@ public class URLFilterRestriction extends Restriction {
         return sInstance;
     }
 
+    @Override
+    protected void doCustomInit() {
+        // Map the policy compiled by the last run before it is enforced again
+        URLFilter.load(Browser.getContext());
+    }
+
     @Override
     public void enforce(Bundle restrictions) {
         String urlBlackList = restrictions.getString(URL_BLACK_LIST);
         String urlWhiteList = restrictions.getString(URL_WHITE_LIST);
 
         MdmManager.updateMdmUrlFilters(urlBlackList, urlWhiteList);
+        URLFilter.update(Browser.getContext(), urlBlackList, urlWhiteList);
     }
 }
@@ -248,16 +248,80 @@ public class ManagedBookmarksRestrictionsTest extends ActivityInstrumentationTes
         assertTrue(rootId == -1);
     }
 
+    private long findChild(long folderId, String title) {
+        Cursor c = mDb.getChildrenForMdmFolder(folderId, new String[] {
+                BrowserContract.Bookmarks._ID,
+                BrowserContract.Bookmarks.TITLE,
+        });
+        long id = -1;
+        for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+            if (title.equals(c.getString(1))) {
+                id = c.getLong(0);
+            }
+        }
+        c.close();
+        return id;
+    }
+
+    public void test_MBIncremental() throws Throwable {
+        clearMBRestrictions();
+        setMBRestrictions(true);
+        long rootId = mDb.getMdmRootFolderId();
+        long folderId = findChild(rootId, mSubDirName);
+        long keptId = findChild(rootId, mBookmarks.get(0).getName());
+        long movedId = findChild(folderId, mBookmarks.get(2).getName());
+        assertFalse(keptId == -1);
+        assertFalse(movedId == -1);
+
+        // Rename one bookmark, drop another and move one out of the subfolder
+        JSONArray dict = new JSONArray();
+        JSONObject renamed = new JSONObject();
+        renamed.put("name", "Renamed");
+        renamed.put("url", mBookmarks.get(0).getUrl());
+        JSONObject moved = new JSONObject();
+        moved.put("name", mBookmarks.get(2).getName());
+        moved.put("url", mBookmarks.get(2).getUrl());
+        JSONArray children = new JSONArray();
+        JSONObject patches = new JSONObject();
+        patches.put("name", mBookmarks.get(3).getName());
+        patches.put("url", mBookmarks.get(3).getUrl());
+        children.put(patches);
+        JSONObject folder = new JSONObject();
+        folder.put("name", mSubDirName);
+        folder.put("children", children);
+        dict.put(renamed);
+        dict.put(moved);
+        dict.put(folder);
+        setMBRestrictions(dict.toString());
+        assertTrue(managedBookmarksRestriction.bookmarksWereCreated());
+
+        // Rows that are still wanted keep their ids
+        assertEquals(rootId, mDb.getMdmRootFolderId());
+        assertEquals(folderId, findChild(rootId, mSubDirName));
+        assertEquals(keptId, findChild(rootId, "Renamed"));
+        assertEquals(movedId, findChild(rootId, mBookmarks.get(2).getName()));
+        assertEquals(-1, findChild(rootId, mBookmarks.get(1).getName()));
+        assertEquals(-1, findChild(folderId, mBookmarks.get(2).getName()));
+        assertFalse(findChild(folderId, mBookmarks.get(3).getName()) == -1);
+
+        clearMBRestrictions();
+        assertTrue(mDb.getMdmRootFolderId() == -1);
+    }
+
     /**
      * Activate ManagedBookmarks restriction
      * @param enable boolean. Set the state of the restriction.
      */
     private void setMBRestrictions(boolean enable) {
+        setMBRestrictions(enable ? getBookmarksDict(0) : null);
+    }
+
+    private void setMBRestrictions(String json) {
         // Construct restriction bundle
         final Bundle restrictions = new Bundle();
 
-        if(enable) {
-            restrictions.putString(ManagedBookmarksRestriction.MANAGED_BOOKMARKS, getBookmarksDict(0));
+        if (json != null) {
+            restrictions.putString(ManagedBookmarksRestriction.MANAGED_BOOKMARKS, json);
         }
 
         // Deliver restriction on UI thread
@@ -38,6 +38,7 @@ import android.util.Log;
 import com.android.browser.BrowserActivity;
 import com.android.browser.PreferenceKeys;
 import com.android.browser.mdm.ManagedProfileManager;
+import com.android.browser.mdm.URLFilter;
 import com.android.browser.mdm.URLFilterRestriction;
 
 import org.codeaurora.swe.MdmManager;
@@ -82,8 +83,10 @@ public class URLRestrictionsTest extends ActivityInstrumentationTestCase2<Browse
             }
         }
 
-        // Retrieve the result
-        return MdmManager.getMdmUrlBlockedResult();
+        // Retrieve the result, the Java side matcher must agree with native
+        boolean blocked = MdmManager.getMdmUrlBlockedResult();
+        assertEquals("URLFilter disagrees on [" + url + "]", !blocked, URLFilter.isAllowed(url));
+        return blocked;
     }
 
     private boolean isBlocked (final String url, boolean expected) {
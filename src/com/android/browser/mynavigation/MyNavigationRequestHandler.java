@@ -34,7 +34,6 @@ import android.content.UriMatcher;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
-import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 import java.io.IOException;
@@ -44,6 +43,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.android.browser.R;
+import com.android.browser.homepages.Template;
+import com.android.browser.homepages.Template.Sink;
 
 public class MyNavigationRequestHandler extends Thread {
 
@@ -94,8 +95,7 @@ public class MyNavigationRequestHandler extends Thread {
     }
 
     private void writeTemplatedIndex() throws IOException {
-        MyNavigationTemplate t = MyNavigationTemplate.getCachedTemplate(mContext,
-                R.raw.my_navigation);
+        Template t = Template.getCachedTemplate(mContext, R.raw.my_navigation);
         Cursor cursor = mContext.getContentResolver().query(
                 Uri.parse("content://com.android.browser.mynavigation/websites"),
                 new String[] {
@@ -103,24 +103,24 @@ public class MyNavigationRequestHandler extends Thread {
                 },
                 null, null, null);
 
-        t.assignLoop("my_navigation", new MyNavigationTemplate.CursorListEntityWrapper(cursor) {
+        t.assignLoop("my_navigation", new Template.CursorListEntityWrapper(cursor) {
             @Override
-            public void writeValue(OutputStream stream, String key) throws IOException {
+            public void writeValue(Sink sink, String key) throws IOException {
                 Cursor cursor = getCursor();
                 if (key.equals("url")) {
-                    stream.write(htmlEncode(cursor.getString(0)));
+                    sink.writeHtml(cursor.getString(0));
                 } else if (key.equals("title")) {
                     String title = cursor.getString(1);
                     if (title == null || title.length() == 0) {
                         title = mContext.getString(R.string.my_navigation_add);
                     }
-                    stream.write(htmlEncode(title));
+                    sink.writeHtml(title);
                 } else if (key.equals("thumbnail")) {
-                    stream.write("data:image/png".getBytes());
-                    stream.write(htmlEncode(cursor.getString(0)));
-                    stream.write(";base64,".getBytes());
+                    sink.writeText("data:image/png");
+                    sink.writeHtml(cursor.getString(0));
+                    sink.writeText(";base64,");
                     byte[] thumb = cursor.getBlob(2);
-                    stream.write(Base64.encode(thumb, Base64.DEFAULT));
+                    sink.write(Base64.encode(thumb, Base64.DEFAULT));
                 }
             }
         });
@@ -128,10 +128,6 @@ public class MyNavigationRequestHandler extends Thread {
         cursor.close();
     }
 
-    byte[] htmlEncode(String s) {
-        return TextUtils.htmlEncode(s).getBytes();
-    }
-
     String getUriResourcePath() {
         final Pattern pattern = Pattern.compile("/?res/([\\w/]+)");
         Matcher m = pattern.matcher(mUri.getPath());
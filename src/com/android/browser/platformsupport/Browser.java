@@ -149,7 +149,14 @@ public class Browser {
        improvements are made.  Note: this does not affect bookmark
        entries -- if the user wants more bookmarks than the cap, they
        get them. */
-    private static final int MAX_HISTORY_COUNT = 250;
+    public static final int MAX_HISTORY_COUNT = 250;
+
+    /**
+     * Deleting from this uri truncates history to below MAX_HISTORY_COUNT in
+     * a single provider transaction.
+     */
+    public static final Uri TRUNCATE_HISTORY_URI =
+            Uri.withAppendedPath(History.CONTENT_URI, "truncate");
 
     /**
      *  Open an activity to save a bookmark. Launch with a title
@@ -387,38 +394,19 @@ public class Browser {
     }
 
     /**
-     * If there are more than MAX_HISTORY_COUNT non-bookmark history
-     * items in the bookmark/history table, delete TRUNCATE_N_OLDEST
-     * of them.  This is used to keep our history table to a
+     * If there are MAX_HISTORY_COUNT or more history items, delete the
+     * oldest of them in a single provider transaction.  This is used to keep our history table to a
      * reasonable size.  Note: it does not prune bookmarks.  If the
      * user wants 1000 bookmarks, the user gets 1000 bookmarks.
-     *  Requires {@link android.Manifest.permission#READ_HISTORY_BOOKMARKS}
      *  Requires {@link android.Manifest.permission#WRITE_HISTORY_BOOKMARKS}
      *
      * @param cr The ContentResolver used to access the database.
      */
     public static final void truncateHistory(ContentResolver cr) {
-        // TODO make a single request to the provider to do this in a single transaction
-        Cursor cursor = null;
         try {
-
-            // Select non-bookmark history, ordered by date
-            cursor = cr.query(History.CONTENT_URI,
-                    new String[] { History._ID, History.URL, History.DATE_LAST_VISITED },
-                    null, null, History.DATE_LAST_VISITED + " ASC");
-
-            if (cursor.moveToFirst() && cursor.getCount() >= MAX_HISTORY_COUNT) {
-                /* eliminate oldest history items */
-                for (int i = 0; i < TRUNCATE_N_OLDEST; i++) {
-                    cr.delete(ContentUris.withAppendedId(History.CONTENT_URI, cursor.getLong(0)),
-                            null, null);
-                    if (!cursor.moveToNext()) break;
-                }
-            }
+            cr.delete(TRUNCATE_HISTORY_URI, null, null);
         } catch (IllegalStateException e) {
             Log.e(LOGTAG, "truncateHistory", e);
-        } finally {
-            if (cursor != null) cursor.close();
         }
     }
 
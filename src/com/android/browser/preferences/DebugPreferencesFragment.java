@@ -17,19 +17,39 @@
 package com.android.browser.preferences;
 
 import android.app.ActionBar;
+import android.content.Context;
+import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.preference.Preference;
 import android.preference.SwitchPreference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.Preference.OnPreferenceChangeListener;
+import android.widget.Toast;
 
+import com.android.browser.BackgroundHandler;
+import com.android.browser.FileProviderHelper;
+import com.android.browser.Performance;
 import com.android.browser.PreferenceKeys;
 import com.android.browser.R;
 
 import org.codeaurora.swe.PermissionsServiceFactory;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 public class DebugPreferencesFragment extends SWEPreferenceFragment
         implements OnPreferenceClickListener, OnPreferenceChangeListener {
+
+    private static final String LOGTAG = "DebugPreferences";
+    // Private to the app, the metrics list the hosts browsed. Must match
+    // the metrics path in file_paths.xml, which shares it.
+    private static final String METRICS_DIR = "metrics";
+    private static final String METRICS_FILE = "page_load_metrics.json";
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -39,6 +59,9 @@ public class DebugPreferencesFragment extends SWEPreferenceFragment
 
         SwitchPreference pref = (SwitchPreference) findPreference(PreferenceKeys.PREF_DISABLE_PERF);
         pref.setOnPreferenceChangeListener(this);
+
+        findPreference(PreferenceKeys.PREF_EXPORT_PAGE_LOAD_METRICS)
+                .setOnPreferenceClickListener(this);
     }
 
     @Override
@@ -58,9 +81,81 @@ public class DebugPreferencesFragment extends SWEPreferenceFragment
 
     @Override
     public boolean onPreferenceClick(Preference preference) {
+        if (getActivity() == null) {
+            return false;
+        }
+
+        if (preference.getKey().equals(PreferenceKeys.PREF_EXPORT_PAGE_LOAD_METRICS)) {
+            exportPageLoadMetrics();
+            return true;
+        }
+
         return false;
     }
 
+    private void exportPageLoadMetrics() {
+        final Context context = getActivity().getApplicationContext();
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File file = writePageLoadMetrics(context);
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (file == null) {
+                            Toast.makeText(context,
+                                    R.string.pref_development_export_page_load_metrics_failed,
+                                    Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        sharePageLoadMetrics(context, file);
+                    }
+                });
+            }
+        });
+    }
+
+    private static File writePageLoadMetrics(Context context) {
+        String json = Performance.exportJson(context);
+        File dir = new File(context.getFilesDir(), METRICS_DIR);
+        if (json == null || (!dir.isDirectory() && !dir.mkdirs())) {
+            return null;
+        }
+        File file = new File(dir, METRICS_FILE);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(json.getBytes("UTF-8"));
+            return file;
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Failed to write " + file, e);
+            return null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the file out through the FileProvider, readable only by the
+     * app the user picks.
+     */
+    private static void sharePageLoadMetrics(Context context, File file) {
+        Intent send = new Intent(Intent.ACTION_SEND);
+        send.setType("application/json");
+        send.putExtra(Intent.EXTRA_STREAM,
+                new FileProviderHelper().getContentUriFromFile(context, file));
+        send.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        Intent chooser = Intent.createChooser(send, context.getString(
+                R.string.pref_development_export_page_load_metrics_share));
+        chooser.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        context.startActivity(chooser);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -19,6 +19,8 @@ package com.android.browser.preferences;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.Preference;
 import android.preference.PreferenceManager;
 import android.util.AttributeSet;
@@ -34,6 +36,7 @@ public abstract class WebViewPreview extends Preference
 
     protected TextView mTextView;
     protected WebView mWebView;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     public WebViewPreview(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
@@ -81,13 +84,24 @@ public abstract class WebViewPreview extends Preference
     @Override
     protected void onPrepareForRemoval() {
         getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+        mHandler.removeCallbacks(mUpdatePreview);
         super.onPrepareForRemoval();
     }
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
                                           String key) {
-        updatePreview(false);
+        // Listeners run in no set order, so BrowserSettings may not have
+        // taken in the change yet; read it once all of them have run
+        mHandler.removeCallbacks(mUpdatePreview);
+        mHandler.post(mUpdatePreview);
     }
 
+    private final Runnable mUpdatePreview = new Runnable() {
+        @Override
+        public void run() {
+            updatePreview(false);
+        }
+    };
+
 }
@@ -35,6 +35,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.SyncStateContract;
@@ -62,6 +63,7 @@ import org.chromium.base.VisibleForTesting;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
@@ -85,6 +87,22 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String THUMBNAIL = "thumbnail";
     }
 
+    /**
+     * History columns the browser adds to those of BrowserContract.
+     */
+    public static interface HistoryColumns {
+        // Precomputed ranking, see com.android.browser.Frecency
+        public static final String FRECENCY = "frecency";
+    }
+
+    /**
+     * Image columns the browser adds to those of BrowserContract.
+     */
+    public static interface ImagesColumns {
+        // When the favicon or thumbnail last changed, kept by a trigger
+        public static final String DATE_MODIFIED = "image_modified";
+    }
+
     public static interface OmniboxSuggestions {
         public static final Uri CONTENT_URI = Uri.withAppendedPath(
                 BrowserContract.AUTHORITY_URI, "omnibox_suggestions");
@@ -103,6 +121,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final String TABLE_THUMBNAILS = "thumbnails";
 
+    // Tab thumbnails written through openFile() live here, one file per id
+    static final String THUMBNAILS_DIR = "thumbnails";
+
     static final String TABLE_BOOKMARKS_JOIN_IMAGES = "bookmarks LEFT OUTER JOIN images " +
             "ON bookmarks.url = images." + Images.URL;
     static final String TABLE_HISTORY_JOIN_IMAGES = "history LEFT OUTER JOIN images " +
@@ -141,6 +162,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     private static final String ZERO_QUERY_SUGGEST_SELECTION =
             TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " != 0";
 
+    // History is only truncated once it reaches Browser.MAX_HISTORY_COUNT and
+    // is then trimmed to this size, so the delete runs once every few inserts.
+    private static final int HISTORY_TRUNCATE_LOW_WATER_MARK =
+            Browser.MAX_HISTORY_COUNT - 5 * Browser.TRUNCATE_N_OLDEST;
+
     private static final String IMAGE_PRUNE =
             "url_key NOT IN (SELECT url FROM bookmarks " +
             "WHERE url IS NOT NULL AND deleted == 0) AND url_key NOT IN " +
@@ -160,6 +186,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     static final int HISTORY = 2000;
     static final int HISTORY_ID = 2001;
+    static final int HISTORY_TRUNCATE = 2002;
 
     static final int SEARCHES = 3000;
     static final int SEARCHES_ID = 3001;
@@ -219,6 +246,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 BOOKMARKS_SUGGESTIONS);
         matcher.addURI(authority, "history", HISTORY);
         matcher.addURI(authority, "history/#", HISTORY_ID);
+        matcher.addURI(authority, "history/truncate", HISTORY_TRUNCATE);
         matcher.addURI(authority, "searches", SEARCHES);
         matcher.addURI(authority, "searches/#", SEARCHES_ID);
         matcher.addURI(authority, "syncstate", SYNCSTATE);
@@ -247,6 +275,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 BOOKMARKS_SUGGESTIONS);
         matcher.addURI(app_package_name, "history", HISTORY);
         matcher.addURI(app_package_name, "history/#", HISTORY_ID);
+        matcher.addURI(app_package_name, "history/truncate", HISTORY_TRUNCATE);
         matcher.addURI(app_package_name, "searches", SEARCHES);
         matcher.addURI(app_package_name, "searches/#", SEARCHES_ID);
         matcher.addURI(app_package_name, "syncstate", SYNCSTATE);
@@ -300,6 +329,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Bookmarks.VERSION, Bookmarks.VERSION);
         map.put(Bookmarks.DATE_CREATED, Bookmarks.DATE_CREATED);
         map.put(Bookmarks.DATE_MODIFIED, Bookmarks.DATE_MODIFIED);
+        map.put(ImagesColumns.DATE_MODIFIED, ImagesColumns.DATE_MODIFIED);
         map.put(Bookmarks.DIRTY, Bookmarks.DIRTY);
         map.put(Bookmarks.SYNC1, Bookmarks.SYNC1);
         map.put(Bookmarks.SYNC2, Bookmarks.SYNC2);
@@ -343,6 +373,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(History.DATE_LAST_VISITED, History.DATE_LAST_VISITED);
         map.put(History.VISITS, History.VISITS);
         map.put(History.USER_ENTERED, History.USER_ENTERED);
+        map.put(HistoryColumns.FRECENCY, HistoryColumns.FRECENCY);
 
         // Sync state
         map = SYNC_STATE_PROJECTION_MAP;
@@ -424,7 +455,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     final class DatabaseHelper extends SQLiteOpenHelper {
         static final String DATABASE_NAME = "browser2.db";
-        static final int DATABASE_VERSION = 32;
+        static final int DATABASE_VERSION = 35;
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             setWriteAheadLoggingEnabled(true);
@@ -464,17 +495,21 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     History.DATE_CREATED + " INTEGER," +
                     History.DATE_LAST_VISITED + " INTEGER," +
                     History.VISITS + " INTEGER NOT NULL DEFAULT 0," +
-                    History.USER_ENTERED + " INTEGER" +
+                    History.USER_ENTERED + " INTEGER," +
+                    HistoryColumns.FRECENCY + " REAL" +
                     ");");
+            createHistoryDateIndex(db);
 
             db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (" +
                     Images.URL + " TEXT UNIQUE NOT NULL," +
                     Images.FAVICON + " BLOB," +
                     Images.THUMBNAIL + " BLOB," +
-                    Images.TOUCH_ICON + " BLOB" +
+                    Images.TOUCH_ICON + " BLOB," +
+                    ImagesColumns.DATE_MODIFIED + " INTEGER NOT NULL DEFAULT 0" +
                     ");");
             db.execSQL("CREATE INDEX imagesUrlIndex ON " + TABLE_IMAGES +
                     "(" + Images.URL + ")");
+            createImagesModifiedTriggers(db);
 
             db.execSQL("CREATE TABLE " + TABLE_SEARCHES + " (" +
                     Searches._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -500,6 +535,29 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             createOmniboxSuggestions(db);
         }
 
+        void createHistoryDateIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyDateIndex ON " + TABLE_HISTORY +
+                    "(" + History.DATE_LAST_VISITED + ")");
+        }
+
+        /**
+         * Stamps image rows whenever their favicon or thumbnail changes, so
+         * readers can tell a new image from an old one without reading it.
+         */
+        void createImagesModifiedTriggers(SQLiteDatabase db) {
+            String stamp = " BEGIN UPDATE " + TABLE_IMAGES + " SET "
+                    + ImagesColumns.DATE_MODIFIED
+                    + " = CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)"
+                    + " WHERE rowid = NEW.rowid; END";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_insert_modified AFTER INSERT ON "
+                    + TABLE_IMAGES + stamp);
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_update_modified AFTER UPDATE OF "
+                    + Images.FAVICON + ", " + Images.THUMBNAIL + " ON " + TABLE_IMAGES
+                    + " WHEN OLD." + Images.FAVICON + " IS NOT NEW." + Images.FAVICON
+                    + " OR OLD." + Images.THUMBNAIL + " IS NOT NEW." + Images.THUMBNAIL
+                    + stamp);
+        }
+
         void createOmniboxSuggestions(SQLiteDatabase db) {
             db.execSQL(SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS);
         }
@@ -635,6 +693,20 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 35) {
+                // Existing images keep 0 until they change
+                db.execSQL("ALTER TABLE " + TABLE_IMAGES + " ADD COLUMN "
+                        + ImagesColumns.DATE_MODIFIED + " INTEGER NOT NULL DEFAULT 0");
+                createImagesModifiedTriggers(db);
+            }
+            if (oldVersion < 34) {
+                // Filled in as pages are visited, computed on the fly until then
+                db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN "
+                        + HistoryColumns.FRECENCY + " REAL");
+            }
+            if (oldVersion < 33) {
+                createHistoryDateIndex(db);
+            }
             if (oldVersion < 32) {
                 createOmniboxSuggestions(db);
             }
@@ -873,6 +945,40 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         mSyncToNetwork = true;
     }
 
+    File getThumbnailFile(long id) {
+        return new File(getContext().getDir(THUMBNAILS_DIR, Context.MODE_PRIVATE),
+                Long.toString(id));
+    }
+
+    /**
+     * Opens the file backing a tab thumbnail so it can be streamed without
+     * copying it through a ContentValues blob. Opening for write registers
+     * the id in the thumbnails table so it is pruned like the other
+     * thumbnails.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (URI_MATCHER.match(uri) != THUMBNAILS_ID) {
+            throw new FileNotFoundException("No files supported for " + uri);
+        }
+        long id = ContentUris.parseId(uri);
+        if ("r".equals(mode)) {
+            return ParcelFileDescriptor.open(getThumbnailFile(id),
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        if (!"w".equals(mode) && !"wt".equals(mode)) {
+            throw new FileNotFoundException("Unsupported mode " + mode + " for " + uri);
+        }
+        ContentValues values = new ContentValues();
+        values.put(Thumbnails._ID, id);
+        // The data is in the file, replace any blob stored by older versions
+        values.put(Thumbnails.THUMBNAIL, new byte[0]);
+        insert(Thumbnails.CONTENT_URI, values);
+        return ParcelFileDescriptor.open(getThumbnailFile(id),
+                ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                | ParcelFileDescriptor.MODE_TRUNCATE);
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = URI_MATCHER.match(uri);
@@ -1330,6 +1436,16 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 break;
             }
 
+            case HISTORY_TRUNCATE: {
+                deleted = truncateHistoryInTransaction(db);
+                if (deleted > 0) {
+                    pruneImages();
+                    // Observers watch the history table, not the truncate uri
+                    uri = History.CONTENT_URI;
+                }
+                break;
+            }
+
             case SEARCHES_ID: {
                 selection = DatabaseUtils.concatenateWhere(selection, TABLE_SEARCHES + "._id=?");
                 selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
@@ -1399,6 +1515,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 // fall through
             }
             case THUMBNAILS: {
+                Cursor c = db.query(TABLE_THUMBNAILS, new String[] { Thumbnails._ID },
+                        selection, selectionArgs, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        getThumbnailFile(c.getLong(0)).delete();
+                    }
+                } finally {
+                    c.close();
+                }
                 deleted = db.delete(TABLE_THUMBNAILS, selection, selectionArgs);
                 break;
             }
@@ -1415,6 +1540,21 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return deleted;
     }
 
+    /**
+     * Deletes the oldest history entries in a single statement once the
+     * table reaches {@link Browser#MAX_HISTORY_COUNT}.
+     */
+    int truncateHistoryInTransaction(SQLiteDatabase db) {
+        long count = DatabaseUtils.queryNumEntries(db, TABLE_HISTORY);
+        if (count < Browser.MAX_HISTORY_COUNT) {
+            return 0;
+        }
+        long excess = count - HISTORY_TRUNCATE_LOW_WATER_MARK;
+        return db.delete(TABLE_HISTORY, History._ID + " IN (SELECT " + History._ID
+                + " FROM " + TABLE_HISTORY + " ORDER BY " + History.DATE_LAST_VISITED
+                + " ASC LIMIT " + excess + ")", null);
+    }
+
     long queryDefaultFolderId(String accountName, String accountType) {
         if (!isNullAccount(accountName) && !isNullAccount(accountType)) {
             final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
@@ -1616,7 +1756,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     }
 
     // Filters out the client= param for search urls
-    private String filterSearchClient(String url) {
+    public static String filterSearchClient(String url) {
         // remove "client" before updating it to the history so that it wont
         // show up in the auto-complete list.
         int index = url.indexOf("client=");
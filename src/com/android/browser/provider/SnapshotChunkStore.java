@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.provider;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.browser.Browser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Content addressed storage for snapshot view state.
+ *
+ * A saved view state file is cut into content defined chunks, each stored
+ * once under the SHA-1 of its bytes, so resources shared between snapshots
+ * (and between saves of the same page) take up space only once. A snapshot
+ * refers to its chunks through a manifest, the comma separated list of chunk
+ * names kept in {@link SnapshotProvider.Snapshots#VIEWSTATE_CHUNKS}.
+ *
+ * Bytes are never copied through the Java heap: the source file is memory
+ * mapped for hashing and chunks are moved with {@link FileChannel#transferTo}.
+ * Chunks are only ever written once and never modified, which is what lets
+ * {@link #compact} reclaim the unreferenced ones without coordinating with
+ * readers.
+ */
+public class SnapshotChunkStore {
+
+    private static final String LOGTAG = "SnapshotChunkStore";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    static final String CHUNK_DIR = "snapshot_chunks";
+    static final String RESTORE_PREFIX = "snapshot-";
+    static final String RESTORE_SUFFIX = ".viewstate";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // Content defined chunking, averaging 256K per chunk
+    static final int MIN_CHUNK = 64 * 1024;
+    static final int MAX_CHUNK = 1024 * 1024;
+    private static final int BOUNDARY_MASK = (1 << 18) - 1;
+    private static final int[] GEAR = new int[256];
+
+    // Restored view states are released with their tab; ones left behind by
+    // a crash are dropped after this long
+    private static final long RESTORE_TTL = 10 * 60 * 1000;
+
+    private static SnapshotChunkStore sInstance;
+
+    static {
+        // Fixed seed, chunk boundaries must be stable across runs
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextInt();
+        }
+    }
+
+    private final File mChunkDir;
+    private final File mRestoreDir;
+
+    public static synchronized SnapshotChunkStore getInstance(Context context) {
+        if (sInstance == null) {
+            Context app = context.getApplicationContext();
+            sInstance = new SnapshotChunkStore(app.getDir(CHUNK_DIR, Context.MODE_PRIVATE),
+                    app.getFilesDir());
+        }
+        return sInstance;
+    }
+
+    public SnapshotChunkStore(File chunkDir, File restoreDir) {
+        mChunkDir = chunkDir;
+        mRestoreDir = restoreDir;
+    }
+
+    /**
+     * Splits the given file into chunks, storing the ones not already
+     * present. Returns the manifest describing the file.
+     */
+    public String ingest(File source) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel channel = in.getChannel();
+            int size = (int) channel.size();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            MessageDigest digest = newDigest();
+            StringBuilder manifest = new StringBuilder();
+            int written = 0;
+            int start = 0;
+            while (start < size) {
+                int end = findBoundary(map, start, size);
+                ByteBuffer chunk = map.duplicate();
+                chunk.limit(end).position(start);
+                digest.update(chunk);
+                String name = toHex(digest.digest());
+                File file = new File(mChunkDir, name);
+                if (!file.exists()) {
+                    writeChunk(channel, start, end - start, file);
+                    written += end - start;
+                }
+                if (manifest.length() > 0) {
+                    manifest.append(',');
+                }
+                manifest.append(name);
+                start = end;
+            }
+            if (LOGV_ENABLED) {
+                Log.v(LOGTAG, "Stored " + written + " of " + size + " bytes of "
+                        + source.getName());
+            }
+            return manifest.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reassembles the view state of the given snapshot into a file in the
+     * app files directory, as the WebView only loads view state by name.
+     * The file duplicates the chunks, so call {@link #release} once the
+     * WebView is done with it.
+     */
+    public File restore(long id, String manifest) throws IOException {
+        File target = new File(mRestoreDir, RESTORE_PREFIX + id + RESTORE_SUFFIX);
+        if (target.exists()) {
+            // Snapshots are immutable, a previous restore is still good
+            target.setLastModified(System.currentTimeMillis());
+            return target;
+        }
+        File tmp = new File(mRestoreDir, target.getName() + TMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel dst = out.getChannel();
+            for (String name : TextUtils.split(manifest, ",")) {
+                FileInputStream in = new FileInputStream(new File(mChunkDir, name));
+                try {
+                    FileChannel src = in.getChannel();
+                    transfer(src, 0, src.size(), dst);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Failed to restore " + target);
+        }
+        return target;
+    }
+
+    /**
+     * Deletes the restored view state of the given snapshot.
+     */
+    public void release(long id) {
+        new File(mRestoreDir, RESTORE_PREFIX + id + RESTORE_SUFFIX).delete();
+    }
+
+    /**
+     * Deletes chunks no longer referenced by any of the given manifests, and
+     * restored view states that are stale or belong to deleted snapshots.
+     * The caller must keep ingests from racing with this.
+     */
+    public void compact(Set<String> manifests, Set<Long> ids) {
+        Set<String> live = new HashSet<String>();
+        for (String manifest : manifests) {
+            for (String name : TextUtils.split(manifest, ",")) {
+                live.add(name);
+            }
+        }
+        int deleted = 0;
+        String[] chunks = mChunkDir.list();
+        if (chunks != null) {
+            for (String name : chunks) {
+                if (!live.contains(name) && new File(mChunkDir, name).delete()) {
+                    deleted++;
+                }
+            }
+        }
+        long expired = System.currentTimeMillis() - RESTORE_TTL;
+        String[] restored = mRestoreDir.list();
+        if (restored != null) {
+            for (String name : restored) {
+                if (!name.startsWith(RESTORE_PREFIX)) {
+                    continue;
+                }
+                File file = new File(mRestoreDir, name);
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // Possibly a restore in progress, restores do not hold the lock
+                    if (file.lastModified() < expired) {
+                        file.delete();
+                    }
+                    continue;
+                }
+                long id = parseRestoredId(name);
+                if (id < 0 || !ids.contains(id) || file.lastModified() < expired) {
+                    file.delete();
+                }
+            }
+        }
+        if (LOGV_ENABLED) {
+            Log.v(LOGTAG, "Compacted " + deleted + " chunks, "
+                    + live.size() + " in use");
+        }
+    }
+
+    static int findBoundary(ByteBuffer data, int start, int size) {
+        if (size - start <= MIN_CHUNK) {
+            return size;
+        }
+        int max = Math.min(size, start + MAX_CHUNK);
+        int hash = 0;
+        for (int i = start + MIN_CHUNK; i < max; i++) {
+            hash = (hash << 1) + GEAR[data.get(i) & 0xff];
+            if ((hash & BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return max;
+    }
+
+    private void writeChunk(FileChannel src, long position, long count, File file)
+            throws IOException {
+        // Write aside and rename, a chunk must never be visible half written
+        File tmp = new File(mChunkDir, file.getName() + TMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            transfer(src, position, count, out.getChannel());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to store chunk " + file.getName());
+        }
+    }
+
+    static void transfer(FileChannel src, long position, long count, FileChannel dst)
+            throws IOException {
+        while (count > 0) {
+            long moved = src.transferTo(position, count, dst);
+            if (moved <= 0) {
+                throw new IOException("Short transfer");
+            }
+            position += moved;
+            count -= moved;
+        }
+    }
+
+    private static long parseRestoredId(String name) {
+        if (!name.endsWith(RESTORE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(RESTORE_PREFIX.length(),
+                    name.length() - RESTORE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -26,7 +26,9 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.util.Log;
 
+import com.android.browser.BackgroundHandler;
 import com.android.browser.BrowserConfig;
 import com.android.browser.platformsupport.BrowserContract;
 
@@ -36,6 +38,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SnapshotProvider extends ContentProvider {
 
@@ -54,11 +59,19 @@ public class SnapshotProvider extends ContentProvider {
         public static final String DATE_CREATED = "date_created";
         public static final String VIEWSTATE_PATH = "viewstate_path";
         public static final String VIEWSTATE_SIZE = "viewstate_size";
+        /**
+         * Chunks of the view state in the {@link SnapshotChunkStore}. Set by
+         * the provider when a snapshot is inserted with a
+         * {@link #VIEWSTATE_PATH}, which is then cleared.
+         */
+        public static final String VIEWSTATE_CHUNKS = "viewstate_chunks";
     }
 
     public static final String AUTHORITY = BrowserConfig.AUTHORITY + ".snapshots";
     public static final Uri AUTHORITY_URI = Uri.parse("content://" + AUTHORITY);
 
+    private static final String LOGTAG = "SnapshotProvider";
+
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final int SNAPSHOTS = 10;
     static final int SNAPSHOTS_ID = 11;
@@ -67,6 +80,8 @@ public class SnapshotProvider extends ContentProvider {
     static final byte[] NULL_BLOB_HACK = new byte[0];
 
     SnapshotDatabaseHelper mOpenHelper;
+    SnapshotChunkStore mChunkStore;
+    private final AtomicBoolean mCompactionPending = new AtomicBoolean();
 
     static {
         URI_MATCHER.addURI(AUTHORITY, "snapshots", SNAPSHOTS);
@@ -76,7 +91,7 @@ public class SnapshotProvider extends ContentProvider {
     final static class SnapshotDatabaseHelper extends SQLiteOpenHelper {
 
         static final String DATABASE_NAME = "snapshots.db";
-        static final int DATABASE_VERSION = 3;
+        static final int DATABASE_VERSION = 4;
 
         public SnapshotDatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -94,7 +109,8 @@ public class SnapshotProvider extends ContentProvider {
                     Snapshots.BACKGROUND + " INTEGER," +
                     Snapshots.VIEWSTATE + " BLOB NOT NULL," +
                     Snapshots.VIEWSTATE_PATH + " TEXT," +
-                    Snapshots.VIEWSTATE_SIZE + " INTEGER" +
+                    Snapshots.VIEWSTATE_SIZE + " INTEGER," +
+                    Snapshots.VIEWSTATE_CHUNKS + " TEXT" +
                     ");");
         }
 
@@ -113,6 +129,10 @@ public class SnapshotProvider extends ContentProvider {
                         + Snapshots.VIEWSTATE_SIZE + " = length("
                         + Snapshots.VIEWSTATE + ")");
             }
+            if (oldVersion < 4) {
+                db.execSQL("ALTER TABLE " + TABLE_SNAPSHOTS + " ADD COLUMN "
+                        + Snapshots.VIEWSTATE_CHUNKS + " TEXT");
+            }
         }
 
     }
@@ -132,11 +152,8 @@ public class SnapshotProvider extends ContentProvider {
             FileOutputStream out = new FileOutputStream(destFile);
 
             try {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) >= 0) {
-                    out.write(buffer, 0, bytesRead);
-                }
+                SnapshotChunkStore.transfer(in.getChannel(), 0, srcFile.length(),
+                        out.getChannel());
             } finally {
                 out.flush();
                 try {
@@ -171,9 +188,48 @@ public class SnapshotProvider extends ContentProvider {
     public boolean onCreate() {
         migrateToDataFolder();
         mOpenHelper = new SnapshotDatabaseHelper(getContext());
+        mChunkStore = SnapshotChunkStore.getInstance(getContext());
+        // Reclaim whatever an interrupted save or delete left behind
+        scheduleCompaction();
         return true;
     }
 
+    private void scheduleCompaction() {
+        if (mCompactionPending.compareAndSet(false, true)) {
+            BackgroundHandler.execute(mCompactor, BackgroundHandler.PRIORITY_MAINTENANCE);
+        }
+    }
+
+    static final String[] COMPACT_PROJECTION = new String[] {
+        Snapshots._ID,
+        Snapshots.VIEWSTATE_CHUNKS,
+    };
+    private final Runnable mCompactor = new Runnable() {
+        @Override
+        public void run() {
+            mCompactionPending.set(false);
+            SQLiteDatabase db = getReadableDatabase();
+            Set<Long> ids = new HashSet<Long>();
+            Set<String> manifests = new HashSet<String>();
+            // Hold off inserts so their fresh chunks are not reclaimed
+            synchronized (mChunkStore) {
+                Cursor c = db.query(TABLE_SNAPSHOTS, COMPACT_PROJECTION, null,
+                        null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        ids.add(c.getLong(0));
+                        if (!c.isNull(1)) {
+                            manifests.add(c.getString(1));
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                mChunkStore.compact(manifests, ids);
+            }
+        }
+    };
+
     SQLiteDatabase getWritableDatabase() {
         return mOpenHelper.getWritableDatabase();
     }
@@ -230,7 +286,25 @@ public class SnapshotProvider extends ContentProvider {
             if (!values.containsKey(Snapshots.VIEWSTATE)) {
                 values.put(Snapshots.VIEWSTATE, NULL_BLOB_HACK);
             }
-            id = db.insert(TABLE_SNAPSHOTS, Snapshots.TITLE, values);
+            String path = values.getAsString(Snapshots.VIEWSTATE_PATH);
+            if (TextUtils.isEmpty(path)) {
+                id = db.insert(TABLE_SNAPSHOTS, Snapshots.TITLE, values);
+                break;
+            }
+            File file = getContext().getFileStreamPath(path);
+            synchronized (mChunkStore) {
+                try {
+                    values.put(Snapshots.VIEWSTATE_CHUNKS, mChunkStore.ingest(file));
+                    values.putNull(Snapshots.VIEWSTATE_PATH);
+                } catch (IOException e) {
+                    // Keep the file as is, it loads just as well
+                    Log.w(LOGTAG, "Failed to chunk view state " + path, e);
+                }
+                id = db.insert(TABLE_SNAPSHOTS, Snapshots.TITLE, values);
+            }
+            if (id >= 0 && values.containsKey(Snapshots.VIEWSTATE_CHUNKS)) {
+                file.delete();
+            }
             break;
         default:
             throw new UnsupportedOperationException("Unknown insert URI " + uri);
@@ -246,8 +320,12 @@ public class SnapshotProvider extends ContentProvider {
     static final String[] DELETE_PROJECTION = new String[] {
         Snapshots.VIEWSTATE_PATH,
     };
+    // Chunked view states are reclaimed by the compactor, this only handles
+    // snapshots saved before chunking or whose chunking failed
     private void deleteDataFiles(SQLiteDatabase db, String selection,
             String[] selectionArgs) {
+        selection = DatabaseUtils.concatenateWhere(selection,
+                Snapshots.VIEWSTATE_PATH + " IS NOT NULL");
         Cursor c = db.query(TABLE_SNAPSHOTS, DELETE_PROJECTION, selection,
                 selectionArgs, null, null, null);
         final Context context = getContext();
@@ -290,6 +368,7 @@ public class SnapshotProvider extends ContentProvider {
         }
         if (deleted > 0) {
             getContext().getContentResolver().notifyChange(uri, null, false);
+            scheduleCompaction();
         }
         return deleted;
     }
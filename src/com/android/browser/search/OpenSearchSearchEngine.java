@@ -17,13 +17,6 @@ package com.android.browser.search;
 
 import com.android.browser.R;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
-
 import android.app.SearchManager;
 import android.content.Context;
 import android.content.Intent;
@@ -32,15 +25,12 @@ import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.net.http.AndroidHttpClient;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.browser.platformsupport.Browser;
 
-import java.io.IOException;
-
 /**
  * Provides search suggestions, if any, for a given web search provider.
  */
@@ -48,11 +38,10 @@ public class OpenSearchSearchEngine implements SearchEngine {
 
     private static final String TAG = "OpenSearchSearchEngine";
 
-    private static final String USER_AGENT = "Android/1.0";
+    // Whole request, from connecting to the end of the response
     private static final int HTTP_TIMEOUT_MS = 1000;
-
-    // TODO: this should be defined somewhere
-    private static final String HTTP_TIMEOUT = "http.connection-manager.timeout";
+    private static final int CACHE_SIZE = 32;
+    private static final long CACHE_TTL_MS = 60 * 1000;
 
     // Indices of the columns in the below arrays.
     private static final int COLUMN_INDEX_ID = 0;
@@ -78,15 +67,14 @@ public class OpenSearchSearchEngine implements SearchEngine {
         SearchManager.SUGGEST_COLUMN_TEXT_1,
     };
 
-    private final SearchEngineInfo mSearchEngineInfo;
+    // Shared by all engines, SearchEngines creates a new one on every lookup
+    private static final SuggestionClient sClient =
+            new SuggestionClient(CACHE_SIZE, CACHE_TTL_MS, HTTP_TIMEOUT_MS);
 
-    private final AndroidHttpClient mHttpClient;
+    private final SearchEngineInfo mSearchEngineInfo;
 
     public OpenSearchSearchEngine(Context context, SearchEngineInfo searchEngineInfo) {
         mSearchEngineInfo = searchEngineInfo;
-        mHttpClient = AndroidHttpClient.newInstance(USER_AGENT);
-        HttpParams params = mHttpClient.getParams();
-        params.setLongParameter(HTTP_TIMEOUT, HTTP_TIMEOUT_MS);
     }
 
     public String getName() {
@@ -126,6 +114,10 @@ public class OpenSearchSearchEngine implements SearchEngine {
         if (TextUtils.isEmpty(query)) {
             return null;
         }
+        SuggestionClient.Suggestions cached = sClient.getCached(getName(), query);
+        if (cached != null) {
+            return new SuggestionsCursor(cached);
+        }
         if (!isNetworkConnected(context)) {
             Log.i(TAG, "Not connected to network.");
             return null;
@@ -137,54 +129,9 @@ public class OpenSearchSearchEngine implements SearchEngine {
             return null;
         }
 
-        try {
-            String content = readUrl(suggestUri);
-            if (content == null) return null;
-            /* The data format is a JSON array with items being regular strings or JSON arrays
-             * themselves. We are interested in the second and third elements, both of which
-             * should be JSON arrays. The second element/array contains the suggestions and the
-             * third element contains the descriptions. Some search engines don't support
-             * suggestion descriptions so the third element is optional.
-             */
-            JSONArray results = new JSONArray(content);
-            JSONArray suggestions = results.getJSONArray(1);
-            JSONArray descriptions = null;
-            if (results.length() > 2) {
-                descriptions = results.getJSONArray(2);
-                // Some search engines given an empty array "[]" for descriptions instead of
-                // not including it in the response.
-                if (descriptions.length() == 0) {
-                    descriptions = null;
-                }
-            }
-            return new SuggestionsCursor(suggestions, descriptions);
-        } catch (JSONException e) {
-            Log.w(TAG, "Error", e);
-        }
-        return null;
-    }
-
-    /**
-     * Executes a GET request and returns the response content.
-     *
-     * @param url Request URI.
-     * @return The response content. This is the empty string if the response
-     *         contained no content.
-     */
-    public String readUrl(String url) {
-        try {
-            HttpGet method = new HttpGet(url);
-            HttpResponse response = mHttpClient.execute(method);
-            if (response.getStatusLine().getStatusCode() == 200) {
-                return EntityUtils.toString(response.getEntity());
-            } else {
-                Log.i(TAG, "Suggestion request failed");
-                return null;
-            }
-        } catch (IOException e) {
-            Log.w(TAG, "Error", e);
-            return null;
-        }
+        SuggestionClient.Suggestions suggestions =
+                sClient.fetch(getName(), query, suggestUri);
+        return suggestions != null ? new SuggestionsCursor(suggestions) : null;
     }
 
     public boolean supportsSuggestions() {
@@ -192,7 +139,7 @@ public class OpenSearchSearchEngine implements SearchEngine {
     }
 
     public void close() {
-        mHttpClient.close();
+        // Connections are pooled by HttpURLConnection, nothing to release
     }
 
     private boolean isNetworkConnected(Context context) {
@@ -211,18 +158,18 @@ public class OpenSearchSearchEngine implements SearchEngine {
 
     private static class SuggestionsCursor extends AbstractCursor {
 
-        private final JSONArray mSuggestions;
+        private final String[] mSuggestions;
 
-        private final JSONArray mDescriptions;
+        private final String[] mDescriptions;
 
-        public SuggestionsCursor(JSONArray suggestions, JSONArray descriptions) {
-            mSuggestions = suggestions;
-            mDescriptions = descriptions;
+        public SuggestionsCursor(SuggestionClient.Suggestions suggestions) {
+            mSuggestions = suggestions.queries;
+            mDescriptions = suggestions.descriptions;
         }
 
         @Override
         public int getCount() {
-            return mSuggestions.length();
+            return mSuggestions.length;
         }
 
         @Override
@@ -234,17 +181,9 @@ public class OpenSearchSearchEngine implements SearchEngine {
         public String getString(int column) {
             if (mPos != -1) {
                 if ((column == COLUMN_INDEX_QUERY) || (column == COLUMN_INDEX_TEXT_1)) {
-                    try {
-                        return mSuggestions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
+                    return mSuggestions[mPos];
                 } else if (column == COLUMN_INDEX_TEXT_2) {
-                    try {
-                        return mDescriptions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
+                    return mPos < mDescriptions.length ? mDescriptions[mPos] : null;
                 } else if (column == COLUMN_INDEX_ICON) {
                     return String.valueOf(R.drawable.ic_action_search_normal);
                 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.search;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fetches OpenSearch JSON suggestions. Responses are parsed as they are
+ * read, connections are kept alive for the next keystroke, every request
+ * has a hard deadline and results are kept in a small LRU cache for a
+ * short while.
+ */
+public class SuggestionClient {
+
+    private static final String TAG = "SuggestionClient";
+
+    private static final String USER_AGENT = "Android/1.0";
+
+    /**
+     * Suggestions for a query. descriptions is null if the engine has
+     * none.
+     */
+    public static class Suggestions {
+        public final String[] queries;
+        public final String[] descriptions;
+
+        Suggestions(String[] q, String[] d) {
+            queries = q;
+            descriptions = d;
+        }
+    }
+
+    private static class CacheEntry {
+        final Suggestions suggestions;
+        final long time;
+
+        CacheEntry(Suggestions s, long t) {
+            suggestions = s;
+            time = t;
+        }
+    }
+
+    // Disconnects requests that run past their deadline. On a thread of its
+    // own, so no other work can hold up the disconnect.
+    private static final Handler sWatchdog;
+    static {
+        HandlerThread thread = new HandlerThread("SuggestionWatchdog");
+        thread.start();
+        sWatchdog = new Handler(thread.getLooper());
+    }
+
+    private final int mDeadlineMs;
+    private final long mTtlMs;
+    private final LinkedHashMap<String, CacheEntry> mCache;
+    private int mHits;
+    private int mMisses;
+
+    public SuggestionClient(final int maxEntries, long ttlMs, int deadlineMs) {
+        mTtlMs = ttlMs;
+        mDeadlineMs = deadlineMs;
+        mCache = new LinkedHashMap<String, CacheEntry>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached suggestions of the engine for the query, or null.
+     */
+    public Suggestions getCached(String engine, String query) {
+        String key = engine + '\n' + query;
+        synchronized (mCache) {
+            CacheEntry entry = mCache.get(key);
+            if (entry != null && SystemClock.elapsedRealtime() - entry.time < mTtlMs) {
+                mHits++;
+                return entry.suggestions;
+            }
+            if (entry != null) {
+                mCache.remove(key);
+            }
+            mMisses++;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the suggestions of the engine for the query, from the cache
+     * or by requesting url. Returns null if the request failed or didn't
+     * finish before the deadline.
+     */
+    public Suggestions getSuggestions(String engine, String query, String url) {
+        Suggestions suggestions = getCached(engine, query);
+        return suggestions != null ? suggestions : fetch(engine, query, url);
+    }
+
+    /**
+     * Requests the suggestions of the engine for the query from url and
+     * caches them. Returns null if the request failed or didn't finish
+     * before the deadline.
+     */
+    public Suggestions fetch(String engine, String query, String url) {
+        Suggestions suggestions = request(url);
+        if (suggestions != null) {
+            synchronized (mCache) {
+                mCache.put(engine + '\n' + query,
+                        new CacheEntry(suggestions, SystemClock.elapsedRealtime()));
+            }
+        }
+        return suggestions;
+    }
+
+    public int getCacheHits() {
+        synchronized (mCache) {
+            return mHits;
+        }
+    }
+
+    public int getCacheMisses() {
+        synchronized (mCache) {
+            return mMisses;
+        }
+    }
+
+    private Suggestions request(String url) {
+        final long deadline = SystemClock.elapsedRealtime() + mDeadlineMs;
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        Runnable watchdog = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            final HttpURLConnection conn = connection;
+            watchdog = new Runnable() {
+                @Override
+                public void run() {
+                    // Unblocks a read that is stuck past the deadline
+                    conn.disconnect();
+                }
+            };
+            sWatchdog.postDelayed(watchdog, mDeadlineMs);
+            connection.setRequestProperty("User-Agent", USER_AGENT);
+            connection.setConnectTimeout(mDeadlineMs);
+            connection.setReadTimeout(mDeadlineMs);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.i(TAG, "Suggestion request failed");
+                connection.disconnect();
+                return null;
+            }
+            in = new DeadlineInputStream(connection.getInputStream(), deadline);
+            Suggestions suggestions = parse(in);
+            // Read what is left so the connection can be reused
+            byte[] skip = new byte[512];
+            while (in.read(skip) >= 0) {
+            }
+            return suggestions;
+        } catch (IOException e) {
+            Log.w(TAG, "Error", e);
+            if (connection != null) {
+                // Don't hand a half read connection back to the pool
+                connection.disconnect();
+            }
+            return null;
+        } catch (IllegalStateException e) {
+            // JsonReader reports unexpected tokens this way
+            Log.w(TAG, "Error", e);
+            return null;
+        } finally {
+            if (watchdog != null) {
+                sWatchdog.removeCallbacks(watchdog);
+            }
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the OpenSearch suggestions format, a JSON array whose second
+     * element is the array of suggestions and whose optional third element
+     * is the array of descriptions.
+     */
+    static Suggestions parse(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        reader.setLenient(true);
+        reader.beginArray();
+        if (!reader.hasNext()) {
+            return null;
+        }
+        // The query the suggestions are for
+        reader.skipValue();
+        if (!reader.hasNext() || reader.peek() != JsonToken.BEGIN_ARRAY) {
+            return null;
+        }
+        String[] queries = readStrings(reader);
+        String[] descriptions = null;
+        if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_ARRAY) {
+            descriptions = readStrings(reader);
+            // Some search engines give an empty array "[]" for descriptions
+            // instead of not including it in the response.
+            if (descriptions.length == 0) {
+                descriptions = null;
+            }
+        }
+        return new Suggestions(queries, descriptions);
+    }
+
+    private static String[] readStrings(JsonReader reader) throws IOException {
+        ArrayList<String> strings = new ArrayList<String>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                strings.add(reader.nextString());
+            } else {
+                reader.skipValue();
+                strings.add(null);
+            }
+        }
+        reader.endArray();
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    /**
+     * Fails reads once the deadline of the request has passed, so a server
+     * trickling bytes can't hold up suggestions past it.
+     */
+    private static class DeadlineInputStream extends FilterInputStream {
+        private final long mDeadline;
+
+        DeadlineInputStream(InputStream in, long deadline) {
+            super(in);
+            mDeadline = deadline;
+        }
+
+        private void checkDeadline() throws IOException {
+            if (SystemClock.elapsedRealtime() >= mDeadline) {
+                throw new SocketTimeoutException("Suggestion request deadline exceeded");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkDeadline();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkDeadline();
+            return super.read(buffer, offset, count);
+        }
+    }
+}
@@ -74,6 +74,10 @@ public class NullController implements ActivityController {
     public void onLowMemory() {
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         return false;
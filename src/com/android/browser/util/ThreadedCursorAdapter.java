@@ -18,9 +18,7 @@ package com.android.browser.util;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
-import android.os.Process;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
@@ -28,9 +26,12 @@ import android.widget.Adapter;
 import android.widget.BaseAdapter;
 import android.widget.CursorAdapter;
 
+import com.android.browser.BackgroundHandler;
 import com.android.browser.R;
 
 import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.concurrent.Future;
 
 public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
 
@@ -41,20 +42,32 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
     private Object mCursorLock = new Object();
     private CursorAdapter mCursorAdapter;
     private T mLoadingObject;
-    private Handler mLoadHandler;
     private Handler mHandler;
     private int mSize;
     private boolean mHasCursor;
     private long mGeneration;
-    private HandlerThread mThread;
+    // Row loads queued or running on the background workers
+    private final HashSet<Future<?>> mPendingLoads = new HashSet<Future<?>>();
 
     private class LoadContainer {
         WeakReference<View> view;
-        int position;
+        volatile int position;
         T bind_object;
         Adapter owner;
         boolean loaded;
         long generation;
+        Future<?> load;
+    }
+
+    // A row loaded for a container, bound once it reaches the UI thread
+    private class LoadResult {
+        final LoadContainer container;
+        final T bind_object;
+
+        LoadResult(LoadContainer c, T object) {
+            container = c;
+            bind_object = object;
+        }
     }
 
     public ThreadedCursorAdapter(Context context, Cursor c) {
@@ -90,27 +103,15 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
 
         };
         mSize = mCursorAdapter.getCount();
-        mThread = new HandlerThread("threaded_adapter_" + this,
-                Process.THREAD_PRIORITY_BACKGROUND);
-        mThread.start();
-        mLoadHandler = new Handler(mThread.getLooper()) {
-            @SuppressWarnings("unchecked")
-            @Override
-            public void handleMessage(Message msg) {
-                if (DEBUG) {
-                    Log.d(LOGTAG, "loading: " + msg.what);
-                }
-                loadRowObject(msg.what, (LoadContainer) msg.obj);
-            }
-        };
         mHandler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
                 @SuppressWarnings("unchecked")
-                LoadContainer container = (LoadContainer) msg.obj;
-                if (container == null) {
+                LoadResult result = (LoadResult) msg.obj;
+                if (result == null) {
                     return;
                 }
+                LoadContainer container = result.container;
                 View view = container.view.get();
                 if (view == null
                         || container.owner != ThreadedCursorAdapter.this
@@ -120,6 +121,7 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
                     return;
                 }
                 container.loaded = true;
+                container.bind_object = result.bind_object;
                 bindView(view, container.bind_object);
             }
         };
@@ -149,14 +151,21 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
                 || container.view.get() == null) {
             return;
         }
+        T object;
         synchronized (mCursorLock) {
+            // Loads run in parallel, the view may have moved on while this
+            // one waited for the lock
+            if (container.position != position) {
+                return;
+            }
             Cursor c = (Cursor) mCursorAdapter.getItem(position);
             if (c == null || c.isClosed()) {
                 return;
             }
-            container.bind_object = getRowObject(c, container.bind_object);
+            // Never recycle the bound object, another load may be filling it
+            object = getRowObject(c, null);
         }
-        mHandler.obtainMessage(position, container).sendToTarget();
+        mHandler.obtainMessage(position, new LoadResult(container, object)).sendToTarget();
     }
 
     @Override
@@ -183,12 +192,56 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
                 container.loaded = false;
                 container.owner = this;
                 container.generation = mGeneration;
-                mLoadHandler.obtainMessage(position, container).sendToTarget();
+                if (container.load != null) {
+                    // The view was recycled, its previous row isn't needed
+                    cancelLoad(container.load);
+                }
+                container.load = scheduleLoad(position, container);
             }
         }
         return convertView;
     }
 
+    private Future<?> scheduleLoad(final int position, final LoadContainer container) {
+        final Future<?>[] self = new Future<?>[1];
+        Runnable load = new Runnable() {
+            @Override
+            public void run() {
+                if (DEBUG) {
+                    Log.d(LOGTAG, "loading: " + position);
+                }
+                try {
+                    loadRowObject(position, container);
+                } finally {
+                    synchronized (mPendingLoads) {
+                        mPendingLoads.remove(self[0]);
+                    }
+                }
+            }
+        };
+        synchronized (mPendingLoads) {
+            self[0] = BackgroundHandler.execute(load);
+            mPendingLoads.add(self[0]);
+        }
+        return self[0];
+    }
+
+    private void cancelLoad(Future<?> load) {
+        load.cancel(false);
+        synchronized (mPendingLoads) {
+            mPendingLoads.remove(load);
+        }
+    }
+
+    private void cancelPendingLoads() {
+        synchronized (mPendingLoads) {
+            for (Future<?> load : mPendingLoads) {
+                load.cancel(false);
+            }
+            mPendingLoads.clear();
+        }
+    }
+
     private T cachedLoadObject() {
         if (mLoadingObject == null) {
             mLoadingObject = getLoadingObject();
@@ -197,7 +250,7 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
     }
 
     public void changeCursor(Cursor cursor) {
-        mLoadHandler.removeCallbacksAndMessages(null);
+        cancelPendingLoads();
         mHandler.removeCallbacksAndMessages(null);
         synchronized (mCursorLock) {
             mHasCursor = (cursor != null);
@@ -206,11 +259,7 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
     }
 
     public void quitThread() {
-        if (mThread != null) {
-            HandlerThread thread = mThread;
-            mThread = null;
-            thread.quit();
-        }
+        cancelPendingLoads();
     }
 
     public abstract View newView(Context context, ViewGroup parent);
@@ -23,10 +23,8 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.MergeCursor;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
 import android.net.Uri;
 import android.os.Binder;
 import android.text.TextUtils;
@@ -62,7 +60,12 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
             BrowserContract.Bookmarks.IS_FOLDER,
             BrowserContract.Bookmarks.POSITION, /* needed for order by */
             BrowserContract.Bookmarks.THUMBNAIL,
-            BrowserContract.Bookmarks.PARENT};
+            BrowserContract.Bookmarks.PARENT,
+            BrowserContract.Bookmarks.DATE_MODIFIED,
+            /* image versions for the bitmap cache, without reading the blobs */
+            BrowserProvider2.ImagesColumns.DATE_MODIFIED,
+            "length(" + BrowserContract.Bookmarks.THUMBNAIL + ") AS thumbnail_length",
+            "length(" + BrowserContract.Bookmarks.FAVICON + ") AS favicon_length"};
     private static final int BOOKMARK_INDEX_ID = 0;
     private static final int BOOKMARK_INDEX_TITLE = 1;
     private static final int BOOKMARK_INDEX_URL = 2;
@@ -70,6 +73,13 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
     private static final int BOOKMARK_INDEX_IS_FOLDER = 4;
     private static final int BOOKMARK_INDEX_THUMBNAIL = 6;
     private static final int BOOKMARK_INDEX_PARENT_ID = 7;
+    private static final int BOOKMARK_INDEX_DATE_MODIFIED = 8;
+    private static final int BOOKMARK_INDEX_IMAGE_MODIFIED = 9;
+    private static final int BOOKMARK_INDEX_THUMBNAIL_LENGTH = 10;
+    private static final int BOOKMARK_INDEX_FAVICON_LENGTH = 11;
+
+    // Rows on either side of the one being bound to decode ahead of time
+    private static final int PREFETCH_ROWS = 4;
 
     @Override
     public RemoteViewsFactory onGetViewFactory(Intent intent) {
@@ -183,10 +193,18 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
         private long mCurrentFolder = -1;
         private long mRootFolder = -1;
         private SharedPreferences mPreferences = null;
+        private final WidgetBitmapCache mBitmaps = WidgetBitmapCache.getInstance();
+        private final int mThumbWidth;
+        private final int mThumbHeight;
+        private final int mFaviconSize;
 
         public BookmarkFactory(Context context, int widgetId) {
             mContext = context.getApplicationContext();
             mWidgetId = widgetId;
+            Resources res = mContext.getResources();
+            mThumbWidth = res.getDimensionPixelSize(R.dimen.widgetColumnWidth);
+            mThumbHeight = res.getDimensionPixelSize(R.dimen.widgetThumbnailHeight);
+            mFaviconSize = res.getDimensionPixelSize(R.dimen.favicon_size);
         }
 
         void syncState() {
@@ -270,25 +288,19 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                 // SWE_TODO : Fix Me
                 //views.setDrawableParameters(R.id.thumb, true, 0, -1, null, -1);
             } else {
-                // RemoteViews require a valid bitmap config
-                Options options = new Options();
-                options.inPreferredConfig = Config.ARGB_8888;
-                Bitmap thumbnail = null, favicon = null;
-                byte[] blob = mBookmarks.getBlob(BOOKMARK_INDEX_THUMBNAIL);
                 // SWE_TODO : Fix Me
                 //views.setDrawableParameters(R.id.thumb, true, 255, -1, null, -1);
-                if (blob != null && blob.length > 0) {
-                    thumbnail = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                Bitmap thumbnail = getBitmap(BOOKMARK_INDEX_THUMBNAIL,
+                        BOOKMARK_INDEX_THUMBNAIL_LENGTH, mThumbWidth, mThumbHeight);
+                if (thumbnail != null) {
                     views.setImageViewBitmap(R.id.thumb, thumbnail);
                 } else {
                     views.setImageViewResource(R.id.thumb,
                             R.drawable.browser_thumbnail);
                 }
-                blob = mBookmarks.getBlob(BOOKMARK_INDEX_FAVICON);
-                if (blob != null && blob.length > 0) {
-                    favicon = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                Bitmap favicon = getBitmap(BOOKMARK_INDEX_FAVICON,
+                        BOOKMARK_INDEX_FAVICON_LENGTH, mFaviconSize, mFaviconSize);
+                if (favicon != null) {
                     views.setImageViewBitmap(R.id.favicon, favicon);
                 } else {
                     views.setImageViewResource(R.id.favicon,
@@ -310,9 +322,68 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                 }
             }
             views.setOnClickFillInIntent(R.id.list_item, fillin);
+            prefetch(position);
             return views;
         }
 
+        private String getBitmapKey(int lengthColumn, int width, int height) {
+            int length = mBookmarks.getInt(lengthColumn);
+            if (length <= 0) {
+                return null;
+            }
+            return WidgetBitmapCache.getKey(mBookmarks.getLong(BOOKMARK_INDEX_ID),
+                    mBookmarks.getLong(BOOKMARK_INDEX_DATE_MODIFIED),
+                    mBookmarks.getLong(BOOKMARK_INDEX_IMAGE_MODIFIED), length, width, height);
+        }
+
+        private Bitmap getBitmap(int column, int lengthColumn, int width, int height) {
+            String key = getBitmapKey(lengthColumn, width, height);
+            if (key == null) {
+                return null;
+            }
+            Bitmap bitmap = mBitmaps.getCached(key);
+            if (bitmap != null) {
+                return bitmap;
+            }
+            byte[] blob = mBookmarks.getBlob(column);
+            if (blob == null || blob.length == 0) {
+                return null;
+            }
+            return mBitmaps.get(key, blob, width, height);
+        }
+
+        /**
+         * Decodes the images of the rows around position in the background,
+         * so scrolling to them does not decode on the binder thread. Only
+         * rows neither cached nor already queued have their images copied
+         * out of the cursor.
+         */
+        private void prefetch(int position) {
+            int first = Math.max(0, position - PREFETCH_ROWS);
+            int last = Math.min(mBookmarks.getCount() - 1, position + PREFETCH_ROWS);
+            for (int i = first; i <= last; i++) {
+                if (i == position || !mBookmarks.moveToPosition(i)
+                        || mBookmarks.getInt(BOOKMARK_INDEX_IS_FOLDER) != 0) {
+                    continue;
+                }
+                prefetch(BOOKMARK_INDEX_THUMBNAIL, BOOKMARK_INDEX_THUMBNAIL_LENGTH,
+                        mThumbWidth, mThumbHeight);
+                prefetch(BOOKMARK_INDEX_FAVICON, BOOKMARK_INDEX_FAVICON_LENGTH,
+                        mFaviconSize, mFaviconSize);
+            }
+        }
+
+        private void prefetch(int column, int lengthColumn, int width, int height) {
+            String key = getBitmapKey(lengthColumn, width, height);
+            if (key == null || !mBitmaps.needsPrefetch(key)) {
+                return;
+            }
+            byte[] blob = mBookmarks.getBlob(column);
+            if (blob != null && blob.length > 0) {
+                mBitmaps.prefetch(key, blob, width, height);
+            }
+        }
+
         @Override
         public int getViewTypeCount() {
             return 2;
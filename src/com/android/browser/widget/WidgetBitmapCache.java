@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.browser.BackgroundHandler;
+import com.android.browser.Browser;
+
+import java.util.HashSet;
+
+/**
+ * Decodes bookmark thumbnails and favicons for the widget, downsampled to
+ * the size they are shown at, and keeps the results in a shared LRU cache
+ * bounded in bytes. Entries are keyed by bookmark id, the modified dates of
+ * the bookmark and of its images row, the length of the encoded image and
+ * the size shown. The provider stamps an images row whenever its favicon
+ * or thumbnail changes, so all of these come from the cursor without
+ * copying the image out of it, and a new image is never served stale. Decodes queued by
+ * {@link #prefetch} are tracked until done so a row is never queued twice.
+ */
+class WidgetBitmapCache {
+
+    private static final String TAG = "WidgetBitmapCache";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    private static WidgetBitmapCache sInstance;
+
+    private final LruCache<String, Bitmap> mCache;
+    // Keys queued for decoding, guarded by itself
+    private final HashSet<String> mPending = new HashSet<String>();
+
+    static synchronized WidgetBitmapCache getInstance() {
+        if (sInstance == null) {
+            int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16,
+                    Integer.MAX_VALUE);
+            sInstance = new WidgetBitmapCache(maxBytes);
+        }
+        return sInstance;
+    }
+
+    WidgetBitmapCache(int maxBytes) {
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the cached image for key, or null if it is not decoded yet.
+     */
+    Bitmap getCached(String key) {
+        return mCache.get(key);
+    }
+
+    /**
+     * Returns the decoded image, decoding it on the calling thread if it is
+     * not cached yet. Returns null if the image cannot be decoded.
+     */
+    Bitmap get(String key, byte[] blob, int width, int height) {
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap == null) {
+            bitmap = decode(blob, width, height);
+            if (bitmap != null) {
+                mCache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns true if the image is neither cached nor queued for decoding,
+     * so the caller should read its bytes and {@link #prefetch} it.
+     */
+    boolean needsPrefetch(String key) {
+        synchronized (mPending) {
+            return !mPending.contains(key) && mCache.get(key) == null;
+        }
+    }
+
+    /**
+     * Decodes the image in the background if it is not cached or queued
+     * yet, so that a later {@link #get} for it is a cache hit.
+     */
+    void prefetch(final String key, final byte[] blob, final int width, final int height) {
+        synchronized (mPending) {
+            if (mCache.get(key) != null || !mPending.add(key)) {
+                return;
+            }
+        }
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mCache.get(key) == null) {
+                        Bitmap bitmap = decode(blob, width, height);
+                        if (bitmap != null) {
+                            mCache.put(key, bitmap);
+                        }
+                    }
+                } finally {
+                    synchronized (mPending) {
+                        mPending.remove(key);
+                    }
+                }
+            }
+        }, BackgroundHandler.PRIORITY_PREFETCH);
+    }
+
+    static String getKey(long id, long modified, long imageModified, int length,
+            int width, int height) {
+        return id + "@" + modified + ':' + imageModified + ':' + length
+                + '#' + width + 'x' + height;
+    }
+
+    static Bitmap decode(byte[] blob, int width, int height) {
+        Options options = new Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(blob, 0, blob.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+                width, height);
+        // RemoteViews require a valid bitmap config
+        options.inPreferredConfig = Config.ARGB_8888;
+        if (LOGV_ENABLED) {
+            Log.v(TAG, "Decoding " + options.outWidth + "x" + options.outHeight
+                    + " at 1/" + options.inSampleSize + " for " + width + "x" + height);
+        }
+        return BitmapFactory.decodeByteArray(blob, 0, blob.length, options);
+    }
+
+    /**
+     * Returns the largest power of two sample size that still leaves the
+     * image covering the requested size, as the widget center crops.
+     */
+    static int computeSampleSize(int srcWidth, int srcHeight, int width, int height) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0) {
+            return sampleSize;
+        }
+        while (srcWidth / (sampleSize * 2) >= width
+                && srcHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * In the app's package, as the index is package private.
+ */
+@SmallTest
+public class SuggestionIndexTests extends AndroidTestCase {
+
+    private static void assertFinds(String typed, String url) {
+        String key = SuggestionIndex.normalizeKey(typed);
+        String urlKey = SuggestionIndex.normalizeKey(url);
+        assertTrue("\"" + typed + "\" does not find " + url, urlKey.startsWith(key));
+    }
+
+    public void testNormalizeStripsSchemeAndWww() {
+        assertEquals("google.com/", SuggestionIndex.normalizeKey("http://www.google.com/"));
+        assertEquals("google.com/", SuggestionIndex.normalizeKey("https://google.com/"));
+        assertEquals("goo", SuggestionIndex.normalizeKey("goo"));
+    }
+
+    public void testTypedWwwFindsUrl() {
+        assertEquals("goo", SuggestionIndex.normalizeKey("www.goo"));
+        assertFinds("www.goo", "http://www.google.com/");
+        assertFinds("http://www.goo", "http://www.google.com/");
+        assertFinds("goo", "https://www.google.com/");
+    }
+}
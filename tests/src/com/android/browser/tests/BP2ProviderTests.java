@@ -24,12 +24,21 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.browser.DataController;
+import com.android.browser.platformsupport.Browser;
 import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.History;
 import com.android.browser.platformsupport.BrowserContract.Images;
+import com.android.browser.provider.BrowserProvider2.ImagesColumns;
+import com.android.browser.provider.BrowserProvider2.Thumbnails;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 
 @SmallTest
 public class BP2ProviderTests extends BP2TestCaseHelper {
@@ -57,6 +66,103 @@ public class BP2ProviderTests extends BP2TestCaseHelper {
         assertTrue(updateBookmark(Images.CONTENT_URI, values));
     }
 
+    private static byte[] png(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(1, 1, Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        return os.toByteArray();
+    }
+
+    private long setThumbnail(String url, byte[] thumbnail) {
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(Images.THUMBNAIL, thumbnail);
+        assertTrue(updateBookmark(Images.CONTENT_URI, values));
+        Cursor c = getMockContentResolver().query(BrowserContract.Bookmarks.CONTENT_URI,
+                new String[] { ImagesColumns.DATE_MODIFIED },
+                BrowserContract.Bookmarks.URL + "=?", new String[] { url }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testImageModifiedTracksImageChanges() {
+        String url = "http://stub2.com";
+        insertBookmark(url, "stub 2");
+        long first = setThumbnail(url, png(0xffff0000));
+        assertTrue(first > 0);
+        SystemClock.sleep(5);
+        // Writing the same image again is not a change
+        assertEquals(first, setThumbnail(url, png(0xffff0000)));
+        long second = setThumbnail(url, png(0xff0000ff));
+        assertTrue(second > first);
+    }
+
+    public void testTruncateHistory() {
+        // Below the cap nothing is deleted
+        assertEquals(0, getMockContentResolver().delete(
+                Browser.TRUNCATE_HISTORY_URI, null, null));
+        ContentValues[] values = new ContentValues[Browser.MAX_HISTORY_COUNT];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(History.URL, "http://stub" + i + ".com");
+            values[i].put(History.DATE_LAST_VISITED, i);
+        }
+        getMockContentResolver().bulkInsert(History.CONTENT_URI, values);
+        int deleted = getMockContentResolver().delete(
+                Browser.TRUNCATE_HISTORY_URI, null, null);
+        assertTrue(deleted > 0);
+        Cursor c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History.DATE_LAST_VISITED }, null, null,
+                History.DATE_LAST_VISITED + " ASC");
+        try {
+            assertEquals(Browser.MAX_HISTORY_COUNT - deleted, c.getCount());
+            // The oldest entries are the ones removed
+            assertTrue(c.moveToFirst());
+            assertEquals(deleted, c.getLong(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testWriteThumbnail() throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(64, 48, Config.ARGB_8888);
+        bitmap.eraseColor(0xff336699);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 80, os);
+        long written = DataController.writeThumbnail(getMockContentResolver(), 1, bitmap);
+        // Exactly the compressed image is written, nothing more
+        assertEquals(os.size(), written);
+        Uri uri = ContentUris.withAppendedId(Thumbnails.CONTENT_URI, 1);
+        ParcelFileDescriptor pfd = getMockContentResolver().openFileDescriptor(uri, "r");
+        try {
+            assertEquals(written, pfd.getStatSize());
+        } finally {
+            pfd.close();
+        }
+        // Rewriting a smaller image must not leave stale bytes behind
+        Bitmap small = Bitmap.createBitmap(8, 8, Config.ARGB_8888);
+        long rewritten = DataController.writeThumbnail(getMockContentResolver(), 1, small);
+        assertTrue(rewritten < written);
+        pfd = getMockContentResolver().openFileDescriptor(uri, "r");
+        try {
+            assertEquals(rewritten, pfd.getStatSize());
+        } finally {
+            pfd.close();
+        }
+        // Deleting the row deletes the file
+        assertEquals(1, getMockContentResolver().delete(Thumbnails.CONTENT_URI, null, null));
+        try {
+            getMockContentResolver().openFileDescriptor(uri, "r");
+            fail("Thumbnail file was not deleted");
+        } catch (FileNotFoundException e) {
+        }
+    }
+
     public void testIsValidParentNullAccount() {
         doTestIsValidParent(null, null);
     }
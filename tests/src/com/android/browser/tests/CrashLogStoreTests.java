@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.browser.CrashLogStore;
+import com.android.browser.CrashLogUploader;
+import com.android.browser.tests.utils.LocalHttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+@MediumTest
+public class CrashLogStoreTests extends AndroidTestCase {
+
+    private static final String TAG = "CrashLogStoreTests";
+    private static final int TIMEOUT_MS = 5000;
+
+    private File mDir;
+    private LocalHttpServer mServer;
+    private volatile int mFailures;
+    private volatile int mStatus;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), TAG);
+        deleteAll(mDir);
+        mStatus = 200;
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                int status = mStatus;
+                if (mFailures > 0) {
+                    mFailures--;
+                    status = 503;
+                }
+                return new LocalHttpServer.Response(status, "text/plain", new byte[0], 0);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAll(mDir);
+        super.tearDown();
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteAll(f);
+            }
+        }
+        dir.delete();
+    }
+
+    private static String record(int i) {
+        // Random digits, so records do not compress away to nothing
+        StringBuilder sb = new StringBuilder("{\"crash\":" + i + ",\"stack\":\"");
+        Random random = new Random(i);
+        for (int j = 0; j < 200; j++) {
+            sb.append(random.nextInt(10));
+        }
+        return sb.append("\"}").toString();
+    }
+
+    private static String gunzip(InputStream in) throws IOException {
+        GZIPInputStream gzip = new GZIPInputStream(in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = gzip.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            gzip.close();
+        }
+    }
+
+    private static String read(List<File> segments) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (File segment : segments) {
+            sb.append(gunzip(new FileInputStream(segment)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Many servers only decode the first member of a gzip body.
+     */
+    private static void assertSingleGzipMember(byte[] body) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        Inflater inflater = new Inflater(true);
+        // Skip the 10 byte header, the store writes no optional fields
+        in.skip(10);
+        byte[] input = new byte[body.length - 10];
+        in.read(input);
+        inflater.setInput(input);
+        byte[] output = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                inflater.inflate(output);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        // Only the 8 byte trailer may follow the deflate stream
+        assertEquals(8, inflater.getRemaining());
+        inflater.end();
+    }
+
+    public void testAppendRotatesAndStaysUnderLimit() throws IOException {
+        CrashLogStore store = new CrashLogStore(mDir, 4096);
+        for (int i = 0; i < 100; i++) {
+            store.append(record(i));
+            assertTrue("Store grew to " + store.getSize(), store.getSize() <= 4096);
+        }
+        List<File> segments = store.seal();
+        assertTrue(segments.size() > 1);
+        String logs = read(segments);
+        // The oldest records were dropped, the newest kept
+        assertFalse(logs.contains(record(0)));
+        assertTrue(logs.endsWith(record(99) + "\n"));
+    }
+
+    public void testImportLegacyLog() throws IOException {
+        mDir.mkdirs();
+        File legacy = new File(mDir, "crash.log");
+        FileOutputStream out = new FileOutputStream(legacy);
+        out.write((record(1) + record(2)).getBytes("UTF-8"));
+        out.close();
+        CrashLogStore store = new CrashLogStore(mDir, 64 * 1024);
+        store.importLegacy(legacy);
+        store.append(record(3));
+        assertFalse(legacy.exists());
+        assertEquals(record(1) + record(2) + record(3) + "\n", read(store.seal()));
+    }
+
+    public void testUploadStreamsSegmentsOverOneConnection() throws IOException {
+        CrashLogStore store = new CrashLogStore(mDir, 16 * 1024);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            store.append(record(i));
+            expected.append(record(i)).append('\n');
+        }
+        CrashLogUploader uploader = new CrashLogUploader(store, mServer.getUrl("/crash"));
+        assertTrue(uploader.uploadPending());
+        assertEquals(0, store.getSize());
+
+        List<LocalHttpServer.Request> requests = mServer.getRequests();
+        assertTrue(requests.size() > 1);
+        StringBuilder received = new StringBuilder();
+        for (LocalHttpServer.Request request : requests) {
+            assertEquals("POST", request.method);
+            assertEquals("gzip", request.getHeader("Content-Encoding"));
+            assertEquals("application/x-ndjson", request.getHeader("Content-Type"));
+            assertSingleGzipMember(request.body);
+            received.append(gunzip(new ByteArrayInputStream(request.body)));
+        }
+        assertEquals(expected.toString(), received.toString());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testRetriesServerErrorsWithBackoff() {
+        CrashLogStore store = new CrashLogStore(mDir, 64 * 1024);
+        store.append(record(1));
+        mFailures = 2;
+        CrashLogUploader uploader = new CrashLogUploader(store, mServer.getUrl("/crash"),
+                5, 50);
+        uploader.schedule(0);
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (store.getSize() > 0 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(20);
+        }
+        assertEquals(0, store.getSize());
+        assertEquals(3, mServer.getRequests().size());
+    }
+
+    public void testRejectedSegmentIsDropped() {
+        CrashLogStore store = new CrashLogStore(mDir, 64 * 1024);
+        store.append(record(1));
+        mStatus = 400;
+        CrashLogUploader uploader = new CrashLogUploader(store, mServer.getUrl("/crash"));
+        assertTrue(uploader.uploadPending());
+        assertEquals(0, store.getSize());
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    public void testNetworkErrorKeepsSegments() {
+        CrashLogStore store = new CrashLogStore(mDir, 64 * 1024);
+        store.append(record(1));
+        long size = store.getSize();
+        mServer.shutdown();
+        CrashLogUploader uploader = new CrashLogUploader(store, mServer.getUrl("/crash"));
+        assertFalse(uploader.uploadPending());
+        assertEquals(size, store.getSize());
+    }
+}
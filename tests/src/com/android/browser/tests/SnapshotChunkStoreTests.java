@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.browser.provider.SnapshotChunkStore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+@MediumTest
+public class SnapshotChunkStoreTests extends AndroidTestCase {
+
+    private static final String TAG = "SnapshotChunkStoreTests";
+    private static final int LARGE = 12 * 1024 * 1024;
+
+    private File mChunkDir;
+    private File mRestoreDir;
+    private SnapshotChunkStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File root = new File(getContext().getCacheDir(), TAG);
+        mChunkDir = new File(root, "chunks");
+        mRestoreDir = new File(root, "restore");
+        deleteAll(root);
+        mChunkDir.mkdirs();
+        mRestoreDir.mkdirs();
+        mStore = new SnapshotChunkStore(mChunkDir, mRestoreDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll(mChunkDir.getParentFile());
+        super.tearDown();
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteAll(f);
+            }
+        }
+        dir.delete();
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(mChunkDir.getParentFile(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte[] data = random(LARGE, 1);
+        long start = SystemClock.elapsedRealtime();
+        String manifest = mStore.ingest(write("large", data));
+        long ingested = SystemClock.elapsedRealtime();
+        File restored = mStore.restore(1, manifest);
+        long end = SystemClock.elapsedRealtime();
+        Log.i(TAG, LARGE + " bytes in " + TextUtils.split(manifest, ",").length
+                + " chunks, ingest " + (ingested - start) + " ms, restore "
+                + (end - ingested) + " ms");
+        assertTrue(Arrays.equals(data, read(restored)));
+    }
+
+    public void testIdenticalContentStoredOnce() throws IOException {
+        byte[] data = random(LARGE, 2);
+        String first = mStore.ingest(write("first", data));
+        int chunks = mChunkDir.list().length;
+        String second = mStore.ingest(write("second", data));
+        assertEquals(first, second);
+        assertEquals(chunks, mChunkDir.list().length);
+    }
+
+    public void testSharedContentAtShiftedOffset() throws IOException {
+        byte[] shared = random(LARGE, 3);
+        byte[] shifted = new byte[shared.length + 1000];
+        System.arraycopy(random(1000, 4), 0, shifted, 0, 1000);
+        System.arraycopy(shared, 0, shifted, 1000, shared.length);
+        Set<String> first = new HashSet<String>(Arrays.asList(
+                TextUtils.split(mStore.ingest(write("first", shared)), ",")));
+        String[] second = TextUtils.split(mStore.ingest(write("second", shifted)), ",");
+        int reused = 0;
+        for (String name : second) {
+            if (first.contains(name)) {
+                reused++;
+            }
+        }
+        // Content defined boundaries resynchronize after the inserted bytes
+        assertTrue("Reused " + reused + " of " + second.length, reused >= second.length - 2);
+    }
+
+    public void testCompactReclaimsOrphans() throws IOException {
+        String kept = mStore.ingest(write("kept", random(LARGE, 5)));
+        String dropped = mStore.ingest(write("dropped", random(LARGE, 6)));
+        mStore.restore(1, kept);
+        mStore.restore(2, dropped);
+        mStore.compact(Collections.singleton(kept), Collections.singleton(1L));
+        Set<String> remaining = new HashSet<String>(Arrays.asList(mChunkDir.list()));
+        assertEquals(new HashSet<String>(Arrays.asList(TextUtils.split(kept, ","))),
+                remaining);
+        assertTrue(Arrays.equals(read(mStore.restore(1, kept)),
+                read(new File(mChunkDir.getParentFile(), "kept"))));
+        assertEquals(1, mRestoreDir.list().length);
+    }
+
+    public void testReleaseDeletesRestoredCopy() throws IOException {
+        String manifest = mStore.ingest(write("released", random(LARGE, 7)));
+        File restored = mStore.restore(1, manifest);
+        assertTrue(restored.exists());
+        mStore.release(1);
+        assertFalse(restored.exists());
+        assertEquals(0, mRestoreDir.list().length);
+    }
+}
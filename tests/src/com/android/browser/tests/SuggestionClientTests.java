@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.browser.search.SuggestionClient;
+import com.android.browser.tests.utils.LocalHttpServer;
+
+@MediumTest
+public class SuggestionClientTests extends AndroidTestCase {
+
+    private static final String TAG = "SuggestionClientTests";
+    private static final int DEADLINE_MS = 1000;
+
+    private LocalHttpServer mServer;
+    private volatile long mDelayMs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                String q = request.path.substring(request.path.indexOf("q=") + 2);
+                String body = "[\"" + q + "\",[\"" + q + " one\",\"" + q + " two\"],"
+                        + "[\"first\",\"second\"],{\"ignored\":[1,2,3]}]";
+                try {
+                    return new LocalHttpServer.Response(200, "application/json",
+                            body.getBytes("UTF-8"), mDelayMs);
+                } catch (java.io.UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private String url(String query) {
+        return mServer.getUrl("/suggest?q=" + query);
+    }
+
+    public void testParsesSuggestionsAndDescriptions() {
+        SuggestionClient client = new SuggestionClient(8, 60000, DEADLINE_MS);
+        SuggestionClient.Suggestions s = client.getSuggestions("test", "foo", url("foo"));
+        assertNotNull(s);
+        assertEquals(2, s.queries.length);
+        assertEquals("foo one", s.queries[0]);
+        assertEquals("foo two", s.queries[1]);
+        assertEquals("second", s.descriptions[1]);
+    }
+
+    public void testCacheHitRateAndLatency() {
+        SuggestionClient client = new SuggestionClient(8, 60000, DEADLINE_MS);
+        String[] typed = { "g", "go", "goo", "goog", "goo", "go", "g", "goog" };
+        long networkTime = 0;
+        long cachedTime = 0;
+        for (String query : typed) {
+            int requests = mServer.getRequests().size();
+            long start = SystemClock.elapsedRealtime();
+            assertNotNull(client.getSuggestions("test", query, url(query)));
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            if (mServer.getRequests().size() == requests) {
+                cachedTime += elapsed;
+            } else {
+                networkTime += elapsed;
+            }
+        }
+        // Only the first four queries went to the server
+        assertEquals(4, mServer.getRequests().size());
+        assertEquals(4, client.getCacheHits());
+        assertEquals(4, client.getCacheMisses());
+        Log.i(TAG, "hit rate " + client.getCacheHits() + "/" + typed.length
+                + ", network " + networkTime + " ms, cached " + cachedTime + " ms");
+        // All requests shared one kept-alive connection
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testExpiredEntriesAreRefetched() throws InterruptedException {
+        SuggestionClient client = new SuggestionClient(8, 50, DEADLINE_MS);
+        assertNotNull(client.getSuggestions("test", "foo", url("foo")));
+        Thread.sleep(100);
+        assertNull(client.getCached("test", "foo"));
+        assertNotNull(client.getSuggestions("test", "foo", url("foo")));
+        assertEquals(2, mServer.getRequests().size());
+    }
+
+    public void testLruEviction() {
+        SuggestionClient client = new SuggestionClient(2, 60000, DEADLINE_MS);
+        client.getSuggestions("test", "a", url("a"));
+        client.getSuggestions("test", "b", url("b"));
+        client.getSuggestions("test", "c", url("c"));
+        assertNull(client.getCached("test", "a"));
+        assertNotNull(client.getCached("test", "c"));
+        // Keyed by engine too
+        assertNull(client.getCached("other", "c"));
+    }
+
+    public void testDeadline() {
+        SuggestionClient client = new SuggestionClient(8, 60000, 200);
+        mDelayMs = 1000;
+        long start = SystemClock.elapsedRealtime();
+        assertNull(client.getSuggestions("test", "slow", url("slow")));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        assertTrue("Took " + elapsed + " ms", elapsed < 800);
+    }
+}
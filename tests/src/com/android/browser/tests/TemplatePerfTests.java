@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.browser.R;
+import com.android.browser.homepages.Template;
+import com.android.browser.homepages.Template.ListEntityIterator;
+import com.android.browser.homepages.Template.Sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Microbenchmark of rendering the most visited page: time and bytes
+ * allocated per render.
+ */
+@LargeTest
+public class TemplatePerfTests extends AndroidTestCase {
+
+    private static final String TAG = "TemplatePerfTests";
+    private static final int TILES = 12;
+    private static final int WARMUP = 20;
+    private static final int RENDERS = 500;
+
+    private static class Tiles implements ListEntityIterator {
+        final String[] mUrls = new String[TILES];
+        final String[] mTitles = new String[TILES];
+        int mIndex;
+
+        Tiles() {
+            for (int i = 0; i < TILES; i++) {
+                mUrls[i] = "http://www.example.com/page?id=" + i + "&lang=en";
+                mTitles[i] = "Example page <" + i + "> é中";
+            }
+        }
+
+        @Override
+        public void reset() {
+            mIndex = -1;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return ++mIndex < TILES;
+        }
+
+        @Override
+        public void writeValue(Sink sink, String key) throws IOException {
+            if (key.equals("url")) {
+                sink.writeHtml(mUrls[mIndex]);
+            } else if (key.equals("title")) {
+                sink.writeHtml(mTitles[mIndex]);
+            } else if (key.equals("thumbnail")) {
+                sink.writeHtml(mUrls[mIndex]);
+            }
+        }
+
+        @Override
+        public ListEntityIterator getListIterator(String key) {
+            return null;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) {
+            mCount += length;
+        }
+    }
+
+    private void render(Tiles tiles, OutputStream out) throws IOException {
+        Template t = Template.getCachedTemplate(getContext(), R.raw.most_visited);
+        t.assignLoop("most_visited", tiles);
+        t.write(out);
+    }
+
+    public void testEscaping() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        render(new Tiles(), out);
+        String html = out.toString("UTF-8");
+        assertTrue(html.contains("Example page &lt;3&gt; é中"));
+        assertTrue(html.contains("http://www.example.com/page?id=11&amp;lang=en"));
+        assertFalse(html.contains("<%"));
+    }
+
+    public void testRenderMostVisited() throws IOException {
+        Tiles tiles = new Tiles();
+        CountingOutputStream out = new CountingOutputStream();
+        for (int i = 0; i < WARMUP; i++) {
+            render(tiles, out);
+        }
+        long bytesPerRender = out.mCount / WARMUP;
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < RENDERS; i++) {
+            render(tiles, out);
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        long allocated = Debug.getThreadAllocSize();
+        long allocations = Debug.getThreadAllocCount();
+
+        Log.i(TAG, "most_visited: " + bytesPerRender + " bytes, "
+                + (elapsed / RENDERS / 1000) + " us/render, "
+                + (allocations / RENDERS) + " allocations and "
+                + (allocated / RENDERS) + " bytes allocated per render");
+        // Rendering should not allocate on the scale of the output
+        assertTrue(allocated / RENDERS < bytesPerRender);
+    }
+}
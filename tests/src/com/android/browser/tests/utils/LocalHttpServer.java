@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface for tests. Keeps
+ * connections alive, answers every request with the response given by the
+ * handler and records what it received.
+ */
+public class LocalHttpServer {
+
+    /**
+     * A request as received by the server.
+     */
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final List<String> headers;
+        public final byte[] body;
+
+        Request(String m, String p, List<String> h, byte[] b) {
+            method = m;
+            path = p;
+            headers = h;
+            body = b;
+        }
+
+        public String getHeader(String name) {
+            String prefix = name.toLowerCase() + ":";
+            for (String header : headers) {
+                if (header.toLowerCase().startsWith(prefix)) {
+                    return header.substring(prefix.length()).trim();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A response to send.
+     */
+    public static class Response {
+        public final int status;
+        public final String contentType;
+        public final byte[] body;
+        public final long delayMs;
+
+        public Response(int s, String type, byte[] b, long delay) {
+            status = s;
+            contentType = type;
+            body = b;
+            delayMs = delay;
+        }
+    }
+
+    public interface Handler {
+        Response handle(Request request);
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    private final List<Request> mRequests = new ArrayList<Request>();
+    private int mConnections;
+    private volatile boolean mStopped;
+
+    public LocalHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        Thread accept = new Thread("LocalHttpServer") {
+            @Override
+            public void run() {
+                while (!mStopped) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        synchronized (mRequests) {
+                            mConnections++;
+                        }
+                        new Thread("LocalHttpServer connection") {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    } catch (IOException e) {
+                        // Closed by shutdown()
+                    }
+                }
+            }
+        };
+        accept.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+    /**
+     * Number of TCP connections accepted so far.
+     */
+    public int getConnectionCount() {
+        synchronized (mRequests) {
+            return mConnections;
+        }
+    }
+
+    public void shutdown() {
+        mStopped = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (!mStopped) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.length() == 0) {
+                    break;
+                }
+                ArrayList<String> headers = new ArrayList<String>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    headers.add(line);
+                }
+                String[] parts = requestLine.split(" ");
+                Request request = new Request(parts[0], parts.length > 1 ? parts[1] : "/",
+                        headers, null);
+                int length = 0;
+                String contentLength = request.getHeader("Content-Length");
+                if (contentLength != null) {
+                    length = Integer.parseInt(contentLength);
+                }
+                byte[] body = new byte[length];
+                int read = 0;
+                while (read < length) {
+                    int n = in.read(body, read, length - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+                request = new Request(request.method, request.path, headers, body);
+                synchronized (mRequests) {
+                    mRequests.add(request);
+                }
+                Response response = mHandler.handle(request);
+                if (response.delayMs > 0) {
+                    try {
+                        Thread.sleep(response.delayMs);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                StringBuilder head = new StringBuilder();
+                head.append("HTTP/1.1 ").append(response.status).append(" OK\r\n");
+                head.append("Content-Type: ").append(response.contentType).append("\r\n");
+                head.append("Content-Length: ").append(response.body.length).append("\r\n");
+                head.append("Connection: keep-alive\r\n\r\n");
+                out.write(head.toString().getBytes("US-ASCII"));
+                out.write(response.body);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+}